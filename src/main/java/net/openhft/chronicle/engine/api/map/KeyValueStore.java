@@ -17,6 +17,7 @@
 package net.openhft.chronicle.engine.api.map;
 
 import net.openhft.chronicle.core.io.Closeable;
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntry;
 import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
@@ -24,8 +25,16 @@ import net.openhft.chronicle.engine.api.tree.Assetted;
 import net.openhft.chronicle.engine.api.tree.View;
 import net.openhft.lang.model.constraints.Nullable;
 
-import java.util.*;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * @param <K>  key type
@@ -69,6 +78,39 @@ public interface KeyValueStore<K, MV, V> extends Assetted<KeyValueStore<K, MV, V
     @Nullable
     V getUsing(K key, MV value);
 
+    /**
+     * @param keys to look up
+     * @return the entries which are present, in the order of the keys given.
+     */
+    default Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> map = new LinkedHashMap<>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null)
+                map.put(key, value);
+        }
+        return map;
+    }
+
+    /**
+     * put a number of entries, a store with subscriptions notifies the changes as one batch.
+     *
+     * @param entries to put
+     */
+    default void putAll(Map<? extends K, ? extends V> entries) {
+        entries.forEach(this::put);
+    }
+
+    /**
+     * remove a number of keys, a store with subscriptions notifies the changes as one batch.
+     *
+     * @param keys to remove
+     */
+    default void removeAll(Collection<? extends K> keys) {
+        for (K key : keys)
+            remove(key);
+    }
+
     default boolean containsKey(K key) {
         return get(key) != null;
     }
@@ -91,28 +133,40 @@ public interface KeyValueStore<K, MV, V> extends Assetted<KeyValueStore<K, MV, V
 
     void entriesFor(int segment, SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException;
 
+    /**
+     * As entriesFor, except the event may be reused for the next entry, so the consumer must not retain it.
+     */
+    default void entriesForTransient(int segment, SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        entriesFor(segment, kvConsumer);
+    }
+
+    /**
+     * @return an iterator which reads one segment at a time and looks up each value lazily.
+     */
     default Iterator<Map.Entry<K, V>> entrySetIterator() {
-        // todo optimise
-        List<Map.Entry<K, V>> entries = new ArrayList<>();
-        try {
-            for (int i = 0, seg = segments(); i < seg; i++)
-                entriesFor(i, e -> entries.add(new AbstractMap.SimpleEntry<>(e.key(), e.value())));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
-        return entries.iterator();
+        return SegmentIterator.entries(this);
     }
 
     default Iterator<K> keySetIterator() {
-        // todo optimise
-        List<K> keys = new ArrayList<>();
-        try {
-            for (int i = 0, seg = segments(); i < seg; i++)
-                keysFor(i, k -> keys.add(k));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
-        return keys.iterator();
+        return SegmentIterator.keys(this);
+    }
+
+    /**
+     * @return a Spliterator which can be split by segment for parallel scans.
+     */
+    default Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        return SegmentSpliterator.entries(this);
+    }
+
+    default Stream<Map.Entry<K, V>> stream() {
+        return StreamSupport.stream(entrySetSpliterator(), false);
+    }
+
+    /**
+     * @return a Stream of the entries which scans the segments on the common fork-join pool.
+     */
+    default Stream<Map.Entry<K, V>> parallelStream() {
+        return StreamSupport.stream(entrySetSpliterator(), true);
     }
 
     void clear();
@@ -153,20 +207,49 @@ public interface KeyValueStore<K, MV, V> extends Assetted<KeyValueStore<K, MV, V
         return value2 == null ? getAndPut(key, value) : value2;
     }
 
+    /**
+     * Atomically update the value for a key. A store with per-entry locking runs the function while
+     * holding the lock, otherwise this retries a compare-and-set until no other update intervenes.
+     *
+     * @param key      to update
+     * @param function passed the current value or null if absent, returns the new value or null to remove it.
+     * @return the new value or null if there isn't one.
+     */
+    @Nullable
+    default V compute(K key, SerializableFunction<V, V> function) {
+        for (; ; ) {
+            V oldValue = get(key);
+            V newValue = function.apply(oldValue);
+            if (oldValue == null) {
+                if (newValue == null || putIfAbsent(key, newValue) == null)
+                    return newValue;
+
+            } else if (newValue == null) {
+                if (removeIfEqual(key, oldValue))
+                    return null;
+
+            } else if (replaceIfEqual(key, oldValue, newValue)) {
+                return newValue;
+            }
+        }
+    }
+
+    /**
+     * Atomically set the value if absent, or combine it with the current value.
+     *
+     * @return the new value or null if the function removed it.
+     */
+    @Nullable
+    default V merge(K key, V value, BiFunction<V, V, V> function) {
+        return compute(key, v -> v == null ? value : function.apply(v, value));
+    }
+
     default boolean keyedView() {
         return true;
     }
 
     default Iterator<V> valuesIterator() {
-        // todo optimise
-        List<V> entries = new ArrayList<>();
-        try {
-            for (int i = 0, seg = segments(); i < seg; i++)
-                entriesFor(i, e -> entries.add(e.value()));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
-        return entries.iterator();
+        return SegmentIterator.values(entrySetIterator());
     }
 
     boolean containsValue(MV value);
@@ -25,6 +25,7 @@ import net.openhft.chronicle.engine.api.tree.Assetted;
 import net.openhft.chronicle.engine.api.tree.View;
 
 import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
 
 /**
  * Created by peter on 22/05/15.
@@ -44,6 +45,20 @@ public interface MapView<K, MV, V> extends ConcurrentMap<K, V>,
 
     void registerSubscriber(Subscriber<MapEvent<K, V>> subscriber);
 
+    /**
+     * @return a Stream of the entries in the underlying store.
+     */
+    default Stream<Entry<K, V>> stream() {
+        return underlying().stream();
+    }
+
+    /**
+     * @return a parallel Stream of the entries, split by segment of the underlying store.
+     */
+    default Stream<Entry<K, V>> parallelStream() {
+        return underlying().parallelStream();
+    }
+
     @Override
     default <R> R apply(K key, SerializableFunction<V, R> function) {
         return function.apply(get(key));
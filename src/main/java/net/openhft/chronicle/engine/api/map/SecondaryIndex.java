@@ -0,0 +1,65 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.chronicle.engine.api.map;
+
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.tree.View;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * Indexes the values of a map by fields of the value, kept up to date from the map's events.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public interface SecondaryIndex<K, V> extends View {
+    /**
+     * Add an index for equality lookups, populated from the current entries.
+     *
+     * @param name  of the index
+     * @param field extracts the indexed field from a value, null values are not indexed.
+     */
+    <F> void addHashIndex(String name, SerializableFunction<V, F> field);
+
+    /**
+     * Add an index for range lookups, populated from the current entries.
+     *
+     * @param name  of the index
+     * @param field extracts the indexed field from a value, null values are not indexed.
+     */
+    <F extends Comparable<? super F>> void addSortedIndex(String name, SerializableFunction<V, F> field);
+
+    boolean hasIndex(String name);
+
+    /**
+     * @return the keys of the entries whose indexed field equals fieldValue.
+     */
+    @NotNull
+    Set<K> keysFor(String name, Object fieldValue);
+
+    /**
+     * @param from the lowest field value inclusive, or null for no lower bound.
+     * @param to   the highest field value exclusive, or null for no upper bound.
+     * @return the keys of the entries whose sorted field is in the range, in field order.
+     */
+    @NotNull
+    Set<K> keysBetween(String name, @Nullable Comparable from, @Nullable Comparable to);
+
+    boolean containsValue(V value);
+}
@@ -0,0 +1,197 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.api.map;
+
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.BiFunction;
+
+/**
+ * An iterator which walks a KeyValueStore one segment at a time.  Only the keys of the current
+ * segment are held, and each value is looked up and decoded as the iterator reaches it, so
+ * iterating a large store doesn't copy it.  Keys removed after their segment was read are skipped.
+ * <p>
+ * A store with one segment should override keySetIterator() with a lazy iterator of its own, as
+ * reading its only segment copies every key.  A store wrapping another can pass the underlying
+ * store's keySetIterator() as the keys to look up instead of walking the segments.
+ */
+public class SegmentIterator<K, V, T> implements Iterator<T> {
+    private final KeyValueStore<K, ?, V> kvStore;
+    @NotNull
+    private final BiFunction<K, V, T> mapper;
+    private final boolean needsValue;
+    private final int endSegment;
+    private final List<K> keys = new ArrayList<>();
+    // the keys to look up, rather than those of each segment, if not null.
+    @Nullable
+    private final Iterator<K> keySource;
+    private int segment;
+    private int index = 0;
+    private T next;
+    private K nextKey;
+    private K lastKey;
+
+    SegmentIterator(KeyValueStore<K, ?, V> kvStore, @NotNull BiFunction<K, V, T> mapper, boolean needsValue) {
+        this(kvStore, mapper, needsValue, 0, kvStore.segments());
+    }
+
+    SegmentIterator(KeyValueStore<K, ?, V> kvStore, @NotNull BiFunction<K, V, T> mapper, boolean needsValue,
+                    int fromSegment, int toSegment) {
+        this.kvStore = kvStore;
+        this.mapper = mapper;
+        this.needsValue = needsValue;
+        this.segment = fromSegment - 1;
+        this.endSegment = toSegment;
+        this.keySource = null;
+    }
+
+    SegmentIterator(KeyValueStore<K, ?, V> kvStore, @NotNull BiFunction<K, V, T> mapper, boolean needsValue,
+                    @NotNull Iterator<K> keySource) {
+        this.kvStore = kvStore;
+        this.mapper = mapper;
+        this.needsValue = needsValue;
+        this.segment = -1;
+        this.endSegment = 0;
+        this.keySource = keySource;
+    }
+
+    @NotNull
+    public static <K, V> Iterator<Map.Entry<K, V>> entries(KeyValueStore<K, ?, V> kvStore) {
+        return new SegmentIterator<>(kvStore, (k, v) -> new SimpleEntry<>(k, v), true);
+    }
+
+    @NotNull
+    public static <K, V> Iterator<Map.Entry<K, V>> entries(KeyValueStore<K, ?, V> kvStore, int segment) {
+        return new SegmentIterator<>(kvStore, (k, v) -> new SimpleEntry<>(k, v), true, segment, segment + 1);
+    }
+
+    /**
+     * @return the entries of the store for the keys given, skipping those it doesn't have.
+     */
+    @NotNull
+    public static <K, V> Iterator<Map.Entry<K, V>> entries(KeyValueStore<K, ?, V> kvStore, @NotNull Iterator<K> keys) {
+        return new SegmentIterator<>(kvStore, (k, v) -> new SimpleEntry<>(k, v), true, keys);
+    }
+
+    @NotNull
+    public static <K> Iterator<K> keys(KeyValueStore<K, ?, ?> kvStore) {
+        return new SegmentIterator<>(kvStore, (k, v) -> k, false);
+    }
+
+    /**
+     * @return the keys given which the store has.
+     */
+    @NotNull
+    public static <K> Iterator<K> keys(KeyValueStore<K, ?, ?> kvStore, @NotNull Iterator<K> keys) {
+        return new SegmentIterator<>(kvStore, (k, v) -> k, false, keys);
+    }
+
+    /**
+     * @return the values of the entries, removing an entry when its value is removed.
+     */
+    @NotNull
+    public static <K, V> Iterator<V> values(@NotNull Iterator<Map.Entry<K, V>> entries) {
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public V next() {
+                return entries.next().getValue();
+            }
+
+            @Override
+            public void remove() {
+                entries.remove();
+            }
+        };
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            K key;
+            if (keySource != null) {
+                if (!keySource.hasNext())
+                    return false;
+                key = keySource.next();
+                // the keys given may be of another store, or out of date.
+                if (!needsValue && !kvStore.containsKey(key))
+                    continue;
+            } else {
+                if (index >= keys.size() && !nextSegment())
+                    return false;
+                key = keys.get(index);
+                // release the key as we go.
+                keys.set(index++, null);
+            }
+            if (needsValue) {
+                V value = kvStore.get(key);
+                if (value == null)
+                    continue;
+                next = mapper.apply(key, value);
+            } else {
+                next = mapper.apply(key, null);
+            }
+            nextKey = key;
+        }
+        return true;
+    }
+
+    private boolean nextSegment() {
+        keys.clear();
+        index = 0;
+        try {
+            while (keys.isEmpty()) {
+                if (++segment >= endSegment)
+                    return false;
+                kvStore.keysFor(segment, keys::add);
+            }
+        } catch (InvalidSubscriberException e) {
+            throw new AssertionError(e);
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        T t = next;
+        next = null;
+        lastKey = nextKey;
+        return t;
+    }
+
+    @Override
+    public void remove() {
+        if (lastKey == null)
+            throw new IllegalStateException();
+        kvStore.remove(lastKey);
+        lastKey = null;
+    }
+}
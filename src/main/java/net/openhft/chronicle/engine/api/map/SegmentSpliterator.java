@@ -0,0 +1,125 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.api.map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * A Spliterator over a range of segments of a KeyValueStore.  It splits by handing half of the
+ * segments not yet started to a new Spliterator, and once down to one segment, by splitting that
+ * segment's own Spliterator, so a parallel stream can scan the segments on different threads.
+ */
+public class SegmentSpliterator<T> implements Spliterator<T> {
+    public static final int CHARACTERISTICS = CONCURRENT | DISTINCT | NONNULL;
+
+    @NotNull
+    private final IntFunction<Spliterator<T>> segmentSpliterator;
+    private final long sizePerSegment;
+    private final int endSegment;
+    private int segment;
+    @Nullable
+    private Spliterator<T> current;
+
+    public SegmentSpliterator(@NotNull IntFunction<Spliterator<T>> segmentSpliterator, long sizePerSegment,
+                              int fromSegment, int toSegment) {
+        this.segmentSpliterator = segmentSpliterator;
+        this.sizePerSegment = sizePerSegment;
+        this.segment = fromSegment;
+        this.endSegment = toSegment;
+    }
+
+    /**
+     * @return a Spliterator which reads each segment of the store with a {@link SegmentIterator},
+     * or for a store of one segment, batches its entrySetIterator().
+     */
+    @NotNull
+    public static <K, V> Spliterator<Map.Entry<K, V>> entries(@NotNull KeyValueStore<K, ?, V> kvStore) {
+        int segments = kvStore.segments();
+        if (segments == 1)
+            return Spliterators.spliterator(kvStore.entrySetIterator(), kvStore.longSize(), CHARACTERISTICS);
+        long sizePerSegment = kvStore.longSize() / segments;
+        return new SegmentSpliterator<>(
+                segment -> Spliterators.spliterator(SegmentIterator.entries(kvStore, segment), sizePerSegment, CHARACTERISTICS),
+                sizePerSegment, 0, segments);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (true) {
+            if (current == null) {
+                if (segment >= endSegment)
+                    return false;
+                current = segmentSpliterator.apply(segment++);
+            }
+            if (current.tryAdvance(action))
+                return true;
+            current = null;
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super T> action) {
+        if (current != null) {
+            current.forEachRemaining(action);
+            current = null;
+        }
+        while (segment < endSegment)
+            segmentSpliterator.apply(segment++).forEachRemaining(action);
+    }
+
+    @Nullable
+    @Override
+    public Spliterator<T> trySplit() {
+        int remaining = endSegment - segment;
+        if (remaining > 1) {
+            int mid = segment + remaining / 2;
+            Spliterator<T> prefix = new SegmentSpliterator<>(segmentSpliterator, sizePerSegment, segment, mid);
+            segment = mid;
+            return prefix;
+        }
+        if (current == null) {
+            if (remaining < 1)
+                return null;
+            current = segmentSpliterator.apply(segment++);
+        }
+        return current.trySplit();
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = sizePerSegment * (endSegment - segment);
+        if (current != null) {
+            long currentSize = current.estimateSize();
+            if (currentSize == Long.MAX_VALUE)
+                return Long.MAX_VALUE;
+            size += currentSize;
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return CHARACTERISTICS;
+    }
+}
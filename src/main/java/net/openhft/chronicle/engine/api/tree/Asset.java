@@ -139,5 +139,13 @@ public interface Asset extends Closeable {
 
     boolean hasChildren();
 
+    /**
+     * @return a number which changes after a child is added or removed, so a lookup of a child can be
+     * cached until it changes, or -1 if this isn't tracked.
+     */
+    default int childrenVersion() {
+        return -1;
+    }
+
     void forEachChild(ThrowingAcceptor<Asset, InvalidSubscriberException> child) throws InvalidSubscriberException;
 }
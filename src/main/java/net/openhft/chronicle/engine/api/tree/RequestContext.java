@@ -31,8 +31,13 @@ import net.openhft.chronicle.wire.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 
 import static net.openhft.chronicle.core.pool.ClassAliasPool.CLASS_ALIASES;
 
@@ -64,6 +69,35 @@ public class RequestContext implements Cloneable {
     private double averageValueSize;
     private long entries;
     private Boolean recurse;
+    private long memoryMapThreshold;
+    private long commitDelayMillis;
+    @Nullable
+    private Boolean fsync;
+    private long contentCacheBytes;
+    private long nearCacheSize;
+    @Nullable
+    private String nearCacheEviction;
+    private long writeBehindMillis;
+    private long writeBehindSize;
+    private long ttl;
+    private long maxEntries;
+    private long maxBytes;
+    @Nullable
+    private String eviction;
+    @Nullable
+    private String compression;
+    private long compressionThreshold;
+    private boolean marshalFields;
+    private long dispatchQueue;
+    @Nullable
+    private String overflow;
+    private boolean conflate;
+    @Nullable
+    private Set<String> keys;
+    @Nullable
+    private String keyPattern;
+    @Nullable
+    private Predicate valueFilter;
 
     private RequestContext() {
     }
@@ -77,6 +111,15 @@ public class RequestContext implements Cloneable {
         CLASS_ALIASES.addAlias(type, aliases);
     }
 
+    @NotNull
+    private static String urlDecode(@NotNull String text) {
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
     @NotNull
     public static RequestContext requestContext() {
         return new RequestContext();
@@ -114,6 +157,30 @@ public class RequestContext implements Cloneable {
         parser.register(() -> "putReturnsNull", v -> v.bool(b -> this.putReturnsNull = b));
         parser.register(() -> "removeReturnsNull", v -> v.bool(b -> this.removeReturnsNull = b));
         parser.register(() -> "basePath", v -> v.text((Consumer<String>) x -> this.basePath = x));
+        parser.register(() -> "memoryMapThreshold", v -> v.text((Consumer<String>) x -> this.memoryMapThreshold = Long.parseLong(x)));
+        parser.register(() -> "commitDelayMillis", v -> v.text((Consumer<String>) x -> this.commitDelayMillis = Long.parseLong(x)));
+        parser.register(() -> "fsync", v -> v.bool(b -> this.fsync = b));
+        parser.register(() -> "contentCacheBytes", v -> v.text((Consumer<String>) x -> this.contentCacheBytes = Long.parseLong(x)));
+        parser.register(() -> "nearCacheSize", v -> v.text((Consumer<String>) x -> this.nearCacheSize = Long.parseLong(x)));
+        parser.register(() -> "nearCacheEviction", v -> v.text((Consumer<String>) x -> this.nearCacheEviction = x));
+        parser.register(() -> "writeBehindMillis", v -> v.text((Consumer<String>) x -> this.writeBehindMillis = Long.parseLong(x)));
+        parser.register(() -> "writeBehindSize", v -> v.text((Consumer<String>) x -> this.writeBehindSize = Long.parseLong(x)));
+        parser.register(() -> "ttl", v -> v.text((Consumer<String>) x -> this.ttl = Long.parseLong(x)));
+        parser.register(() -> "maxEntries", v -> v.text((Consumer<String>) x -> this.maxEntries = Long.parseLong(x)));
+        parser.register(() -> "maxBytes", v -> v.text((Consumer<String>) x -> this.maxBytes = Long.parseLong(x)));
+        parser.register(() -> "eviction", v -> v.text((Consumer<String>) x -> this.eviction = x));
+        parser.register(() -> "compression", v -> v.text((Consumer<String>) x -> this.compression = x));
+        parser.register(() -> "compressionThreshold", v -> v.text((Consumer<String>) x -> this.compressionThreshold = Long.parseLong(x)));
+        parser.register(() -> "marshalFields", v -> v.bool(b -> this.marshalFields = b));
+        parser.register(() -> "dispatchQueue", v -> v.text((Consumer<String>) x -> this.dispatchQueue = Long.parseLong(x)));
+        parser.register(() -> "overflow", v -> v.text((Consumer<String>) x -> this.overflow = x));
+        parser.register(() -> "conflate", v -> v.bool(b -> this.conflate = b));
+        parser.register(() -> "keys", v -> v.text((Consumer<String>) x -> {
+            this.keys = new LinkedHashSet<>();
+            for (String key : x.split(","))
+                this.keys.add(urlDecode(key));
+        }));
+        parser.register(() -> "keyPattern", v -> v.text((Consumer<String>) x -> this.keyPattern = urlDecode(x)));
         parser.register(() -> "viewType", v -> v.typeLiteral(this::lookupType, x -> this.viewType = x));
         parser.register(() -> "topicType", v -> v.typeLiteral(this::lookupType, x -> this.type = x));
         parser.register(() -> "keyType", v -> v.typeLiteral(this::lookupType, x -> this.type = x));
@@ -263,6 +330,288 @@ public class RequestContext implements Cloneable {
         return this;
     }
 
+    /**
+     * @return the size in bytes at or above which a file based store memory maps values, or 0 to never map.
+     */
+    public long memoryMapThreshold() {
+        return memoryMapThreshold;
+    }
+
+    @NotNull
+    public RequestContext memoryMapThreshold(long memoryMapThreshold) {
+        this.memoryMapThreshold = memoryMapThreshold;
+        return this;
+    }
+
+    /**
+     * @return how long a file based store may hold writes before flushing them together, or 0 to write through.
+     */
+    public long commitDelayMillis() {
+        return commitDelayMillis;
+    }
+
+    @NotNull
+    public RequestContext commitDelayMillis(long commitDelayMillis) {
+        this.commitDelayMillis = commitDelayMillis;
+        return this;
+    }
+
+    /**
+     * @return whether a file based store forces each write to disk before it is made visible.
+     */
+    @Nullable
+    public Boolean fsync() {
+        return fsync;
+    }
+
+    @NotNull
+    public RequestContext fsync(boolean fsync) {
+        this.fsync = fsync;
+        return this;
+    }
+
+    /**
+     * @return the bytes of recently read values a file based store may keep on heap, or 0 for the default.
+     */
+    public long contentCacheBytes() {
+        return contentCacheBytes;
+    }
+
+    @NotNull
+    public RequestContext contentCacheBytes(long contentCacheBytes) {
+        this.contentCacheBytes = contentCacheBytes;
+        return this;
+    }
+
+    /**
+     * @return the number of values a map caches on heap in front of its store, or 0 for no cache.
+     */
+    public long nearCacheSize() {
+        return nearCacheSize;
+    }
+
+    @NotNull
+    public RequestContext nearCacheSize(long nearCacheSize) {
+        this.nearCacheSize = nearCacheSize;
+        return this;
+    }
+
+    /**
+     * @return how a near cache chooses the entry to evict, "lru" or "clock", or null for lru.
+     */
+    @Nullable
+    public String nearCacheEviction() {
+        return nearCacheEviction;
+    }
+
+    @NotNull
+    public RequestContext nearCacheEviction(String nearCacheEviction) {
+        this.nearCacheEviction = nearCacheEviction;
+        return this;
+    }
+
+    /**
+     * @return how often a map's writes are flushed to its store in the background, or 0 to write through.
+     */
+    public long writeBehindMillis() {
+        return writeBehindMillis;
+    }
+
+    @NotNull
+    public RequestContext writeBehindMillis(long writeBehindMillis) {
+        this.writeBehindMillis = writeBehindMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of keys which can wait to be written behind before writers block, or 0 for the default.
+     */
+    public long writeBehindSize() {
+        return writeBehindSize;
+    }
+
+    @NotNull
+    public RequestContext writeBehindSize(long writeBehindSize) {
+        this.writeBehindSize = writeBehindSize;
+        return this;
+    }
+
+    /**
+     * @return how long in milliseconds a map's entries live after they were last written, or 0 if they don't expire.
+     */
+    public long ttl() {
+        return ttl;
+    }
+
+    @NotNull
+    public RequestContext ttl(long ttl) {
+        this.ttl = ttl;
+        return this;
+    }
+
+    /**
+     * @return the most entries a map can hold before some are evicted, or 0 for no limit.
+     */
+    public long maxEntries() {
+        return maxEntries;
+    }
+
+    @NotNull
+    public RequestContext maxEntries(long maxEntries) {
+        this.maxEntries = maxEntries;
+        return this;
+    }
+
+    /**
+     * @return the estimated size of the keys and values a map can hold before some are evicted, or 0 for no limit.
+     */
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    @NotNull
+    public RequestContext maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @return how entries are chosen for eviction, "lru" or "tinylfu", or null for the default.
+     */
+    @Nullable
+    public String eviction() {
+        return eviction;
+    }
+
+    @NotNull
+    public RequestContext eviction(String eviction) {
+        this.eviction = eviction;
+        return this;
+    }
+
+    /**
+     * @return how values serialized to bytes are compressed, "deflate" or "lz4", or null for none.
+     */
+    @Nullable
+    public String compression() {
+        return compression;
+    }
+
+    @NotNull
+    public RequestContext compression(String compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @return the smallest serialized value which is compressed, or 0 for the default.
+     */
+    public long compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    @NotNull
+    public RequestContext compressionThreshold(long compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    /**
+     * @return whether Marshallable values annotated {@link net.openhft.chronicle.engine.map.MarshalFields} are
+     * stored as their fields in binary rather than with the wireType.
+     */
+    public boolean marshalFields() {
+        return marshalFields;
+    }
+
+    @NotNull
+    public RequestContext marshalFields(boolean marshalFields) {
+        this.marshalFields = marshalFields;
+        return this;
+    }
+
+    /**
+     * @return the capacity of a queue each subscriber is notified from by a dispatcher thread, or 0 to notify on the writer's thread.
+     */
+    public long dispatchQueue() {
+        return dispatchQueue;
+    }
+
+    @NotNull
+    public RequestContext dispatchQueue(long dispatchQueue) {
+        this.dispatchQueue = dispatchQueue;
+        return this;
+    }
+
+    /**
+     * @return what happens when a dispatch queue is full, "block", "dropOldest", "conflate" or "disconnect", or null to drop the oldest.
+     */
+    @Nullable
+    public String overflow() {
+        return overflow;
+    }
+
+    @NotNull
+    public RequestContext overflow(String overflow) {
+        this.overflow = overflow;
+        return this;
+    }
+
+    /**
+     * @return whether a subscriber is only sent the latest of the events pending for each key.
+     */
+    public boolean conflate() {
+        return conflate;
+    }
+
+    @NotNull
+    public RequestContext conflate(boolean conflate) {
+        this.conflate = conflate;
+        return this;
+    }
+
+    /**
+     * @return the only keys a subscriber is sent events for, or null for all of them.
+     */
+    @Nullable
+    public Set<String> keys() {
+        return keys;
+    }
+
+    @NotNull
+    public RequestContext keys(Set<String> keys) {
+        this.keys = keys;
+        return this;
+    }
+
+    /**
+     * @return a glob the keys a subscriber is sent events for must match e.g. "EUR*", or null for all keys.
+     */
+    @Nullable
+    public String keyPattern() {
+        return keyPattern;
+    }
+
+    @NotNull
+    public RequestContext keyPattern(String keyPattern) {
+        this.keyPattern = keyPattern;
+        return this;
+    }
+
+    /**
+     * @return a test of the values a subscriber is sent events for, or null for all values.
+     */
+    @Nullable
+    public <V> Predicate<V> valueFilter() {
+        return valueFilter;
+    }
+
+    @NotNull
+    public RequestContext valueFilter(Predicate<?> valueFilter) {
+        this.valueFilter = valueFilter;
+        return this;
+    }
+
     @NotNull
     public RequestContext name(String name) {
         this.name = name;
@@ -325,6 +674,27 @@ public class RequestContext implements Cloneable {
                 ", averageValueSize=" + averageValueSize +
                 ", entries=" + entries +
                 ", recurse=" + recurse +
+                ", memoryMapThreshold=" + memoryMapThreshold +
+                ", commitDelayMillis=" + commitDelayMillis +
+                ", fsync=" + fsync +
+                ", contentCacheBytes=" + contentCacheBytes +
+                ", nearCacheSize=" + nearCacheSize +
+                ", nearCacheEviction=" + nearCacheEviction +
+                ", writeBehindMillis=" + writeBehindMillis +
+                ", writeBehindSize=" + writeBehindSize +
+                ", ttl=" + ttl +
+                ", maxEntries=" + maxEntries +
+                ", maxBytes=" + maxBytes +
+                ", eviction=" + eviction +
+                ", compression=" + compression +
+                ", compressionThreshold=" + compressionThreshold +
+                ", marshalFields=" + marshalFields +
+                ", dispatchQueue=" + dispatchQueue +
+                ", overflow=" + overflow +
+                ", conflate=" + conflate +
+                ", keys=" + keys +
+                ", keyPattern=" + keyPattern +
+                ", valueFilter=" + valueFilter +
                 '}';
     }
 
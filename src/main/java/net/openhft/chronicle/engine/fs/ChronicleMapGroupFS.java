@@ -19,6 +19,8 @@ package net.openhft.chronicle.engine.fs;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.tree.*;
 import net.openhft.chronicle.engine.map.ChronicleMapKeyValueStore;
+import net.openhft.chronicle.engine.map.ValueCodec;
+import net.openhft.chronicle.engine.map.WriteBehindKeyValueStore;
 import net.openhft.chronicle.engine.tree.VanillaAsset;
 import net.openhft.chronicle.wire.Marshallable;
 import net.openhft.chronicle.wire.WireIn;
@@ -29,10 +31,10 @@ import org.jetbrains.annotations.NotNull;
  * Created by peter on 12/06/15.
  */
 public class ChronicleMapGroupFS implements Marshallable, MountPoint, LeafViewFactory<KeyValueStore> {
-    String spec, name, cluster;
-    int averageValueSize;
+    String spec, name, cluster, compression;
+    int averageValueSize, compressionThreshold;
     Boolean putReturnsNull, removeReturnsNull;
-    private long maxEntries;
+    private long maxEntries, writeBehindMillis;
     private String baseDir;
 
     @Override
@@ -53,7 +55,10 @@ public class ChronicleMapGroupFS implements Marshallable, MountPoint, LeafViewFa
                 .read(() -> "maxEntries").int64(e -> maxEntries = e)
                 .read(() -> "averageValueSize").int32(e -> averageValueSize = e)
                 .read(() -> "putReturnsNull").bool(e -> putReturnsNull = e)
-                .read(() -> "removeReturnsNull").bool(e -> removeReturnsNull = e);
+                .read(() -> "removeReturnsNull").bool(e -> removeReturnsNull = e)
+                .read(() -> "compression").text(s -> compression = s)
+                .read(() -> "compressionThreshold").int32(e -> compressionThreshold = e)
+                .read(() -> "writeBehindMillis").int64(e -> writeBehindMillis = e);
     }
 
     @Override
@@ -64,7 +69,10 @@ public class ChronicleMapGroupFS implements Marshallable, MountPoint, LeafViewFa
                 .write(() -> "maxEntries").int64(maxEntries)
                 .write(() -> "averageValueSize").int32(averageValueSize)
                 .write(() -> "putReturnsNull").bool(putReturnsNull)
-                .write(() -> "removeReturnsNull").bool(removeReturnsNull);
+                .write(() -> "removeReturnsNull").bool(removeReturnsNull)
+                .write(() -> "compression").text(compression)
+                .write(() -> "compressionThreshold").int32(compressionThreshold)
+                .write(() -> "writeBehindMillis").int64(writeBehindMillis);
     }
 
     @Override
@@ -73,6 +81,8 @@ public class ChronicleMapGroupFS implements Marshallable, MountPoint, LeafViewFa
         RequestContext context = RequestContext.requestContext(name).basePath(baseDir + "/" + spec);
         Asset asset = assetTree.acquireAsset(context);
         ((VanillaAsset) asset).enableTranslatingValuesToBytesStore();
+        if (compression != null && !compression.isEmpty())
+            asset.registerView(ValueCodec.class, new ValueCodec(compression, compressionThreshold));
         asset.addLeafRule(KeyValueStore.class, "use Chronicle Map", this);
     }
 
@@ -80,7 +90,10 @@ public class ChronicleMapGroupFS implements Marshallable, MountPoint, LeafViewFa
     @NotNull
     @Override
     public KeyValueStore create(final RequestContext context, final Asset asset) throws AssetNotFoundException {
-        return new ChronicleMapKeyValueStore(context, asset);
+        KeyValueStore kvStore = new ChronicleMapKeyValueStore(context, asset);
+        return writeBehindMillis > 0
+                ? new WriteBehindKeyValueStore<>(context.clone().writeBehindMillis(writeBehindMillis), asset, kvStore, true)
+                : kvStore;
     }
 
     /*@NotNull
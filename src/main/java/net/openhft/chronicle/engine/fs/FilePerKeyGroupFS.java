@@ -21,6 +21,7 @@ import net.openhft.chronicle.engine.api.tree.Asset;
 import net.openhft.chronicle.engine.api.tree.AssetTree;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
 import net.openhft.chronicle.engine.map.FilePerKeyValueStore;
+import net.openhft.chronicle.engine.map.WriteBehindKeyValueStore;
 import net.openhft.chronicle.engine.tree.VanillaAsset;
 import net.openhft.chronicle.wire.Marshallable;
 import net.openhft.chronicle.wire.WireIn;
@@ -35,6 +36,7 @@ public class FilePerKeyGroupFS implements Marshallable, MountPoint {
     String spec, name;
     Class valueType;
     boolean recurse;
+    long writeBehindMillis;
 
     @Override
     public String spec() {
@@ -51,7 +53,8 @@ public class FilePerKeyGroupFS implements Marshallable, MountPoint {
         wire.read(() -> "spec").text(s -> spec = s)
                 .read(() -> "name").text(s -> name = s)
                 .read(() -> "valueType").typeLiteral(CLASS_ALIASES::forName, c -> valueType = c)
-                .read(() -> "recurse").bool(b -> recurse = b);
+                .read(() -> "recurse").bool(b -> recurse = b)
+                .read(() -> "writeBehindMillis").int64(e -> writeBehindMillis = e);
     }
 
     @Override
@@ -59,7 +62,8 @@ public class FilePerKeyGroupFS implements Marshallable, MountPoint {
         wire.write(() -> "spec").text(spec)
                 .write(() -> "name").text(name)
                 .write(() -> "valueType").typeLiteral(CLASS_ALIASES.nameFor(valueType))
-                .write(() -> "recurse").bool(recurse);
+                .write(() -> "recurse").bool(recurse)
+                .write(() -> "writeBehindMillis").int64(writeBehindMillis);
     }
 
     @Override
@@ -67,6 +71,10 @@ public class FilePerKeyGroupFS implements Marshallable, MountPoint {
         RequestContext context = RequestContext.requestContext(name).basePath(baseDir + "/" + spec).recurse(this.recurse).keyType(String.class);
         Asset asset = assetTree.acquireAsset(context);
         ((VanillaAsset) asset).enableTranslatingValuesToBytesStore();
-        asset.registerView(KeyValueStore.class, new FilePerKeyValueStore(context, asset));
+        KeyValueStore kvStore = new FilePerKeyValueStore(context, asset);
+        // the subscribers are notified as writes are made, not as the files are written.
+        if (writeBehindMillis > 0)
+            kvStore = new WriteBehindKeyValueStore<>(context.clone().writeBehindMillis(writeBehindMillis), asset, kvStore, true);
+        asset.registerView(KeyValueStore.class, kvStore);
     }
 }
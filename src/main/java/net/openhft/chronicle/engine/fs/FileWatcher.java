@@ -0,0 +1,57 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.fs;
+
+import net.openhft.chronicle.engine.api.tree.View;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.Map;
+
+/**
+ * One watcher shared by every directory mounted in a tree, acquired from the root asset.
+ */
+public interface FileWatcher extends View, Closeable {
+    /**
+     * Watch a directory, and optionally every directory under it, until the returned registration is closed.
+     *
+     * @param dir      to watch
+     * @param recurse  whether sub directories, including those created later, are watched
+     * @param listener to notify of changes
+     * @return the registration to close to stop watching.
+     */
+    @NotNull
+    Closeable register(@NotNull Path dir, boolean recurse, @NotNull FileChangeListener listener);
+
+    /**
+     * Changes to the files watched, a burst of changes to one file is passed as its last change.
+     * Calls for one registration are never concurrent.
+     */
+    interface FileChangeListener {
+        /**
+         * @param changes the latest kind of change by file path, in the order first seen.
+         */
+        void onChanges(@NotNull Map<Path, WatchEvent.Kind<?>> changes);
+
+        /**
+         * Events have been lost and the directory should be scanned again.
+         */
+        void onOverflow();
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.fs;
+
+import com.sun.nio.file.SensitivityWatchEventModifier;
+import net.openhft.chronicle.bytes.IORuntimeException;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.WatchEvent.Kind;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * A single {@link WatchService} and polling thread for every directory registered. Changes are
+ * collected per registration for a short period, so a burst of events for a file is passed as one
+ * change, and are passed to the listener in batches from a small pool of threads.
+ * <p>
+ * The threads are only started when the first directory is registered.
+ */
+public class VanillaFileWatcher implements FileWatcher {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VanillaFileWatcher.class);
+    static final long DEBOUNCE_MILLIS = 20;
+    private static final Kind[] KINDS = {
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY};
+
+    private final String name;
+    private final Map<WatchKey, WatchedDir> watchedDirs = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread poller;
+    private ScheduledExecutorService dispatcher;
+    private volatile boolean closed = false;
+
+    public VanillaFileWatcher(RequestContext context, @NotNull Asset asset) {
+        this(asset.fullName());
+    }
+
+    public VanillaFileWatcher(String name) {
+        this.name = name;
+    }
+
+    @NotNull
+    @Override
+    public Closeable register(@NotNull Path dir, boolean recurse, @NotNull FileChangeListener listener) {
+        Registration registration = new Registration(recurse, listener);
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("closed");
+            start();
+        }
+        registration.watch(dir);
+        return registration;
+    }
+
+    private void start() {
+        if (watchService != null)
+            return;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            throw new IORuntimeException(e);
+        }
+        AtomicInteger count = new AtomicInteger();
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+        dispatcher = Executors.newScheduledThreadPool(threads, r -> {
+            Thread t = new Thread(r, name + "-file-watcher-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        poller = new Thread(this::poll, name + "-file-watcher");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    private void poll() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.take();
+                try {
+                    WatchedDir watchedDir = watchedDirs.get(key);
+                    if (watchedDir != null)
+                        watchedDir.registration.onEvents(watchedDir.dir, key.pollEvents());
+                } finally {
+                    if (!key.reset())
+                        watchedDirs.remove(key);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed.
+        } catch (Throwable t) {
+            if (!closed)
+                LOGGER.error("File watcher stopped", t);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (watchService == null)
+            return;
+        poller.interrupt();
+        dispatcher.shutdown();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close watch service", e);
+        }
+    }
+
+    static final class WatchedDir {
+        final Path dir;
+        final Registration registration;
+
+        WatchedDir(Path dir, Registration registration) {
+            this.dir = dir;
+            this.registration = registration;
+        }
+    }
+
+    class Registration implements Closeable {
+        private final boolean recurse;
+        private final FileChangeListener listener;
+        private final Set<WatchKey> keys = ConcurrentHashMap.newKeySet();
+        // guarded by this.
+        private Map<Path, Kind<?>> pending = new LinkedHashMap<>();
+        private boolean scheduled = false, overflow = false;
+        private volatile boolean cancelled = false;
+
+        Registration(boolean recurse, FileChangeListener listener) {
+            this.recurse = recurse;
+            this.listener = listener;
+        }
+
+        void watch(@NotNull Path dir) {
+            try {
+                if (!recurse) {
+                    watch0(dir);
+                    return;
+                }
+                try (Stream<Path> dirs = Files.walk(dir)) {
+                    dirs.filter(Files::isDirectory).forEach(this::watch0);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                // removed in the meantime.
+                LOGGER.debug("Unable to watch " + dir, e);
+            }
+        }
+
+        private void watch0(@NotNull Path dir) {
+            if (cancelled)
+                return;
+            try {
+                WatchKey key = dir.register(watchService, KINDS, SensitivityWatchEventModifier.HIGH);
+                keys.add(key);
+                watchedDirs.put(key, new WatchedDir(dir, this));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void onEvents(@NotNull Path dir, @NotNull List<WatchEvent<?>> events) {
+            List<Path> newDirs = null;
+            synchronized (this) {
+                for (WatchEvent<?> event : events) {
+                    Kind<?> kind = event.kind();
+                    if (kind == StandardWatchEventKinds.OVERFLOW) {
+                        overflow = true;
+                        continue;
+                    }
+                    Path path = dir.resolve((Path) event.context());
+                    if (recurse && kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                        if (newDirs == null) newDirs = new ArrayList<>();
+                        newDirs.add(path);
+                    }
+                    // keep the order first seen but the latest kind.
+                    pending.put(path, kind);
+                }
+                schedule();
+            }
+            // files created before the directory was watched are picked up by the listener's rescan.
+            if (newDirs != null) {
+                newDirs.forEach(this::watch);
+                synchronized (this) {
+                    overflow = true;
+                    schedule();
+                }
+            }
+        }
+
+        private void schedule() {
+            if (scheduled || (pending.isEmpty() && !overflow) || cancelled)
+                return;
+            scheduled = true;
+            try {
+                dispatcher.schedule(this::dispatch, DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed.
+            }
+        }
+
+        private void dispatch() {
+            Map<Path, Kind<?>> changes;
+            boolean overflow;
+            synchronized (this) {
+                changes = pending;
+                pending = new LinkedHashMap<>();
+                overflow = this.overflow;
+                this.overflow = false;
+            }
+            try {
+                if (overflow)
+                    listener.onOverflow();
+                if (!changes.isEmpty())
+                    listener.onChanges(changes);
+            } catch (Throwable t) {
+                LOGGER.warn("Failed to process changes to " + changes.keySet(), t);
+            } finally {
+                synchronized (this) {
+                    scheduled = false;
+                    schedule();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            cancelled = true;
+            for (WatchKey key : keys) {
+                key.cancel();
+                watchedDirs.remove(key);
+            }
+        }
+    }
+}
@@ -16,10 +16,12 @@
 
 package net.openhft.chronicle.engine.map;
 
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication;
 import net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntry;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.SecondaryIndex;
 import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
 import net.openhft.chronicle.engine.api.tree.Asset;
@@ -27,8 +29,11 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
 
 /**
  * Created by peter on 22/05/15.
@@ -74,6 +79,11 @@ public class AbstractKeyValueStore<K, MV, V> implements KeyValueStore<K, MV, V>
         return kvStore.entrySetIterator();
     }
 
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        return kvStore.entrySetSpliterator();
+    }
+
     @Override
     public long longSize() {
         return kvStore.longSize();
@@ -89,6 +99,11 @@ public class AbstractKeyValueStore<K, MV, V> implements KeyValueStore<K, MV, V>
         kvStore.entriesFor(segment, kvConsumer);
     }
 
+    @Override
+    public void entriesForTransient(int segment, SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        kvStore.entriesForTransient(segment, kvConsumer);
+    }
+
     @Override
     public Asset asset() {
         return kvStore.asset();
@@ -126,6 +141,21 @@ public class AbstractKeyValueStore<K, MV, V> implements KeyValueStore<K, MV, V>
         return kvStore.get(key);
     }
 
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        return kvStore.getAll(keys);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        kvStore.putAll(entries);
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        kvStore.removeAll(keys);
+    }
+
     @Override
     public boolean containsKey(K key) {
         return kvStore.containsKey(key);
@@ -166,6 +196,16 @@ public class AbstractKeyValueStore<K, MV, V> implements KeyValueStore<K, MV, V>
         return kvStore.putIfAbsent(key, value);
     }
 
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        return kvStore.compute(key, function);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return kvStore.merge(key, value, function);
+    }
+
     @Override
     public boolean keyedView() {
         return kvStore.keyedView();
@@ -173,7 +213,8 @@ public class AbstractKeyValueStore<K, MV, V> implements KeyValueStore<K, MV, V>
 
     @Override
     public boolean containsValue(final MV value) {
-        throw new UnsupportedOperationException("todo");
+        SecondaryIndex<K, V> index = asset.getView(SecondaryIndex.class);
+        return index == null ? kvStore.containsValue(value) : index.containsValue((V) value);
     }
 
     @Override
@@ -0,0 +1,414 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.pubsub.ISubscriber;
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.pubsub.Subscriber;
+import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
+import net.openhft.chronicle.engine.api.pubsub.TopicSubscriber;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Delivers events to a subscriber from a bounded queue drained by the tree's
+ * {@link SubscriptionDispatcher}, so a writer only pays to enqueue the event, however slow the
+ * subscriber is. Events are delivered in order, by one thread at a time.
+ * <p>
+ * Chosen with {@link RequestContext#dispatchQueue()} as the capacity, and when the queue is full
+ * {@link RequestContext#overflow()} decides whether the oldest event is dropped, the default, a
+ * pending event for the same key is replaced, the subscriber is disconnected, or the writer blocks.
+ * A writer on a dispatcher thread never blocks, as it could be holding up the thread which would
+ * drain the queue, and drops the oldest event instead.
+ * <p>
+ * The queue starts small and doubles up to its capacity as it fills. Events queued as the
+ * subscriber's bootstrap are never dropped for lack of room, the queue holds them on top of its
+ * capacity until they are delivered.
+ * <p>
+ * With {@link RequestContext#conflate()} only the latest pending event for each key is kept, in
+ * the position of the first, so a slow subscriber sees the current state with a queue no larger
+ * than the number of keys.
+ */
+public class AsyncSubscriber<K, V> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncSubscriber.class);
+    private static final int BATCH = 256;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_LENGTH = 1 << 30;
+
+    private final SubscriptionDispatcher dispatcher;
+    private final ISubscriber subscriber;
+    private final Kind kind;
+    private final SubscriptionConsumer<MapEvent<K, V>> delivery;
+    private final Overflow overflow;
+    private final Runnable onDisconnect;
+    private final int capacity;
+    private MapEvent<K, V>[] events;
+    private long[] enqueuedNanos;
+    // the latest pending event by key when conflating, otherwise null.
+    @Nullable
+    private final LinkedHashMap<Object, Pending<K, V>> latest;
+    // the sequence of the latest queued event by key when overflow conflates, otherwise null.
+    @Nullable
+    private final Map<Object, Long> sequences;
+    // only used by the one thread draining at a time.
+    private final MapEvent<K, V>[] batch;
+    @Nullable
+    private SubscriptionFilter<K, V> filter;
+    private int head, size;
+    // the sequence of the event at the head, and one past the last bootstrap event queued.
+    private long headSequence, bootstrapEnd;
+    private boolean scheduled, closed;
+    private long delivered, dropped, conflated;
+
+    private AsyncSubscriber(@NotNull RequestContext rc, @NotNull SubscriptionDispatcher dispatcher,
+                            @NotNull ISubscriber subscriber, @NotNull Kind kind,
+                            @NotNull SubscriptionConsumer<MapEvent<K, V>> delivery, @NotNull Runnable onDisconnect) {
+        this.dispatcher = dispatcher;
+        this.subscriber = subscriber;
+        this.kind = kind;
+        this.delivery = delivery;
+        this.overflow = Overflow.parse(rc.overflow());
+        this.onDisconnect = onDisconnect;
+        this.latest = rc.conflate() ? new LinkedHashMap<>() : null;
+        this.sequences = latest == null && overflow == Overflow.CONFLATE ? new HashMap<>() : null;
+        this.capacity = rc.conflate() ? 0 : (int) Math.max(1, Math.min(1 << 24, rc.dispatchQueue()));
+        this.events = new MapEvent[Math.min(INITIAL_CAPACITY, capacity)];
+        this.enqueuedNanos = new long[events.length];
+        this.batch = new MapEvent[rc.conflate() ? BATCH : Math.min(BATCH, capacity)];
+    }
+
+    @NotNull
+    public static <K, V> AsyncSubscriber<K, V> forEntries(@NotNull RequestContext rc, @NotNull SubscriptionDispatcher dispatcher,
+                                                          @NotNull Subscriber<MapEvent<K, V>> subscriber, @NotNull Runnable onDisconnect) {
+        return new AsyncSubscriber<>(rc, dispatcher, subscriber, Kind.ENTRY, subscriber::onMessage, onDisconnect);
+    }
+
+    @NotNull
+    public static <K, V> AsyncSubscriber<K, V> forKeys(@NotNull RequestContext rc, @NotNull SubscriptionDispatcher dispatcher,
+                                                       @NotNull Subscriber<K> subscriber, @NotNull Runnable onDisconnect) {
+        return new AsyncSubscriber<>(rc, dispatcher, subscriber, Kind.KEY, e -> subscriber.onMessage(e.key()), onDisconnect);
+    }
+
+    @NotNull
+    public static <K, V> AsyncSubscriber<K, V> forTopics(@NotNull RequestContext rc, @NotNull SubscriptionDispatcher dispatcher,
+                                                         @NotNull TopicSubscriber<K, V> subscriber, @NotNull Runnable onDisconnect) {
+        return new AsyncSubscriber<>(rc, dispatcher, subscriber, Kind.TOPIC, e -> subscriber.onMessage(e.key(), e.value()), onDisconnect);
+    }
+
+    /**
+     * Only queue events which pass the filter, if not null.
+     */
+    @NotNull
+    AsyncSubscriber<K, V> filter(@Nullable SubscriptionFilter<K, V> filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public ISubscriber subscriber() {
+        return subscriber;
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    /**
+     * Queue an event, which must not be changed afterwards, for delivery.
+     */
+    public void enqueue(@NotNull MapEvent<K, V> event) {
+        enqueue(event, false);
+    }
+
+    /**
+     * Queue an event of the subscriber's bootstrap, which is kept however full the queue is.
+     */
+    public void bootstrap(@NotNull MapEvent<K, V> event) {
+        enqueue(event, true);
+    }
+
+    private void enqueue(@NotNull MapEvent<K, V> event, boolean bootstrap) {
+        if (filter != null && !filter.test(event))
+            return;
+        synchronized (this) {
+            if (closed)
+                return;
+            if (bootstrap && latest == null)
+                bootstrapEnd = headSequence + size + 1;
+            if (latest != null) {
+                Pending<K, V> pending = latest.get(event.key());
+                if (pending != null) {
+                    pending.event = event;
+                    conflated++;
+                    return;
+                }
+                latest.put(event.key(), new Pending<>(event, System.nanoTime()));
+                size++;
+
+            } else if (size >= limit()) {
+                switch (overflow) {
+                    case BLOCK:
+                        if (!(Thread.currentThread() instanceof SubscriptionDispatcher.DispatcherThread)) {
+                            try {
+                                while (size >= limit() && !closed)
+                                    wait();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                return;
+                            }
+                            if (closed)
+                                return;
+                            break;
+                        }
+                        // fall through, a dispatcher could be waiting for itself
+                    case DROP_OLDEST:
+                        removeOldest();
+                        dropped++;
+                        break;
+
+                    case CONFLATE:
+                        int index = indexOfKey(event.key());
+                        if (index >= 0) {
+                            events[index] = event;
+                            conflated++;
+                            return;
+                        }
+                        removeOldest();
+                        dropped++;
+                        break;
+
+                    case DISCONNECT:
+                        disconnect();
+                        return;
+                }
+            }
+            if (latest == null) {
+                if (size == events.length)
+                    grow();
+                int tail = (head + size) % events.length;
+                events[tail] = event;
+                enqueuedNanos[tail] = System.nanoTime();
+                if (sequences != null)
+                    sequences.put(event.key(), headSequence + size);
+                size++;
+            }
+            if (scheduled)
+                return;
+            scheduled = true;
+        }
+        dispatcher.execute(this::drain);
+    }
+
+    /**
+     * @return the capacity, plus the bootstrap events still queued.
+     */
+    private int limit() {
+        return (int) Math.min(MAX_LENGTH, capacity + Math.max(0, bootstrapEnd - headSequence));
+    }
+
+    private void grow() {
+        int length = (int) Math.min(limit(), events.length * 2L);
+        MapEvent<K, V>[] events2 = new MapEvent[length];
+        long[] enqueuedNanos2 = new long[length];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % events.length;
+            events2[i] = events[index];
+            enqueuedNanos2[i] = enqueuedNanos[index];
+        }
+        events = events2;
+        enqueuedNanos = enqueuedNanos2;
+        head = 0;
+    }
+
+    private void removeOldest() {
+        if (latest != null) {
+            Iterator<Pending<K, V>> iter = latest.values().iterator();
+            iter.next();
+            iter.remove();
+        } else {
+            if (sequences != null)
+                sequences.remove(events[head].key(), headSequence);
+            events[head] = null;
+            head = (head + 1) % events.length;
+            headSequence++;
+        }
+        size--;
+    }
+
+    private int indexOfKey(K key) {
+        Long sequence = sequences.get(key);
+        return sequence == null ? -1 : (int) ((head + sequence - headSequence) % events.length);
+    }
+
+    private void disconnect() {
+        close();
+        onDisconnect.run();
+        endOfSubscriptionLater();
+    }
+
+    private void endOfSubscriptionLater() {
+        if (!dispatcher.execute(this::endOfSubscription))
+            endOfSubscription();
+    }
+
+    private void endOfSubscription() {
+        try {
+            subscriber.onEndOfSubscription();
+        } catch (Exception e) {
+            LOGGER.warn("Failed to end the subscription of " + subscriber, e);
+        }
+    }
+
+    void drain() {
+        int count;
+        synchronized (this) {
+            count = Math.min(size, batch.length);
+            for (int i = 0; i < count; i++) {
+                batch[i] = latest == null ? events[head] : latest.values().iterator().next().event;
+                removeOldest();
+            }
+            notifyAll();
+        }
+        for (int i = 0; i < count; i++) {
+            MapEvent<K, V> event = batch[i];
+            batch[i] = null;
+            try {
+                delivery.accept(event);
+            } catch (InvalidSubscriberException e) {
+                disconnect();
+                return;
+            } catch (Exception e) {
+                LOGGER.warn("Subscriber " + subscriber + " failed on " + event, e);
+            }
+        }
+        synchronized (this) {
+            delivered += count;
+            if (size == 0 || closed) {
+                scheduled = false;
+                return;
+            }
+        }
+        dispatcher.execute(this::drain);
+    }
+
+    /**
+     * Stop delivering events, dropping any pending.
+     */
+    public synchronized void close() {
+        closed = true;
+        while (size > 0)
+            removeOldest();
+        notifyAll();
+    }
+
+    /**
+     * Close and tell the subscriber on a dispatcher thread.
+     */
+    public void closeAndEnd() {
+        close();
+        endOfSubscriptionLater();
+    }
+
+    /**
+     * @return the number of events waiting to be delivered.
+     */
+    public synchronized int depth() {
+        return size;
+    }
+
+    /**
+     * @return how long the oldest pending event has been waiting, in milliseconds.
+     */
+    public synchronized long lagMillis() {
+        if (size == 0)
+            return 0;
+        long oldest = latest == null ? enqueuedNanos[head] : latest.values().iterator().next().enqueuedNanos;
+        return (System.nanoTime() - oldest) / 1_000_000;
+    }
+
+    public synchronized long delivered() {
+        return delivered;
+    }
+
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    public synchronized long conflated() {
+        return conflated;
+    }
+
+    @NotNull
+    @Override
+    public synchronized String toString() {
+        return "AsyncSubscriber{" +
+                "subscriber=" + subscriber +
+                ", overflow=" + overflow +
+                ", depth=" + size +
+                ", capacity=" + (latest == null ? capacity : "keys") +
+                ", lagMillis=" + lagMillis() +
+                ", delivered=" + delivered +
+                ", dropped=" + dropped +
+                ", conflated=" + conflated +
+                '}';
+    }
+
+    static final class Pending<K, V> {
+        final long enqueuedNanos;
+        MapEvent<K, V> event;
+
+        Pending(MapEvent<K, V> event, long enqueuedNanos) {
+            this.event = event;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    enum Kind {
+        ENTRY, KEY, TOPIC
+    }
+
+    public enum Overflow {
+        BLOCK, DROP_OLDEST, CONFLATE, DISCONNECT;
+
+        @NotNull
+        static Overflow parse(String overflow) {
+            if (overflow == null || overflow.isEmpty())
+                return DROP_OLDEST;
+            switch (overflow.toLowerCase()) {
+                case "block":
+                    return BLOCK;
+                case "dropoldest":
+                case "drop_oldest":
+                    return DROP_OLDEST;
+                case "conflate":
+                    return CONFLATE;
+                case "disconnect":
+                    return DISCONNECT;
+                default:
+                    throw new IllegalArgumentException("Unknown overflow " + overflow + ", expected block, dropOldest, conflate or disconnect");
+            }
+        }
+    }
+}
@@ -0,0 +1,502 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps a store within {@link RequestContext#maxEntries()} entries and/or an estimated
+ * {@link RequestContext#maxBytes()}, removing entries as needed and publishing them as RemovedEvents.
+ * <p>
+ * With the default "tinylfu" eviction, new entries wait in a small LRU window; when the store is
+ * full the oldest of these is only admitted to the main LRU if it has been used more often recently
+ * than the entry it would replace, otherwise it is removed instead. "lru" evicts the least recently
+ * used entry.
+ * <p>
+ * Reads and writes go to the underlying store without a global lock. They are recorded in buffers
+ * which are replayed against the eviction policy by whichever thread gets the eviction lock, so the
+ * bound can be exceeded briefly. Reads are recorded on a best effort basis and dropped if the buffer
+ * is full. Writes to a key are serialised by a lock striped by key so the policy sees them in order.
+ * The entries chosen for eviction are removed from the underlying store once the eviction lock has
+ * been released, unless the key has been written since.
+ */
+public class BoundedKeyValueStore<K, MV, V> extends AbstractKeyValueStore<K, MV, V>
+        implements AuthenticatedKeyValueStore<K, MV, V> {
+    public static final String LRU = "lru";
+    public static final String TINY_LFU = "tinylfu";
+    private static final int READ_BUFFER_SIZE = 1 << 10;
+    private static final int READ_DRAIN_THRESHOLD = 1 << 6;
+    private static final int LOCK_STRIPES = 64;
+
+    private final long maxEntries;
+    private final long maxBytes;
+    private final boolean admission;
+    private final int windowSize;
+    private final Queue<K> reads = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readCount = new AtomicInteger();
+    private final Queue<Write<K>> writes = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // serialises the writes to a key with recording them.
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // incremented on every write recorded in the stripe, so an eviction can tell the key has been written since.
+    private final AtomicLongArray writeVersions = new AtomicLongArray(LOCK_STRIPES);
+    // the policy, guarded by evictionLock.
+    // the estimated size of each key and value, in order of access.
+    private final LinkedHashMap<K, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+    private final ObjectKVSSubscription<K, MV, V> subscriptions;
+    private long bytes;
+    private final LongAdder evictions = new LongAdder();
+    private long rejections;
+
+    public BoundedKeyValueStore(@NotNull RequestContext context, @NotNull Asset asset, @NotNull KeyValueStore<K, MV, V> kvStore) {
+        super(context, asset, kvStore);
+        this.maxEntries = context.maxEntries();
+        this.maxBytes = context.maxBytes();
+        String eviction = context.eviction() == null ? TINY_LFU : context.eviction();
+        switch (eviction) {
+            case LRU:
+                admission = false;
+                break;
+            case TINY_LFU:
+                admission = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown eviction " + eviction + ", expected " + LRU + " or " + TINY_LFU);
+        }
+        this.windowSize = (int) Math.max(1, Math.min(1 << 20, maxEntries / 100));
+        this.sketch = new FrequencySketch(maxEntries > 0 ? maxEntries : 1 << 16);
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        this.subscriptions = asset.acquireView(ObjectKVSSubscription.class, context);
+
+        List<Victim<K>> victims = new ArrayList<>();
+        evictionLock.lock();
+        try {
+            for (int i = 0; i < kvStore.segments(); i++) {
+                try {
+                    // only the key is kept, so the event can be reused.
+                    kvStore.entriesForTransient(i, e -> added(e.key(), weigh(e.key()) + weigh(e.value())));
+                } catch (InvalidSubscriberException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            evict(victims);
+        } finally {
+            evictionLock.unlock();
+        }
+        removeVictims(victims);
+        asset.registerView(BoundedKeyValueStore.class, this);
+    }
+
+    static long weigh(Object o) {
+        if (o instanceof BytesStore)
+            return ((BytesStore) o).readRemaining();
+        if (o instanceof CharSequence)
+            return ((CharSequence) o).length();
+        if (o instanceof byte[])
+            return ((byte[]) o).length;
+        return 16;
+    }
+
+    public long evictions() {
+        return drained(evictions::sum);
+    }
+
+    /**
+     * @return the number of new entries removed because they were used less than the entry they would replace.
+     */
+    public long rejections() {
+        return drained(() -> rejections);
+    }
+
+    public long bytes() {
+        return drained(() -> bytes);
+    }
+
+    private long drained(@NotNull LongSupplier counter) {
+        List<Victim<K>> victims = new ArrayList<>();
+        evictionLock.lock();
+        try {
+            drain(victims);
+        } finally {
+            evictionLock.unlock();
+        }
+        removeVictims(victims);
+        evictionLock.lock();
+        try {
+            return counter.getAsLong();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public KVSSubscription<K, MV, V> subscription(boolean createIfAbsent) {
+        return subscriptions;
+    }
+
+    private static int stripe(@NotNull Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    private Object lockFor(K key) {
+        return locks[stripe(key)];
+    }
+
+    private void recordRead(K key) {
+        // reads are dropped rather than wait for the buffer to be drained.
+        if (readCount.incrementAndGet() > READ_BUFFER_SIZE) {
+            readCount.decrementAndGet();
+        } else {
+            reads.offer(key);
+        }
+        if (readCount.get() >= READ_DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            List<Victim<K>> victims = new ArrayList<>();
+            try {
+                drain(victims);
+            } finally {
+                evictionLock.unlock();
+            }
+            removeVictims(victims);
+        }
+    }
+
+    /**
+     * Called holding the key's lock, so writes to a key are recorded in the order they were made.
+     */
+    private void recordWrite(K key, @Nullable V value) {
+        writeVersions.incrementAndGet(stripe(key));
+        writes.offer(new Write<>(key, value == null ? -1 : weigh(key) + weigh(value)));
+    }
+
+    /**
+     * Drain the buffers, if no other thread is. A write recorded while another thread drains is
+     * seen by that thread's check once it lets go of the lock.
+     */
+    private void afterWrite() {
+        List<Victim<K>> victims = new ArrayList<>();
+        while (!writes.isEmpty() && evictionLock.tryLock()) {
+            try {
+                drain(victims);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        removeVictims(victims);
+    }
+
+    /**
+     * Replay the buffered reads then writes against the policy, and evict. Called holding evictionLock.
+     */
+    private void drain(@NotNull List<Victim<K>> victims) {
+        for (K key; (key = reads.poll()) != null; ) {
+            readCount.decrementAndGet();
+            accessed(key);
+        }
+        for (Write<K> write; (write = writes.poll()) != null; ) {
+            if (write.weight < 0)
+                removed(write.key);
+            else
+                added(write.key, write.weight);
+        }
+        evict(victims);
+    }
+
+    private void added(K key, long weight) {
+        sketch.increment(key);
+        Long prev = main.containsKey(key) ? main.put(key, weight) : window.put(key, weight);
+        bytes += weight - (prev == null ? 0 : prev);
+    }
+
+    private void accessed(K key) {
+        sketch.increment(key);
+        if (window.get(key) == null)
+            main.get(key);
+    }
+
+    private void removed(K key) {
+        Long weight = window.remove(key);
+        if (weight == null)
+            weight = main.remove(key);
+        if (weight != null)
+            bytes -= weight;
+    }
+
+    private boolean overBound() {
+        return (maxEntries > 0 && window.size() + main.size() > maxEntries)
+                || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * Choose the entries to evict, removing them from the policy. Each entry leaving the window while
+     * the store is full is either admitted in place of the main LRU entry or evicted itself.
+     * Called holding evictionLock.
+     */
+    private void evict(@NotNull List<Victim<K>> victims) {
+        while (window.size() > windowSize) {
+            Iterator<Map.Entry<K, Long>> iter = window.entrySet().iterator();
+            Map.Entry<K, Long> eldest = iter.next();
+            iter.remove();
+            K candidate = eldest.getKey();
+            main.put(candidate, eldest.getValue());
+            if (!admission || !overBound())
+                continue;
+            K victim = main.keySet().iterator().next();
+            if (victim.equals(candidate))
+                continue;
+            if (sketch.frequency(candidate) <= sketch.frequency(victim)) {
+                victim = candidate;
+                rejections++;
+            }
+            evict(victim, victims);
+        }
+        while (overBound())
+            evict(main.isEmpty() ? window.keySet().iterator().next() : main.keySet().iterator().next(), victims);
+    }
+
+    private void evict(K key, @NotNull List<Victim<K>> victims) {
+        removed(key);
+        victims.add(new Victim<>(key, writeVersions.get(stripe(key))));
+    }
+
+    /**
+     * Remove the entries evicted from the underlying store and publish them. Called without holding evictionLock.
+     */
+    private void removeVictims(@NotNull List<Victim<K>> victims) {
+        for (Victim<K> victim : victims) {
+            K key = victim.key;
+            V value;
+            synchronized (lockFor(key)) {
+                if (writeVersions.get(stripe(key)) == victim.writeVersion) {
+                    value = kvStore.getAndRemove(key);
+                } else {
+                    // written since, so kept; the policy is told again in case it was another key in the stripe.
+                    V current = kvStore.get(key);
+                    if (current != null)
+                        recordWrite(key, current);
+                    value = null;
+                }
+            }
+            // a key removed since its write was recorded has nothing to evict.
+            if (value != null) {
+                evictions.increment();
+                subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, value));
+            }
+        }
+    }
+
+    @Nullable
+    @Override
+    public V getUsing(K key, MV value) {
+        V v = kvStore.getUsing(key, value);
+        if (v != null)
+            recordRead(key);
+        return v;
+    }
+
+    @Override
+    public V get(K key) {
+        return getUsing(key, null);
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        boolean replaced;
+        synchronized (lockFor(key)) {
+            replaced = kvStore.put(key, value);
+            recordWrite(key, value);
+        }
+        afterWrite();
+        return replaced;
+    }
+
+    @Override
+    public V getAndPut(K key, V value) {
+        V oldValue;
+        synchronized (lockFor(key)) {
+            oldValue = kvStore.getAndPut(key, value);
+            recordWrite(key, value);
+        }
+        afterWrite();
+        return oldValue;
+    }
+
+    @Override
+    public boolean remove(K key) {
+        boolean removed;
+        synchronized (lockFor(key)) {
+            removed = kvStore.remove(key);
+            recordWrite(key, null);
+        }
+        afterWrite();
+        return removed;
+    }
+
+    @Override
+    public V getAndRemove(K key) {
+        V oldValue;
+        synchronized (lockFor(key)) {
+            oldValue = kvStore.getAndRemove(key);
+            recordWrite(key, null);
+        }
+        afterWrite();
+        return oldValue;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        V oldValue;
+        synchronized (lockFor(key)) {
+            oldValue = kvStore.replace(key, value);
+            if (oldValue != null)
+                recordWrite(key, value);
+        }
+        afterWrite();
+        return oldValue;
+    }
+
+    @Override
+    public boolean replaceIfEqual(K key, V oldValue, V newValue) {
+        boolean replaced;
+        synchronized (lockFor(key)) {
+            replaced = kvStore.replaceIfEqual(key, oldValue, newValue);
+            if (replaced)
+                recordWrite(key, newValue);
+        }
+        afterWrite();
+        return replaced;
+    }
+
+    @Override
+    public boolean removeIfEqual(K key, V value) {
+        boolean removed;
+        synchronized (lockFor(key)) {
+            removed = kvStore.removeIfEqual(key, value);
+            if (removed)
+                recordWrite(key, null);
+        }
+        afterWrite();
+        return removed;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        V oldValue;
+        synchronized (lockFor(key)) {
+            oldValue = kvStore.putIfAbsent(key, value);
+            if (oldValue == null)
+                recordWrite(key, value);
+        }
+        afterWrite();
+        return oldValue;
+    }
+
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        V value;
+        synchronized (lockFor(key)) {
+            value = kvStore.compute(key, function);
+            recordWrite(key, value);
+        }
+        afterWrite();
+        return value;
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return compute(key, v -> v == null ? value : function.apply(v, value));
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            synchronized (lockFor(entry.getKey())) {
+                kvStore.put(entry.getKey(), entry.getValue());
+                recordWrite(entry.getKey(), entry.getValue());
+            }
+        }
+        afterWrite();
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        for (K key : keys) {
+            synchronized (lockFor(key)) {
+                kvStore.remove(key);
+                recordWrite(key, null);
+            }
+        }
+        afterWrite();
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            reads.clear();
+            readCount.set(0);
+            writes.clear();
+            window.clear();
+            main.clear();
+            bytes = 0;
+            kvStore.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    static final class Victim<K> {
+        final K key;
+        // the key's stripe's write version when it was chosen.
+        final long writeVersion;
+
+        Victim(K key, long writeVersion) {
+            this.key = key;
+            this.writeVersion = writeVersion;
+        }
+    }
+
+    static final class Write<K> {
+        final K key;
+        // the estimated size of the key and value, or -1 for a removal.
+        final long weight;
+
+        Write(K key, long weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
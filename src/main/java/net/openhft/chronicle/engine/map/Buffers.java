@@ -17,8 +17,12 @@
 package net.openhft.chronicle.engine.map;
 
 import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.VanillaBytes;
 
 import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
 
 /**
  * Created by peter on 25/05/15.
@@ -26,9 +30,48 @@ import java.nio.ByteBuffer;
 public class Buffers {
     final Bytes<ByteBuffer> keyBuffer = Bytes.elasticByteBuffer();
     final Bytes<ByteBuffer> valueBuffer = Bytes.elasticByteBuffer();
+    // the second value of an operation passed two, e.g. the expected value of replaceIfEqual.
+    final Bytes<ByteBuffer> value2Buffer = Bytes.elasticByteBuffer();
+    // values are decoded here, e.g. decompressed, before they are read.
+    final Bytes<ByteBuffer> readBuffer = Bytes.elasticByteBuffer();
+    // files are read here, so reading the existing value doesn't overwrite a value passed in valueBuffer.
+    final Bytes<ByteBuffer> fileBuffer = Bytes.elasticByteBuffer();
+
+    // a view over the value being read, so it is read in place with a reused Wire.
+    final VanillaBytes<Void> valueView = VanillaBytes.vanillaBytes();
 
     static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
 
     private Buffers() {
     }
+
+    /**
+     * Encodes the values one after another in to a buffer of their own, as they are all passed on
+     * at once, rather than allocating a buffer for each.
+     *
+     * @return a view of each value's bytes by key.
+     */
+    static <V> Map<String, Bytes> encodeAll(Map<? extends String, ? extends V> entries,
+                                            BiFunction<V, Bytes, Bytes> encoder) {
+        Bytes<ByteBuffer> batch = Bytes.elasticByteBuffer();
+        Bytes<ByteBuffer> valueBuffer = BUFFERS.get().valueBuffer;
+        String[] keys = new String[entries.size()];
+        long[] ends = new long[keys.length];
+        int count = 0;
+        for (Map.Entry<? extends String, ? extends V> entry : entries.entrySet()) {
+            batch.write(encoder.apply(entry.getValue(), valueBuffer));
+            keys[count] = entry.getKey();
+            ends[count++] = batch.writePosition();
+        }
+        // the views are taken once the buffer has stopped growing.
+        Map<String, Bytes> stored = new LinkedHashMap<>();
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            VanillaBytes<Void> view = VanillaBytes.vanillaBytes();
+            view.bytesStore(batch.bytesStore(), start, ends[i] - start);
+            stored.put(keys[i], view);
+            start = ends[i];
+        }
+        return stored;
+    }
 }
@@ -17,7 +17,7 @@
 package net.openhft.chronicle.engine.map;
 
 import net.openhft.chronicle.bytes.IORuntimeException;
-import net.openhft.chronicle.core.Jvm;
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication;
 import net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntry;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
@@ -43,8 +43,11 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 import static net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer.notifyEachEvent;
@@ -59,6 +62,7 @@ public class ChronicleMapKeyValueStore<K, MV, V> implements AuthenticatedKeyValu
     private final EngineReplication engineReplicator;
     private final Asset asset;
     private final String assetFullName;
+    private final Class valueType;
 
     public ChronicleMapKeyValueStore(@NotNull RequestContext context, Asset asset) {
         String basePath = context.basePath();
@@ -66,6 +70,7 @@ public class ChronicleMapKeyValueStore<K, MV, V> implements AuthenticatedKeyValu
         long maxEntries = context.getEntries();
         this.asset = asset;
         this.assetFullName = asset.fullName();
+        this.valueType = context.valueType();
         this.subscriptions = asset.acquireView(ObjectKVSSubscription.class, context);
         this.subscriptions.setKvStore(this);
 
@@ -155,9 +160,52 @@ public class ChronicleMapKeyValueStore<K, MV, V> implements AuthenticatedKeyValu
         return chronicleMap.remove(key);
     }
 
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        chronicleMap.putAll(entries);
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        for (K key : keys)
+            chronicleMap.remove(key);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return chronicleMap.replace(key, value);
+    }
+
+    @Override
+    public boolean replaceIfEqual(K key, V oldValue, V newValue) {
+        return oldValue != null && chronicleMap.replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public boolean removeIfEqual(K key, V value) {
+        return value != null && chronicleMap.remove(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return chronicleMap.putIfAbsent(key, value);
+    }
+
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        return chronicleMap.compute(key, (k, v) -> function.apply(v));
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return chronicleMap.merge(key, value, function);
+    }
+
     @Override
     public V getUsing(K key, @Nullable MV value) {
-        if (value != null) throw new UnsupportedOperationException("Mutable values not supported");
+        // values which can't be read in to, e.g. a StringBuilder for a String, are read as new values.
+        if (value != null && !valueType.isInstance(value))
+            return chronicleMap.get(key);
         return chronicleMap.getUsing(key, (V) value);
     }
 
@@ -168,20 +216,23 @@ public class ChronicleMapKeyValueStore<K, MV, V> implements AuthenticatedKeyValu
 
     @Override
     public void keysFor(int segment, @NotNull SubscriptionConsumer<K> kConsumer) throws InvalidSubscriberException {
-        //Ignore the segments and return keysFor the whole map
+        // segments() is 1 as the ChronicleMap 2 API has no iteration of a single segment.
         notifyEachEvent(chronicleMap.keySet(), kConsumer);
     }
 
     @Override
     public void entriesFor(int segment, @NotNull SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
         //Ignore the segments and return entriesFor the whole map
-        chronicleMap.entrySet().stream().map(e -> InsertedEvent.of(assetFullName, e.getKey(), e.getValue())).forEach(e -> {
-            try {
-                kvConsumer.accept(e);
-            } catch (InvalidSubscriberException t) {
-                throw Jvm.rethrow(t);
-            }
-        });
+        for (Map.Entry<K, V> e : chronicleMap.entrySet())
+            kvConsumer.accept(InsertedEvent.of(assetFullName, e.getKey(), e.getValue()));
+    }
+
+    @Override
+    public void entriesForTransient(int segment, @NotNull SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        // the entries of a ChronicleMap are read in to new objects, however one event is used for all of them.
+        InsertedEvent<K, V> event = InsertedEvent.of(assetFullName, null, null);
+        for (Map.Entry<K, V> e : chronicleMap.entrySet())
+            kvConsumer.accept(event.set(e.getKey(), e.getValue()));
     }
 
     @NotNull
@@ -195,6 +246,11 @@ public class ChronicleMapKeyValueStore<K, MV, V> implements AuthenticatedKeyValu
         return chronicleMap.keySet().iterator();
     }
 
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        return chronicleMap.entrySet().spliterator();
+    }
+
     @Override
     public void clear() {
         chronicleMap.clear();
@@ -202,7 +258,7 @@ public class ChronicleMapKeyValueStore<K, MV, V> implements AuthenticatedKeyValu
 
     @Override
     public boolean containsValue(final MV value) {
-        throw new UnsupportedOperationException("todo");
+        return chronicleMap.containsValue(value);
     }
 
     @Override
@@ -20,6 +20,8 @@ import net.openhft.chronicle.engine.api.map.MapEvent;
 import net.openhft.chronicle.engine.api.pubsub.ISubscriber;
 import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 
+import java.util.Collection;
+
 /**
  * Created by peter.lawrey on 03/06/2015.
  */
@@ -27,4 +29,9 @@ import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 public interface EventConsumer<K, V> extends ISubscriber {
     void notifyEvent(MapEvent<K, V> changeEvent) throws InvalidSubscriberException;
 
+    default void notifyEvents(Collection<MapEvent<K, V>> changeEvents) throws InvalidSubscriberException {
+        for (MapEvent<K, V> changeEvent : changeEvents)
+            notifyEvent(changeEvent);
+    }
+
 }
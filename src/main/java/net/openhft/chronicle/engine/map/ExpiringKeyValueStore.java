@@ -0,0 +1,385 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.SegmentIterator;
+import net.openhft.chronicle.engine.api.map.SegmentSpliterator;
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+
+/**
+ * Removes each entry {@link RequestContext#ttl()} milliseconds after it was last written, or after
+ * the time given to {@link #expireAfter(Object, long, TimeUnit)}. Deadlines are kept in a
+ * {@link TimingWheel} advanced by a single thread shared by all stores, so expiry doesn't scan the
+ * entries. The wheel holds at most one entry per key: a write which moves the deadline later only
+ * records it, and the entry is put back in the wheel for the new deadline when it fires. Writes
+ * queue the entries to add rather than locking the wheel, which only the reaper touches. Expiries are published as a RemovedEvent to the asset's subscription. An entry past its
+ * deadline is not visible to reads, scans or conditional writes even if it hasn't been removed yet;
+ * a write to it removes it first.
+ */
+public class ExpiringKeyValueStore<K, MV, V> extends AbstractKeyValueStore<K, MV, V>
+        implements AuthenticatedKeyValueStore<K, MV, V> {
+    static final long TICK_MILLIS = 10;
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExpiringKeyValueStore.class);
+    private static final int LOCK_STRIPES = 64;
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "expiry-reaper");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long ttl;
+    // the current deadline of each key.
+    private final Map<K, Long> deadlines = new ConcurrentHashMap<>();
+    // the deadline of the wheel entry for each key, changed holding the key's lock.
+    private final Map<K, Long> scheduled = new ConcurrentHashMap<>();
+    // the entries to add to the wheel, drained by the reaper.
+    private final Queue<Map.Entry<K, Long>> toSchedule = new ConcurrentLinkedQueue<>();
+    // only used by the reaper.
+    private final TimingWheel<K> wheel;
+    // serialises writes and expiry of a key.
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final ObjectKVSSubscription<K, MV, V> subscriptions;
+    private final ScheduledFuture<?> reaping;
+
+    public ExpiringKeyValueStore(@NotNull RequestContext context, @NotNull Asset asset, @NotNull KeyValueStore<K, MV, V> kvStore) {
+        super(context, asset, kvStore);
+        this.ttl = context.ttl();
+        // an entry superseded by one for an earlier deadline is dropped as it cascades rather than fired.
+        this.wheel = new TimingWheel<>(TICK_MILLIS, System.currentTimeMillis(), (k, deadline) -> deadline.equals(scheduled.get(k)));
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        this.subscriptions = asset.acquireView(ObjectKVSSubscription.class, context);
+        this.reaping = REAPER.scheduleAtFixedRate(this::reap, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        asset.registerView(ExpiringKeyValueStore.class, this);
+    }
+
+    public long ttl() {
+        return ttl;
+    }
+
+    /**
+     * Expire an existing entry after the time given rather than the default ttl, until it is next written.
+     *
+     * @return false if there is no entry for the key.
+     */
+    public boolean expireAfter(K key, long time, @NotNull TimeUnit unit) {
+        synchronized (lockFor(key)) {
+            if (!containsKey(key))
+                return false;
+            schedule(key, unit.toMillis(time));
+            return true;
+        }
+    }
+
+    private Object lockFor(K key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
+    }
+
+    private void touch(K key) {
+        schedule(key, ttl);
+    }
+
+    /**
+     * Called holding the key's lock.
+     */
+    private void schedule(K key, long ttlMillis) {
+        long deadline = System.currentTimeMillis() + ttlMillis;
+        deadlines.put(key, deadline);
+        // an entry due sooner is moved on when it fires.
+        Long due = scheduled.get(key);
+        if (due == null || deadline < due) {
+            scheduled.put(key, deadline);
+            toSchedule.add(new AbstractMap.SimpleImmutableEntry<>(key, deadline));
+        }
+    }
+
+    private boolean isExpired(K key) {
+        Long deadline = deadlines.get(key);
+        return deadline != null && deadline <= System.currentTimeMillis();
+    }
+
+    // synchronized in case it is called other than by the reaper.
+    synchronized void reap() {
+        drainSchedules();
+        List<K> keys = new ArrayList<>();
+        List<Long> due = new ArrayList<>();
+        wheel.advance(System.currentTimeMillis(), (k, deadline) -> {
+            keys.add(k);
+            due.add(deadline);
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            try {
+                expire(keys.get(i), due.get(i));
+            } catch (Exception e) {
+                LOGGER.warn("Failed to expire " + keys.get(i) + " in " + asset.fullName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries in the wheel, once those queued have been added.
+     */
+    synchronized int wheelSize() {
+        drainSchedules();
+        return wheel.size();
+    }
+
+    private void drainSchedules() {
+        for (Map.Entry<K, Long> entry; (entry = toSchedule.poll()) != null; )
+            wheel.schedule(entry.getKey(), entry.getValue());
+    }
+
+    private void expire(K key, long scheduledDeadline) {
+        synchronized (lockFor(key)) {
+            // superseded by an entry due sooner.
+            if (!scheduled.remove(key, scheduledDeadline))
+                return;
+            Long deadline = deadlines.get(key);
+            if (deadline == null)
+                return;
+            if (deadline > System.currentTimeMillis()) {
+                // written since it was scheduled, so put back for the new deadline.
+                scheduled.put(key, deadline);
+                wheel.schedule(key, deadline);
+                return;
+            }
+            deadlines.remove(key);
+            removeExpired(key);
+        }
+    }
+
+    /**
+     * Remove the entry now if it is past its deadline, so a write sees it as absent. Called holding the key's lock.
+     */
+    private void expireIfDue(K key) {
+        Long deadline = deadlines.get(key);
+        if (deadline != null && deadline <= System.currentTimeMillis() && deadlines.remove(key, deadline))
+            removeExpired(key);
+    }
+
+    private void removeExpired(K key) {
+        V oldValue = kvStore.getAndRemove(key);
+        if (oldValue != null)
+            subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, oldValue));
+    }
+
+    @Nullable
+    @Override
+    public V getUsing(K key, MV value) {
+        return isExpired(key) ? null : kvStore.getUsing(key, value);
+    }
+
+    @Override
+    public V get(K key) {
+        return getUsing(key, null);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return !isExpired(key) && kvStore.containsKey(key);
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            boolean replaced = kvStore.put(key, value);
+            touch(key);
+            return replaced;
+        }
+    }
+
+    @Override
+    public V getAndPut(K key, V value) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            V oldValue = kvStore.getAndPut(key, value);
+            touch(key);
+            return oldValue;
+        }
+    }
+
+    @Override
+    public boolean remove(K key) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            deadlines.remove(key);
+            return kvStore.remove(key);
+        }
+    }
+
+    @Override
+    public V getAndRemove(K key) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            deadlines.remove(key);
+            return kvStore.getAndRemove(key);
+        }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            V oldValue = kvStore.replace(key, value);
+            if (oldValue != null)
+                touch(key);
+            return oldValue;
+        }
+    }
+
+    @Override
+    public boolean replaceIfEqual(K key, V oldValue, V newValue) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            if (!kvStore.replaceIfEqual(key, oldValue, newValue))
+                return false;
+            touch(key);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean removeIfEqual(K key, V value) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            if (!kvStore.removeIfEqual(key, value))
+                return false;
+            deadlines.remove(key);
+            return true;
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            V oldValue = kvStore.putIfAbsent(key, value);
+            if (oldValue == null)
+                touch(key);
+            return oldValue;
+        }
+    }
+
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        synchronized (lockFor(key)) {
+            expireIfDue(key);
+            V value = kvStore.compute(key, function);
+            if (value == null)
+                deadlines.remove(key);
+            else
+                touch(key);
+            return value;
+        }
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return compute(key, v -> v == null ? value : function.apply(v, value));
+    }
+
+    /**
+     * Each entry is put holding its key's lock, so it isn't expired between the write and its deadline being set.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet())
+            put(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        for (K key : keys)
+            remove(key);
+    }
+
+    @Override
+    public void keysFor(int segment, @NotNull SubscriptionConsumer<K> kConsumer) throws InvalidSubscriberException {
+        kvStore.keysFor(segment, k -> {
+            if (!isExpired(k))
+                kConsumer.accept(k);
+        });
+    }
+
+    @Override
+    public void entriesFor(int segment, @NotNull SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        kvStore.entriesFor(segment, e -> {
+            if (!isExpired(e.key()))
+                kvConsumer.accept(e);
+        });
+    }
+
+    @Override
+    public void entriesForTransient(int segment, @NotNull SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        kvStore.entriesForTransient(segment, e -> {
+            if (!isExpired(e.key()))
+                kvConsumer.accept(e);
+        });
+    }
+
+    // the underlying keys are looked up through get() and containsKey() so expired entries are skipped.
+    @NotNull
+    @Override
+    public Iterator<Map.Entry<K, V>> entrySetIterator() {
+        return SegmentIterator.entries(this, kvStore.keySetIterator());
+    }
+
+    @NotNull
+    @Override
+    public Iterator<K> keySetIterator() {
+        return SegmentIterator.keys(this, kvStore.keySetIterator());
+    }
+
+    @NotNull
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        return SegmentSpliterator.entries(this);
+    }
+
+    @Override
+    public KVSSubscription<K, MV, V> subscription(boolean createIfAbsent) {
+        return subscriptions;
+    }
+
+    @Override
+    public void clear() {
+        deadlines.clear();
+        kvStore.clear();
+    }
+
+    @Override
+    public void close() {
+        reaping.cancel(false);
+        kvStore.close();
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.core.ClassLocal;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static java.lang.invoke.MethodType.methodType;
+
+/**
+ * Creates instances of a class, and reads and writes its fields straight to Bytes, through method
+ * handles looked up once per class rather than reflection or a Wire.
+ * <p>
+ * The fields are written superclass first and by name within each class, as raw primitives,
+ * strings or enum names, after an int hash of their names and types. Reading data written with a
+ * different layout fails rather than reading the fields shifted. A class with a final field or a
+ * field of another type can't be marshalled this way, nor can one with its own
+ * readMarshallable/writeMarshallable unless it is annotated {@link MarshalFields}, see
+ * {@link #canMarshalFields()}.
+ * <p>
+ * No classes are generated; each field has an accessor holding its handles in final instance
+ * fields. These are not constants to the JIT, as a static final handle would be, so the saving is
+ * the field names, text parsing and reflective checks of the Wire path, not a call per field.
+ */
+public final class FieldMarshaller<T> {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final ClassLocal<FieldMarshaller> MARSHALLERS = ClassLocal.withInitial(FieldMarshaller::new);
+
+    private final Class<T> type;
+    @Nullable
+    private final MethodHandle constructor;
+    @Nullable
+    private final FieldAccess[] fields;
+    private final int layout;
+
+    private FieldMarshaller(Class<T> type) {
+        this.type = type;
+        this.constructor = constructorFor(type);
+        this.fields = type.isAnnotationPresent(MarshalFields.class) || !hasOwnMarshalling(type)
+                ? fieldsFor(type) : null;
+        this.layout = fields == null ? 0 : layoutOf(type);
+    }
+
+    @NotNull
+    public static <T> FieldMarshaller<T> of(@NotNull Class<T> type) {
+        return MARSHALLERS.get(type);
+    }
+
+    @Nullable
+    private static MethodHandle constructorFor(Class type) {
+        try {
+            Constructor con = type.getDeclaredConstructor();
+            con.setAccessible(true);
+            return LOOKUP.unreflectConstructor(con).asType(methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return whether the class implements readMarshallable or writeMarshallable itself, rather
+     * than not at all or through an interface default, as writing its fields would bypass it.
+     */
+    private static boolean hasOwnMarshalling(Class type) {
+        for (Method method : type.getMethods()) {
+            String name = method.getName();
+            if ((name.equals("readMarshallable") || name.equals("writeMarshallable"))
+                    && method.getParameterCount() == 1
+                    && !method.isDefault()
+                    && !Modifier.isAbstract(method.getModifiers()))
+                return true;
+        }
+        return false;
+    }
+
+    @NotNull
+    private static List<Field> serialFields(Class type) {
+        List<Class> hierarchy = new ArrayList<>();
+        for (Class c = type; c != null && c != Object.class; c = c.getSuperclass())
+            hierarchy.add(0, c);
+        List<Field> fields = new ArrayList<>();
+        for (Class c : hierarchy) {
+            Field[] declared = c.getDeclaredFields();
+            // getDeclaredFields() has no defined order, so it can differ between JVMs
+            Arrays.sort(declared, Comparator.comparing(Field::getName));
+            for (Field field : declared) {
+                int modifiers = field.getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers))
+                    fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static int layoutOf(Class type) {
+        int hash = 0;
+        for (Field field : serialFields(type)) {
+            hash = hash * 31 + field.getName().hashCode();
+            hash = hash * 31 + field.getType().getName().hashCode();
+        }
+        return hash;
+    }
+
+    @Nullable
+    private static FieldAccess[] fieldsFor(Class type) {
+        List<FieldAccess> accesses = new ArrayList<>();
+        for (Field field : serialFields(type)) {
+            if (Modifier.isFinal(field.getModifiers()))
+                return null;
+            try {
+                FieldAccess access = accessFor(field);
+                if (access == null)
+                    return null;
+                accesses.add(access);
+            } catch (IllegalAccessException e) {
+                return null;
+            }
+        }
+        return accesses.toArray(new FieldAccess[accesses.size()]);
+    }
+
+    @Nullable
+    private static FieldAccess accessFor(Field field) throws IllegalAccessException {
+        field.setAccessible(true);
+        Class<?> fieldType = field.getType();
+        Class<?> handleType = fieldType.isPrimitive() ? fieldType : Object.class;
+        MethodHandle getter = LOOKUP.unreflectGetter(field).asType(methodType(handleType, Object.class));
+        MethodHandle setter = LOOKUP.unreflectSetter(field).asType(methodType(void.class, Object.class, handleType));
+
+        if (fieldType == boolean.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeByte((byte) ((boolean) getter.invokeExact(o) ? 1 : 0));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readByte() != 0);
+                }
+            };
+        if (fieldType == byte.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeByte((byte) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readByte());
+                }
+            };
+        if (fieldType == short.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeShort((short) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readShort());
+                }
+            };
+        if (fieldType == char.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeShort((short) (char) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, (char) bytes.readShort());
+                }
+            };
+        if (fieldType == int.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeInt((int) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readInt());
+                }
+            };
+        if (fieldType == long.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeLong((long) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readLong());
+                }
+            };
+        if (fieldType == float.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeFloat((float) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readFloat());
+                }
+            };
+        if (fieldType == double.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeDouble((double) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, bytes.readDouble());
+                }
+            };
+        if (fieldType == String.class)
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    bytes.writeUTFΔ((String) (Object) getter.invokeExact(o));
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    setter.invokeExact(o, (Object) bytes.readUTFΔ());
+                }
+            };
+        if (fieldType.isEnum())
+            return new FieldAccess() {
+                void write(Object o, Bytes bytes) throws Throwable {
+                    Enum e = (Enum) (Object) getter.invokeExact(o);
+                    bytes.writeUTFΔ(e == null ? null : e.name());
+                }
+
+                void read(Object o, Bytes bytes) throws Throwable {
+                    String name = bytes.readUTFΔ();
+                    setter.invokeExact(o, (Object) (name == null ? null : Enum.valueOf((Class) fieldType, name)));
+                }
+            };
+        return null;
+    }
+
+    /**
+     * @return a new instance using the no argument constructor.
+     */
+    @NotNull
+    public T newInstance() {
+        if (constructor == null)
+            throw new IllegalArgumentException(type.getName() + " has no default constructor");
+        try {
+            return (T) (Object) constructor.invokeExact();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Unable to create a " + type.getName(), t);
+        }
+    }
+
+    public boolean canCreateInstances() {
+        return constructor != null;
+    }
+
+    @NotNull
+    public T acquireInstance(@Nullable T using) {
+        return using == null ? newInstance() : using;
+    }
+
+    /**
+     * @return whether all the fields of the class can be read and written directly.
+     */
+    public boolean canMarshalFields() {
+        return fields != null;
+    }
+
+    public void writeFields(@NotNull T t, @NotNull Bytes bytes) {
+        assert fields != null;
+        bytes.writeInt(layout);
+        try {
+            for (FieldAccess field : fields)
+                field.write(t, bytes);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to write a " + type.getName(), e);
+        }
+    }
+
+    @NotNull
+    public T readFields(@NotNull Bytes bytes, @Nullable T using) {
+        assert fields != null;
+        int written = bytes.readInt();
+        if (written != layout)
+            throw new IllegalStateException("The fields of " + type.getName() + " were written with layout "
+                    + Integer.toHexString(written) + " but are now " + Integer.toHexString(layout));
+        T t = acquireInstance(using);
+        try {
+            for (FieldAccess field : fields)
+                field.read(t, bytes);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Unable to read a " + type.getName(), e);
+        }
+        return t;
+    }
+
+    abstract static class FieldAccess {
+        abstract void write(Object o, Bytes bytes) throws Throwable;
+
+        abstract void read(Object o, Bytes bytes) throws Throwable;
+    }
+}
@@ -16,12 +16,12 @@
 
 package net.openhft.chronicle.engine.map;
 
-import com.sun.nio.file.SensitivityWatchEventModifier;
 import net.openhft.chronicle.bytes.Bytes;
 import net.openhft.chronicle.bytes.BytesStore;
 import net.openhft.chronicle.bytes.BytesUtil;
 import net.openhft.chronicle.bytes.IORuntimeException;
 import net.openhft.chronicle.core.Jvm;
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.map.MapEvent;
@@ -30,6 +30,8 @@ import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
 import net.openhft.chronicle.engine.api.tree.Asset;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
+import net.openhft.chronicle.engine.fs.FileWatcher;
+import net.openhft.chronicle.engine.fs.FileWatcher.FileChangeListener;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -40,9 +42,9 @@ import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.nio.file.WatchEvent.Kind;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.AbstractMap.SimpleEntry;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
@@ -63,21 +65,57 @@ import static net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntr
  * if the value has not changed.  To avoid temporary files (e.g. if edited in vi)
  * being included in the map, any file starting with a '.' will be ignored.
  * <p>
+ * The directory, and with {@link RequestContext#recurse()} its sub directories, are watched by the
+ * {@link FileWatcher} shared by the tree. With recurse the key is the path relative to the directory.
+ * <p>
  * Note the {@link WatchService} is extremely OS dependant.  Mas OSX registers
  * very few events if they are done quickly and there is a significant delay
  * between the event and the event being triggered.
+ * <p>
+ * With a {@link RequestContext#memoryMapThreshold()} files of that size or larger are memory
+ * mapped and returned as a read only BytesStore over the mapping rather than copied on to the
+ * heap. The store releases its reference to a mapping when the key is updated or deleted, so a
+ * caller which keeps a value must reserve() it; the old values returned by getAndPut and
+ * getAndRemove are reserved for the caller to release. As files are replaced by an atomic move, a
+ * mapping is never truncated underneath a reader unless the file is changed in place by another process.
+ * <p>
+ * With a {@link RequestContext#commitDelayMillis()} writes and removes are held in memory and
+ * flushed by a writer thread at that interval, so repeated writes to a key are collapsed into a
+ * single file write. Reads see the pending value immediately, however events are only fired once
+ * the file has been written. {@link RequestContext#fsync()} forces each file to disk as it is written.
+ * <p>
+ * The last contents seen of each file are cached up to {@link RequestContext#contentCacheBytes()}, 64 MB
+ * by default. Once a file's contents have been evicted, the old value of its next event is null.
  */
 public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(FilePerKeyValueStore.class);
+    private static final int LOCK_STRIPES = 64;
+    static final long DEFAULT_CONTENT_CACHE_BYTES = 64 << 20;
+    // marks a key removed but not yet flushed, compared by identity.
+    private static final BytesStore DELETED = BytesStore.wrap(ByteBuffer.allocate(0));
     private final Path dirPath;
     //Use BytesStore so that it can be shared safely between threads
-    private final Map<File, FileRecord<BytesStore>> lastFileRecordMap = new ConcurrentHashMap<>();
-
+    private final FileRecordCache fileRecordCache;
+    // the visible files by key, kept current by the watcher so the size and key scans don't walk the directory.
+    private final Map<String, KeyInfo> keyIndex = new ConcurrentHashMap<>();
+    // each mapping holds one reference for this store, released when the file is replaced or deleted.
+    private final Map<File, FileRecord<BytesStore>> mappedRecordMap = new ConcurrentHashMap<>();
+    private final long memoryMapThreshold;
+    // the latest value of each key not yet written, only used with a commit delay.
+    private final Map<String, BytesStore> pendingWrites = new ConcurrentHashMap<>();
+    private final long commitDelayMillis;
+    private final boolean fsync;
+
+    private final boolean recurse;
     @NotNull
-    private final Thread fileFpmWatcher;
+    private final Closeable watchRegistration;
+    @Nullable
+    private final Thread fileFpmWriter;
     private final RawKVSSubscription<String, Bytes, BytesStore> subscriptions;
     private final Asset asset;
+    // serialises updates to the same key so the compare-and-set operations are atomic.
+    private final Object[] locks = new Object[LOCK_STRIPES];
     private volatile boolean closed = false;
 
     public FilePerKeyValueStore(@NotNull RequestContext context, @NotNull Asset asset) throws IORuntimeException {
@@ -88,29 +126,38 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
     FilePerKeyValueStore(RequestContext context, Asset asset, Class type, String basePath, String name) {
         this.asset = asset;
         assert type == String.class;
+        this.memoryMapThreshold = context.memoryMapThreshold();
+        this.commitDelayMillis = context.commitDelayMillis();
+        this.fsync = context.fsync() == Boolean.TRUE;
+        long contentCacheBytes = context.contentCacheBytes();
+        this.fileRecordCache = new FileRecordCache(contentCacheBytes > 0 ? contentCacheBytes : DEFAULT_CONTENT_CACHE_BYTES);
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
 
         String first = basePath;
         String dirName = first == null ? name : first + "/" + name;
         this.dirPath = Paths.get(dirName);
-        WatchService watcher;
+        this.recurse = context.recurse() == Boolean.TRUE;
         try {
             Files.createDirectories(dirPath);
-            watcher = FileSystems.getDefault().newWatchService();
-            dirPath.register(watcher, new Kind[]{
-                            StandardWatchEventKinds.ENTRY_CREATE,
-                            StandardWatchEventKinds.ENTRY_DELETE,
-                            StandardWatchEventKinds.ENTRY_MODIFY},
-                    SensitivityWatchEventModifier.HIGH
-            );
         } catch (IOException e) {
             throw new IORuntimeException(e);
         }
-
-        fileFpmWatcher = new Thread(new FPMWatcher(watcher), dirName + "-watcher");
-        fileFpmWatcher.setDaemon(true);
-        fileFpmWatcher.start();
         subscriptions = asset.acquireView(RawKVSSubscription.class, context);
         subscriptions.setKvStore(this);
+
+        FileWatcher fileWatcher = asset.root().acquireView(FileWatcher.class, RequestContext.requestContext());
+        watchRegistration = fileWatcher.register(dirPath, recurse, new FPMWatcher());
+        // after registering the watcher so no change is missed.
+        rebuildKeyIndex();
+
+        if (commitDelayMillis > 0) {
+            fileFpmWriter = new Thread(this::flushPeriodically, dirName + "-writer");
+            fileFpmWriter.setDaemon(true);
+            fileFpmWriter.start();
+        } else {
+            fileFpmWriter = null;
+        }
     }
 
     @NotNull
@@ -121,7 +168,12 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
 
     @Override
     public long longSize() {
-        return getFiles().count();
+        return keyIndex.size();
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        return keyIndex.containsKey(key);
     }
 
     @Nullable
@@ -131,6 +183,18 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
         return getFileContents(path, value);
     }
 
+    @Override
+    public Map<String, BytesStore> getAll(@NotNull Collection<? extends String> keys) {
+        Map<String, BytesStore> map = new LinkedHashMap<>();
+        for (String key : keys) {
+            BytesStore value = getFileContents(dirPath.resolve(key), null);
+            // copy as a value read from disk is in a thread local buffer.
+            if (value != null)
+                map.put(key, value.copy());
+        }
+        return map;
+    }
+
     @Override
     public void keysFor(int segment, @NotNull SubscriptionConsumer<String> stringConsumer) {
         try {
@@ -141,13 +205,8 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
     }
 
     void keysFor0(@NotNull SubscriptionConsumer<String> stringConsumer) throws InvalidSubscriberException {
-        getFiles().forEach(p -> {
-            try {
-                stringConsumer.accept(p.getFileName().toString());
-            } catch (InvalidSubscriberException e) {
-                throw Jvm.rethrow(e);
-            }
-        });
+        for (String key : keyIndex.keySet())
+            stringConsumer.accept(key);
     }
 
     @Override
@@ -160,21 +219,18 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
     }
 
     void entriesFor0(@NotNull SubscriptionConsumer<MapEvent<String, BytesStore>> kvConsumer) throws InvalidSubscriberException {
-        getFiles().map(p -> InsertedEvent.of(asset.fullName(), p.getFileName().toString(), getFileContents(p, null)))
-                .forEach(e -> {
-                    try {
-                        // in case the file has been deleted in the meantime.
-                        if (e != null)
-                            kvConsumer.accept(e);
-                    } catch (InvalidSubscriberException ise) {
-                        throw Jvm.rethrow(ise);
-                    }
-                });
+        String assetName = asset.fullName();
+        for (String key : keyIndex.keySet()) {
+            BytesStore value = getFileContents(dirPath.resolve(key), null);
+            // in case the file has been deleted in the meantime.
+            if (value != null)
+                kvConsumer.accept(InsertedEvent.of(assetName, key, value));
+        }
     }
 
     @Override
     public Iterator<String> keySetIterator() {
-        return getFiles().map(p -> p.getFileName().toString()).iterator();
+        return Collections.unmodifiableSet(keyIndex.keySet()).iterator();
     }
 
     @Override
@@ -183,18 +239,25 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
     }
 
     public Stream<Map.Entry<String, BytesStore>> getEntryStream() {
-        return getFiles()
-                .map(p -> (Map.Entry<String, BytesStore>) new SimpleEntry<>(p.getFileName().toString(), getFileContents(p, null)));
+        return keyIndex.keySet().stream()
+                .map(k -> (Map.Entry<String, BytesStore>) new SimpleEntry<>(k, getFileContents(dirPath.resolve(k), null)))
+                .filter(e -> e.getValue() != null);
+    }
+
+    private Object lockFor(String key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
     }
 
     @Override
     public boolean put(String key, @NotNull BytesStore value) {
         if (closed) throw new IllegalStateException("closed");
         Path path = dirPath.resolve(key);
-        FileRecord fr = lastFileRecordMap.get(path.toFile());
-        writeToFile(path, value);
-        if (fr != null) fr.valid = false;
-        return fr != null;
+        synchronized (lockFor(key)) {
+            boolean replaced = keyIndex.containsKey(key);
+            writeValue(key, path, value);
+            return replaced;
+        }
     }
 
     @Nullable
@@ -202,37 +265,186 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
     public BytesStore getAndPut(String key, @NotNull BytesStore value) {
         if (closed) throw new IllegalStateException("closed");
         Path path = dirPath.resolve(key);
-        FileRecord fr = lastFileRecordMap.get(path.toFile());
-        BytesStore existingValue = getFileContents(path, null);
-        writeToFile(path, value);
-        if (fr != null) fr.valid = false;
-        return existingValue == null ? null : existingValue;
+        synchronized (lockFor(key)) {
+            BytesStore existingValue = detach(path, getFileContents(path, null));
+            writeValue(key, path, value);
+            return existingValue;
+        }
     }
 
     @Nullable
     @Override
     public BytesStore getAndRemove(String key) {
         if (closed) throw new IllegalStateException("closed");
-        BytesStore existing = get(key);
-        if (existing != null) {
-            deleteFile(dirPath.resolve(key));
+        synchronized (lockFor(key)) {
+            Path path = dirPath.resolve(key);
+            BytesStore existing = detach(path, getFileContents(path, null));
+            if (existing != null) {
+                removeValue(key, path);
+            }
+            return existing;
         }
-        return existing;
     }
 
     @Override
     public boolean remove(String key) {
         if (closed) throw new IllegalStateException("closed");
         Path path = dirPath.resolve(key);
-        if (path.toFile().isFile())
+        synchronized (lockFor(key)) {
+            if (!exists(key, path))
+                return false;
+            removeValue(key, path);
+            return true;
+        }
+    }
+
+    @Nullable
+    @Override
+    public BytesStore replace(String key, @NotNull BytesStore value) {
+        if (closed) throw new IllegalStateException("closed");
+        Path path = dirPath.resolve(key);
+        synchronized (lockFor(key)) {
+            BytesStore existing = getFileContents(path, null);
+            if (existing == null)
+                return null;
+            // the contents may be in the buffer used to write the new value.
+            existing = existing.copy();
+            writeValue(key, path, value);
+            return existing;
+        }
+    }
+
+    @Override
+    public boolean replaceIfEqual(String key, @NotNull BytesStore oldValue, @NotNull BytesStore newValue) {
+        if (closed) throw new IllegalStateException("closed");
+        Path path = dirPath.resolve(key);
+        synchronized (lockFor(key)) {
+            BytesStore existing = getFileContents(path, null);
+            if (existing == null || !BytesUtil.contentEqual(existing, oldValue))
+                return false;
+            writeValue(key, path, newValue);
+            return true;
+        }
+    }
+
+    @Override
+    public boolean removeIfEqual(String key, @NotNull BytesStore value) {
+        if (closed) throw new IllegalStateException("closed");
+        Path path = dirPath.resolve(key);
+        synchronized (lockFor(key)) {
+            BytesStore existing = getFileContents(path, null);
+            if (existing == null || !BytesUtil.contentEqual(existing, value))
+                return false;
+            removeValue(key, path);
+            return true;
+        }
+    }
+
+    @Nullable
+    @Override
+    public BytesStore putIfAbsent(String key, @NotNull BytesStore value) {
+        if (closed) throw new IllegalStateException("closed");
+        Path path = dirPath.resolve(key);
+        synchronized (lockFor(key)) {
+            BytesStore existing = getFileContents(path, null);
+            // copy as the contents may be in a thread local buffer.
+            if (existing != null)
+                return existing.copy();
+            writeValue(key, path, value);
+            return null;
+        }
+    }
+
+    @Nullable
+    @Override
+    public BytesStore compute(String key, @NotNull SerializableFunction<BytesStore, BytesStore> function) {
+        if (closed) throw new IllegalStateException("closed");
+        Path path = dirPath.resolve(key);
+        synchronized (lockFor(key)) {
+            BytesStore existing = getFileContents(path, null);
+            BytesStore value = function.apply(existing);
+            if (value == null) {
+                if (existing != null)
+                    removeValue(key, path);
+            } else if (existing == null || !BytesUtil.contentEqual(existing, value)) {
+                writeValue(key, path, value);
+            }
+            return value;
+        }
+    }
+
+    private void invalidate(@NotNull Path path) {
+        fileRecordCache.invalidate(path.toFile());
+    }
+
+    /**
+     * Every write goes through here or removeValue(), so none can leave a stale record cached.
+     */
+    private void writeValue(String key, @NotNull Path path, @NotNull BytesStore value) {
+        if (commitDelayMillis <= 0) {
+            writeToFile(path, value);
+        } else {
+            // copy as the value may be in a thread local buffer.
+            pendingWrites.put(key, value.copy());
+            keyIndex.put(key, new KeyInfo(value.readRemaining(), System.currentTimeMillis()));
+        }
+        invalidate(path);
+    }
+
+    private void removeValue(String key, @NotNull Path path) {
+        if (commitDelayMillis <= 0) {
             deleteFile(path);
-        // todo check this is removed in watcher
-        FileRecord fr = lastFileRecordMap.get(path.toFile());
-        return fr != null;
+        } else {
+            pendingWrites.put(key, DELETED);
+            keyIndex.remove(key);
+        }
+        invalidate(path);
+    }
+
+    private boolean exists(String key, @NotNull Path path) {
+        BytesStore pending = pendingWrites.get(key);
+        return pending == null ? path.toFile().isFile() : pending != DELETED;
+    }
+
+    /**
+     * Write the latest pending value of each key, the caller's writes may continue meanwhile.
+     */
+    void flushPending() {
+        for (String key : pendingWrites.keySet()) {
+            Path path = dirPath.resolve(key);
+            synchronized (lockFor(key)) {
+                BytesStore value = pendingWrites.get(key);
+                if (value == null)
+                    continue;
+                if (value == DELETED) {
+                    deleteFile(path);
+                } else {
+                    writeToFile(path, value);
+                    invalidate(path);
+                }
+                pendingWrites.remove(key, value);
+            }
+        }
+    }
+
+    private void flushPeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(commitDelayMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                flushPending();
+            } catch (Exception e) {
+                LOGGER.warn("Failed to flush writes to " + dirPath, e);
+            }
+        }
     }
 
     @Override
     public void clear() {
+        flushPending();
         AtomicInteger count = new AtomicInteger();
         Stream<Path> files = getFiles();
         files.forEach((path) -> {
@@ -251,14 +463,17 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
 
     @Override
     public boolean containsValue(final Bytes value) {
-        throw new UnsupportedOperationException("todo");
+        return keyIndex.keySet().stream().anyMatch(k -> {
+            BytesStore contents = getFileContents(dirPath.resolve(k), null);
+            return contents != null && BytesUtil.contentEqual(contents, value);
+        });
     }
 
 
     private Stream<Path> getFiles() {
         try {
             return Files
-                    .walk(dirPath)
+                    .walk(dirPath, recurse ? Integer.MAX_VALUE : 1)
                     .filter(p -> !Files.isDirectory(p))
                     .filter(this::isVisible);
         } catch (IOException e) {
@@ -266,21 +481,151 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
         }
     }
 
+    /**
+     * @return false if the file or any directory under this one on its path is hidden.
+     */
     boolean isVisible(@NotNull Path p) {
-        return !p.getFileName().startsWith(".");
+        for (Path name : dirPath.relativize(p))
+            if (name.toString().startsWith("."))
+                return false;
+        return true;
+    }
+
+    /**
+     * Scan the directory, only needed at startup or when the watcher has dropped events.
+     */
+    private void rebuildKeyIndex() {
+        Set<String> found = new HashSet<>();
+        getFiles().forEach(p -> {
+            indexFile(p);
+            found.add(keyOf(p));
+        });
+        keyIndex.keySet().removeIf(k -> !found.contains(k) && !Files.exists(dirPath.resolve(k))
+                && !pendingWrites.containsKey(k));
+    }
+
+    private String keyOf(@NotNull Path path) {
+        return dirPath.relativize(path).toString();
+    }
+
+    private void indexFile(@NotNull Path path) {
+        String key = keyOf(path);
+        BytesStore pending = pendingWrites.get(key);
+        if (pending != null) {
+            // the pending write or remove is the latest state of this key.
+            if (pending == DELETED)
+                keyIndex.remove(key);
+            return;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            keyIndex.put(key, new KeyInfo(attrs.size(), attrs.lastModifiedTime().toMillis()));
+        } catch (IOException e) {
+            // deleted in the meantime.
+            keyIndex.remove(key);
+        }
     }
 
     @Nullable
     BytesStore getFileContents(@NotNull Path path, Bytes using) {
+        if (!pendingWrites.isEmpty()) {
+            BytesStore pending = pendingWrites.get(keyOf(path));
+            if (pending != null)
+                return pending == DELETED ? null : pending;
+        }
         File file = path.toFile();
-        FileRecord<BytesStore> lastFileRecord = lastFileRecordMap.get(file);
+        BytesStore mapped = getMappedContents(file);
+        if (mapped != null)
+            return mapped;
+        FileRecord<BytesStore> lastFileRecord = fileRecordCache.get(file);
         if (lastFileRecord != null && lastFileRecord.valid
                 && file.lastModified() == lastFileRecord.timestamp) {
-            return lastFileRecord.contents;
+            Bytes contents = copyOut(lastFileRecord.contents, using);
+            if (contents != null)
+                return contents;
         }
         return getFileContentsFromDisk(path, using);
     }
 
+    /**
+     * Copy cached contents as the record may be evicted and released once handed out.
+     *
+     * @return the contents copied in to using or a thread local buffer, or null if already released.
+     */
+    @Nullable
+    private static Bytes copyOut(@NotNull BytesStore contents, @Nullable Bytes using) {
+        try {
+            contents.reserve();
+        } catch (IllegalStateException released) {
+            return null;
+        }
+        try {
+            Bytes to = using == null ? Buffers.BUFFERS.get().fileBuffer : using;
+            to.clear();
+            to.write(contents);
+            return to;
+        } finally {
+            contents.release();
+        }
+    }
+
+    /**
+     * @return a read only mapping of the file, or null if it is below the threshold or can't be mapped.
+     */
+    @Nullable
+    private BytesStore getMappedContents(@NotNull File file) {
+        if (memoryMapThreshold <= 0)
+            return null;
+        String key = keyOf(file.toPath());
+        KeyInfo info = keyIndex.get(key);
+        if (info == null || info.size < memoryMapThreshold)
+            return null;
+        FileRecord<BytesStore> record = mappedRecordMap.get(file);
+        if (record != null && record.valid && file.lastModified() == record.timestamp)
+            return record.contents;
+        synchronized (lockFor(key)) {
+            long lastModified = file.lastModified();
+            record = mappedRecordMap.get(file);
+            if (record != null && record.valid && lastModified == record.timestamp)
+                return record.contents;
+            try (FileChannel fc = new RandomAccessFile(file, "r").getChannel()) {
+                long size = fc.size();
+                if (size < memoryMapThreshold)
+                    return null;
+                BytesStore mapped = BytesStore.wrap(fc.map(FileChannel.MapMode.READ_ONLY, 0, size));
+                FileRecord<BytesStore> prev = mappedRecordMap.put(file, new FileRecord<>(lastModified, mapped));
+                if (prev != null)
+                    prev.contents.release();
+                return mapped;
+            } catch (IOException e) {
+                // deleted or not mappable, read it instead.
+                return null;
+            }
+        }
+    }
+
+    private void releaseMapping(@NotNull File file) {
+        FileRecord<BytesStore> record = mappedRecordMap.remove(file);
+        if (record != null)
+            record.contents.release();
+    }
+
+    /**
+     * @return a value which stays valid once the key has changed; a mapping is reserved for the
+     * caller, anything else may be in a thread local buffer or the cache, so is copied.
+     */
+    @Nullable
+    private BytesStore detach(@NotNull Path path, @Nullable BytesStore value) {
+        if (value == null)
+            return null;
+        FileRecord<BytesStore> mapping = mappedRecordMap.get(path.toFile());
+        if (mapping != null && mapping.contents == value) {
+            value.reserve();
+            return value;
+        }
+        return value.copy();
+    }
+
     @Nullable
     Bytes getFileContentsFromDisk(@NotNull Path path, Bytes using) {
         for (int i = 1; i <= 5; i++) {
@@ -298,7 +643,7 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
         File file = path.toFile();
 
         Buffers b = Buffers.BUFFERS.get();
-        Bytes<ByteBuffer> readingBytes = b.valueBuffer;
+        Bytes<ByteBuffer> readingBytes = b.fileBuffer;
         try (FileChannel fc = new FileInputStream(file).getChannel()) {
             readingBytes.ensureCapacity(fc.size());
 
@@ -329,16 +674,22 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
         File file = path.toFile();
         File tmpFile = new File(file.getParentFile(), "." + file.getName() + "." + System.nanoTime());
         try (FileChannel fc = new FileOutputStream(tmpFile).getChannel()) {
-            ByteBuffer byteBuffer = writingBytes.underlyingObject();
-            byteBuffer.position(0);
+            // a duplicate, as the value may be a view part way through a buffer other threads read.
+            ByteBuffer byteBuffer = writingBytes.underlyingObject().duplicate();
             byteBuffer.limit((int) writingBytes.readLimit());
-            fc.write(byteBuffer);
+            byteBuffer.position((int) writingBytes.readPosition());
+            while (byteBuffer.hasRemaining())
+                fc.write(byteBuffer);
+            if (fsync)
+                fc.force(true);
         } catch (IOException e) {
             throw new AssertionError(e);
         }
         for (int i = 1; i < 5; i++) {
             try {
                 Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                indexFile(path);
+                releaseMapping(file);
                 break;
 
             } catch (FileSystemException fse) {
@@ -359,6 +710,8 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
     private void deleteFile(@NotNull Path path) {
         try {
             Files.deleteIfExists(path);
+            keyIndex.remove(keyOf(path));
+            releaseMapping(path.toFile());
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
@@ -366,7 +719,21 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
 
     public void close() {
         closed = true;
-        fileFpmWatcher.interrupt();
+        if (fileFpmWriter != null) {
+            try {
+                fileFpmWriter.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flushPending();
+        }
+        try {
+            watchRegistration.close();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to stop watching " + dirPath, e);
+        }
+        for (File file : mappedRecordMap.keySet())
+            releaseMapping(file);
     }
 
     @Override
@@ -385,92 +752,118 @@ public class FilePerKeyValueStore implements StringBytesStoreKeyValueStore, Clos
         throw new UnsupportedOperationException("todo");
     }
 
-    private class FPMWatcher implements Runnable {
-        private final WatchService watcher;
+    /**
+     * The size and modification time of a file when last seen.
+     */
+    static final class KeyInfo {
+        final long size;
+        final long lastModified;
+
+        KeyInfo(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
 
-        public FPMWatcher(WatchService watcher) {
-            this.watcher = watcher;
+    private class FPMWatcher implements FileChangeListener {
+        @Override
+        public void onOverflow() {
+            LOGGER.warn("Events lost watching " + dirPath + ", rescanning");
+            Map<String, KeyInfo> before = new HashMap<>(keyIndex);
+            rebuildKeyIndex();
+            // notify what changed in the meantime as if each had been seen, writes still pending notify when flushed.
+            Map<Path, Kind<?>> changes = new LinkedHashMap<>();
+            keyIndex.forEach((key, info) -> {
+                KeyInfo was = before.get(key);
+                if (!pendingWrites.containsKey(key) && (was == null
+                        || was.size != info.size || was.lastModified != info.lastModified))
+                    changes.put(dirPath.resolve(key), StandardWatchEventKinds.ENTRY_MODIFY);
+            });
+            for (String key : before.keySet())
+                if (!keyIndex.containsKey(key) && !pendingWrites.containsKey(key))
+                    changes.put(dirPath.resolve(key), StandardWatchEventKinds.ENTRY_DELETE);
+            if (!changes.isEmpty())
+                onChanges(changes);
         }
 
         @Override
-        public void run() {
+        public void onChanges(@NotNull Map<Path, Kind<?>> changes) {
+            List<MapEvent<String, BytesStore>> events = new ArrayList<>();
+            // values are held until the whole batch has been notified.
+            List<BytesStore> toRelease = new ArrayList<>();
             try {
-                while (true) {
-                    WatchKey key = null;
-                    try {
-                        key = processKey();
-                    } catch (InterruptedException e) {
+                changes.forEach((p, kind) -> {
+                    if (!isVisible(p) || Files.isDirectory(p)) {
+                        //this avoids temporary files being added to the map
                         return;
-                    } finally {
-                        if (key != null) key.reset();
                     }
-                }
-            } catch (Throwable e) {
-                if (!closed)
-                    e.printStackTrace();
+                    String mapKey = keyOf(p);
+                    MapEvent<String, BytesStore> event = kind == StandardWatchEventKinds.ENTRY_DELETE
+                            ? onDelete(p, mapKey, toRelease)
+                            : onUpdate(p, mapKey, toRelease);
+                    if (event != null)
+                        events.add(event);
+                });
+                if (!events.isEmpty())
+                    subscriptions.notifyEvents(events);
+            } finally {
+                toRelease.forEach(BytesStore::release);
             }
         }
 
-        @NotNull
-        private WatchKey processKey() throws InterruptedException, IOException, InvalidSubscriberException {
-            WatchKey key = watcher.take();
-            for (WatchEvent<?> event : key.pollEvents()) {
-                Kind<?> kind = event.kind();
-
-                if (kind == StandardWatchEventKinds.OVERFLOW) {
-                    // todo log a warning.
-                    continue;
-                }
-
-                // get file fullName
-                WatchEvent<Path> ev = (WatchEvent<Path>) event;
-                Path fileName = ev.context();
-                String mapKey = fileName.toString();
-                if (mapKey.startsWith(".")) {
-                    //this avoids temporary files being added to the map
-                    continue;
-                }
-//                System.out.println("file: "+mapKey+" kind: "+kind);
-
-                if (kind == StandardWatchEventKinds.ENTRY_CREATE || kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-                    Path p = dirPath.resolve(fileName);
-                    BytesStore mapVal = getFileContentsFromDisk(p, null);
-
-                    FileRecord<BytesStore> prev = lastFileRecordMap.get(p.toFile());
-//                    if (mapVal == null) {
-//                            System.out.println("Unable to read "+mapKey+", exists: "+p.toFile().exists());
-//                    }
-                    if (prev != null && BytesUtil.contentEqual(mapVal, prev.contents)) {
-//                            System.out.println("... key: "+mapKey+" equal, last.keys: "+new TreeSet<>(lastFileRecordMap.keySet()));
-                        continue;
-                    }
-
-                    if (mapVal == null) {
-                        // todo this shouldn't happen.
-                        if (prev != null)
-                            mapVal = prev.contents;
-                    } else {
-//                            System.out.println("adding "+mapKey);
-                        lastFileRecordMap.put(p.toFile(), new FileRecord<>(p.toFile().lastModified(), mapVal.copy()));
-                    }
-                    if (prev == null) {
-                        subscriptions.notifyEvent(InsertedEvent.of(asset.fullName(), p.toFile().getName(), mapVal));
-                    } else {
-                        subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), p.toFile().getName(), prev.contents, mapVal));
-                        prev.contents.release();
-                    }
-
-                } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-                    Path p = dirPath.resolve(fileName);
-
-                    FileRecord<BytesStore> prev = lastFileRecordMap.remove(p.toFile());
-                    BytesStore lastVal = prev == null ? null : prev.contents;
-                    subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), p.toFile().getName(), lastVal));
-                    if (prev != null)
-                        prev.contents.release();
+        @Nullable
+        private MapEvent<String, BytesStore> onUpdate(@NotNull Path p, String mapKey, @NotNull List<BytesStore> toRelease) {
+            indexFile(p);
+            // large files are mapped rather than copied on to the heap.
+            BytesStore mapped = getMappedContents(p.toFile());
+            BytesStore mapVal = mapped == null ? getFileContentsFromDisk(p, null) : mapped;
+
+            File file = p.toFile();
+            // the contents may have been evicted, in which case the hash is compared.
+            boolean seen = fileRecordCache.contains(file);
+            if (seen && fileRecordCache.isUnchanged(file, mapVal))
+                return null;
+
+            BytesStore lastVal;
+            if (mapVal == null) {
+                // todo this shouldn't happen.
+                FileRecord<BytesStore> last = fileRecordCache.get(file);
+                lastVal = last == null ? null : last.contents;
+                mapVal = lastVal;
+            } else {
+                BytesStore contents;
+                if (mapped == null) {
+                    // copy as the value read is in a thread local buffer.
+                    contents = mapVal.copy();
+                } else {
+                    // share the mapping, holding a reference of our own.
+                    mapped.reserve();
+                    contents = mapped;
                 }
+                // a reference for the event, in case it is evicted before the batch is notified.
+                contents.reserve();
+                toRelease.add(contents);
+                FileRecord<BytesStore> prev = fileRecordCache.put(file, new FileRecord<>(file.lastModified(), contents));
+                lastVal = prev == null ? null : prev.contents;
+                if (prev != null)
+                    toRelease.add(prev.contents);
+                mapVal = contents;
             }
-            return key;
+            return seen
+                    ? UpdatedEvent.of(asset.fullName(), mapKey, lastVal, mapVal)
+                    : InsertedEvent.of(asset.fullName(), mapKey, mapVal);
+        }
+
+        @NotNull
+        private MapEvent<String, BytesStore> onDelete(@NotNull Path p, String mapKey, @NotNull List<BytesStore> toRelease) {
+            keyIndex.remove(mapKey);
+            releaseMapping(p.toFile());
+
+            FileRecord<BytesStore> prev = fileRecordCache.remove(p.toFile());
+            BytesStore lastVal = prev == null ? null : prev.contents;
+            if (prev != null)
+                toRelease.add(prev.contents);
+            return RemovedEvent.of(asset.fullName(), mapKey, lastVal);
         }
     }
 
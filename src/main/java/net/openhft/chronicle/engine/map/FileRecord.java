@@ -21,7 +21,7 @@ package net.openhft.chronicle.engine.map;
  */
 class FileRecord<T> {
     final long timestamp;
-    boolean valid = true;
+    volatile boolean valid = true;
     final T contents;
 
     FileRecord(long timestamp, T contents) {
@@ -0,0 +1,159 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.bytes.BytesUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last contents seen of each file, held up to a budget in bytes and evicted by the CLOCK
+ * policy, so a read only sets a flag rather than reordering a shared list under a lock.
+ * A hash of the contents is kept for every file, so a change can still be detected once the
+ * contents have been evicted. Records evicted are released, records replaced or removed are
+ * returned to the caller to release. As a record may be evicted by another thread, a reader
+ * must reserve() its contents while it uses them.
+ */
+class FileRecordCache {
+    private final long maxBytes;
+    private final Map<File, Long> hashes = new ConcurrentHashMap<>();
+    private final Map<File, Entry> records = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    // the clock hand, only moved by the thread evicting.
+    private Iterator<Map.Entry<File, Entry>> hand;
+
+    FileRecordCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    static long hash(@NotNull BytesStore bs) {
+        long h = bs.readRemaining();
+        long i = bs.readPosition(), limit = bs.readLimit();
+        for (; i <= limit - 8; i += 8)
+            h = h * 0x9E3779B97F4A7C15L + bs.readLong(i);
+        for (; i < limit; i++)
+            h = h * 0x9E3779B97F4A7C15L + bs.readByte(i);
+        return h ^ (h >>> 29);
+    }
+
+    /**
+     * @return whether the file has been seen, even if its contents have been evicted.
+     */
+    boolean contains(@NotNull File file) {
+        return hashes.containsKey(file);
+    }
+
+    /**
+     * @return whether the contents are the same as those last seen for this file.
+     */
+    boolean isUnchanged(@NotNull File file, @Nullable BytesStore contents) {
+        if (contents == null)
+            return false;
+        Long h = hashes.get(file);
+        if (h == null)
+            return false;
+        FileRecord<BytesStore> record = get(file);
+        return record == null ? h == hash(contents) : BytesUtil.contentEqual(record.contents, contents);
+    }
+
+    @Nullable
+    FileRecord<BytesStore> get(@NotNull File file) {
+        Entry entry = records.get(file);
+        if (entry == null)
+            return null;
+        entry.referenced = true;
+        return entry.record;
+    }
+
+    /**
+     * @return the record replaced, if it was still cached.
+     */
+    @Nullable
+    FileRecord<BytesStore> put(@NotNull File file, @NotNull FileRecord<BytesStore> record) {
+        hashes.put(file, hash(record.contents));
+        long size = record.contents.readRemaining();
+        // evict before adding so the record just seen is always kept.
+        evict(file, size);
+        Entry prev = records.put(file, new Entry(record));
+        bytes.addAndGet(size - (prev == null ? 0 : prev.size));
+        return prev == null ? null : prev.record;
+    }
+
+    private synchronized void evict(@NotNull File keep, long size) {
+        // each record is passed over once while referenced, so this goes around at most twice.
+        for (int skipped = 0; bytes.get() + size > maxBytes && skipped <= 2 * records.size(); skipped++) {
+            if (hand == null || !hand.hasNext()) {
+                hand = records.entrySet().iterator();
+                if (!hand.hasNext())
+                    return;
+            }
+            Map.Entry<File, Entry> next = hand.next();
+            Entry entry = next.getValue();
+            if (next.getKey().equals(keep))
+                continue;
+            if (entry.referenced) {
+                entry.referenced = false;
+                continue;
+            }
+            if (records.remove(next.getKey(), entry)) {
+                bytes.addAndGet(-entry.size);
+                entry.record.contents.release();
+            }
+        }
+    }
+
+    /**
+     * @return the record removed, if it was still cached.
+     */
+    @Nullable
+    FileRecord<BytesStore> remove(@NotNull File file) {
+        hashes.remove(file);
+        Entry prev = records.remove(file);
+        if (prev == null)
+            return null;
+        bytes.addAndGet(-prev.size);
+        return prev.record;
+    }
+
+    void invalidate(@NotNull File file) {
+        Entry entry = records.get(file);
+        if (entry != null)
+            entry.record.valid = false;
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    static final class Entry {
+        final FileRecord<BytesStore> record;
+        final long size;
+        volatile boolean referenced;
+
+        Entry(FileRecord<BytesStore> record) {
+            this.record = record;
+            this.size = record.contents.readRemaining();
+        }
+    }
+}
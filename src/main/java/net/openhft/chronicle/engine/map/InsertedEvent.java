@@ -48,6 +48,16 @@ public class InsertedEvent<K, V> implements MapEvent<K, V> {
         return new InsertedEvent<>(assetName, key, value);
     }
 
+    /**
+     * Reuse this event for another entry, only when the consumer doesn't retain the event.
+     */
+    @NotNull
+    InsertedEvent<K, V> set(K key, V value) {
+        this.key = key;
+        this.value = value;
+        return this;
+    }
+
     @NotNull
     @Override
     public <K2, V2> MapEvent<K2, V2> translate(@NotNull Function<K, K2> keyFunction, @NotNull Function<V, V2> valueFunction) {
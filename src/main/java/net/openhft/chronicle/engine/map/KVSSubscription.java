@@ -24,6 +24,8 @@ import net.openhft.chronicle.engine.api.pubsub.Subscription;
 import net.openhft.chronicle.engine.api.pubsub.TopicSubscriber;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
 
+import java.util.Collection;
+
 /**
  * Created by peter on 29/05/15.
  */
@@ -49,6 +51,15 @@ public interface KVSSubscription<K, MV, V> extends Subscription<MapEvent<K, V>>,
 
     void notifyEvent(MapEvent<K, V> changeEvent);
 
+    /**
+     * Notify a batch of events, passing each subscriber all the events in turn.
+     */
+    @Override
+    default void notifyEvents(Collection<MapEvent<K, V>> changeEvents) {
+        for (MapEvent<K, V> changeEvent : changeEvents)
+            notifyEvent(changeEvent);
+    }
+
     int keySubscriberCount();
 
     int entrySubscriberCount();
@@ -0,0 +1,136 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import java.util.Arrays;
+
+/**
+ * A pure Java compressor and decompressor for the LZ4 block format, favouring speed over ratio.
+ */
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    static final int TABLE_SIZE = 1 << HASH_BITS;
+    // the last match must start this many bytes before the end, and the last 5 bytes are literals.
+    private static final int MF_LIMIT = 12;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+
+    private Lz4() {
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    /**
+     * @return the length of the compressed data written to dst, which must be at least
+     * maxCompressedLength(length), using a table of TABLE_SIZE.
+     */
+    static int compress(byte[] src, int length, byte[] dst, int[] table) {
+        Arrays.fill(table, 0);
+        int anchor = 0, ip = 0, op = 0;
+        int limit = length - MF_LIMIT;
+        int matchLimit = length - LAST_LITERALS;
+        while (ip < limit) {
+            int seq = readInt(src, ip);
+            int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+            // positions are stored plus one so zero means empty.
+            int ref = table[h] - 1;
+            table[h] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength])
+                matchLength++;
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeSequence(src, anchor, length - anchor, dst, op, 0, 0);
+    }
+
+    private static int writeSequence(byte[] src, int start, int literals, byte[] dst, int op, int offset, int matchLength) {
+        int tokenPos = op++;
+        int token = Math.min(literals, 15) << 4;
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, start, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLength - MIN_MATCH, 15);
+            op = writeLength(matchLength - MIN_MATCH, dst, op);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        if (length < 15)
+            return op;
+        length -= 15;
+        for (; length >= 255; length -= 255)
+            dst[op++] = (byte) 255;
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * Decompress exactly length bytes into dst.
+     */
+    static void decompress(byte[] src, int srcLength, byte[] dst, int length) {
+        int ip = 0, op = 0;
+        while (ip < srcLength) {
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    literals += b;
+                } while (b == 255);
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip >= srcLength)
+                break;
+            int offset = (src[ip++] & 0xFF) | (src[ip++] & 0xFF) << 8;
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    b = src[ip++] & 0xFF;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            // byte by byte as the match may overlap the bytes being written.
+            for (int ref = op - offset, end = op + matchLength; op < end; )
+                dst[op++] = dst[ref++];
+        }
+        if (op != length)
+            throw new IllegalStateException("Expected " + length + " bytes but decompressed " + op);
+    }
+}
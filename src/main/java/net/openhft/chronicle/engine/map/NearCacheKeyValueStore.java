@@ -0,0 +1,416 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.pubsub.Subscriber;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import net.openhft.chronicle.wire.Marshallable;
+import net.openhft.chronicle.wire.Wire;
+import net.openhft.chronicle.wire.WireType;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
+
+/**
+ * A bounded on heap cache of the values read from a slower store, e.g. one per file, persisted
+ * or remote. Once {@link RequestContext#nearCacheSize()} is reached an entry is evicted as
+ * {@link RequestContext#nearCacheEviction()} decides, either the least recently used of a sample
+ * of entries or by the CLOCK policy, which only sets a flag on a read. Both take their entries from
+ * a hand which moves around the cache, so each eviction looks at different entries.  The cache
+ * subscribes to the asset so changes made by any path are evicted, and a value read while a change
+ * was made to a key in the same stripe isn't cached.
+ * <p>
+ * Values returned by get() are shared by all readers and must not be modified. A Marshallable value
+ * passed to getUsing() is read in to from the cached value.
+ */
+public class NearCacheKeyValueStore<K, MV, V> extends AbstractKeyValueStore<K, MV, V>
+        implements ObjectKeyValueStore<K, MV, V> {
+    private static final int STRIPES = 1024;
+    private static final int EVICTION_SAMPLE = 8;
+    private static final ThreadLocal<Wire> COPY_WIRE = ThreadLocal.withInitial(() -> WireType.BINARY.apply(Bytes.elasticByteBuffer()));
+
+    private final ObjectKeyValueStore<K, MV, V> store;
+    private final int maxSize;
+    private final Eviction eviction;
+    private final Map<K, Cached<V>> cache = new ConcurrentHashMap<>();
+    // incremented on every change to a key in the stripe, so a read which overlaps a change isn't cached.
+    private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    // where the next eviction starts looking, guarded by this.
+    private Iterator<Map.Entry<K, Cached<V>>> hand;
+
+    public NearCacheKeyValueStore(@NotNull RequestContext context, @NotNull Asset asset, @NotNull ObjectKeyValueStore<K, MV, V> kvStore) {
+        super(context, asset, kvStore);
+        this.store = kvStore;
+        this.maxSize = (int) Math.min(Integer.MAX_VALUE, context.nearCacheSize());
+        this.eviction = Eviction.parse(context.nearCacheEviction());
+        KVSSubscription<K, MV, V> subscription = (KVSSubscription) asset.subscription(true);
+        subscription.registerSubscriber(requestContext().bootstrap(false).type(MapEvent.class),
+                (Subscriber<MapEvent<K, V>>) e -> invalidate(e.key()));
+        // so the counters can be found.
+        asset.registerView(NearCacheKeyValueStore.class, this);
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    public int cacheSize() {
+        return cache.size();
+    }
+
+    @Override
+    public Class<K> keyType() {
+        return store.keyType();
+    }
+
+    @Override
+    public Class<V> valueType() {
+        return store.valueType();
+    }
+
+    @Override
+    public KVSSubscription<K, MV, V> subscription(boolean createIfAbsent) {
+        return store.subscription(createIfAbsent);
+    }
+
+    private static int stripe(@NotNull Object key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private void invalidate(K key) {
+        // increment first so a read of this key which is about to be cached sees the change.
+        versions.incrementAndGet(stripe(key));
+        cache.remove(key);
+    }
+
+    private void invalidateAll() {
+        for (int i = 0; i < STRIPES; i++)
+            versions.incrementAndGet(i);
+        cache.clear();
+    }
+
+    @Nullable
+    @Override
+    public V getUsing(K key, MV value) {
+        Cached<V> cached = cache.get(key);
+        if (cached != null) {
+            V v = cached.value;
+            if (value == null) {
+                hits.increment();
+                touch(cached);
+                return v;
+            }
+            if (v instanceof Marshallable && value instanceof Marshallable) {
+                hits.increment();
+                touch(cached);
+                return (V) copy((Marshallable) v, (Marshallable) value);
+            }
+            // the value passed can't be read in to, so it is read from the store.
+        }
+        misses.increment();
+        int stripe = stripe(key);
+        long version = versions.get(stripe);
+        V v = kvStore.getUsing(key, value);
+        // the value read might be the one passed or a buffer reused by the underlying store.
+        if (v != null && v != value && !(v instanceof BytesStore) && versions.get(stripe) == version) {
+            Cached<V> entry = new Cached<>(v);
+            cache.put(key, entry);
+            // a change made while caching it removes the entry, or is seen here.
+            if (versions.get(stripe) != version)
+                cache.remove(key, entry);
+            else if (cache.size() > maxSize)
+                evict();
+        }
+        return v;
+    }
+
+    @NotNull
+    private static Marshallable copy(@NotNull Marshallable from, @NotNull Marshallable to) {
+        Wire wire = COPY_WIRE.get();
+        wire.bytes().clear();
+        from.writeMarshallable(wire);
+        to.readMarshallable(wire);
+        return to;
+    }
+
+    private void touch(@NotNull Cached<V> cached) {
+        if (eviction == Eviction.CLOCK)
+            cached.referenced = true;
+        else
+            cached.accessed = System.nanoTime();
+    }
+
+    /**
+     * Evicts until the cache is back to its size. Finding the least recently used of all the
+     * entries would need a global lock, so only those under the hand are looked at.
+     */
+    private synchronized void evict() {
+        while (cache.size() > maxSize) {
+            Map.Entry<K, Cached<V>> victim = eviction == Eviction.CLOCK ? clockVictim() : sampledVictim();
+            if (victim == null)
+                return;
+            if (cache.remove(victim.getKey(), victim.getValue()))
+                evictions.increment();
+        }
+    }
+
+    @Nullable
+    private Map.Entry<K, Cached<V>> nextEntry() {
+        if (hand == null || !hand.hasNext()) {
+            hand = cache.entrySet().iterator();
+            if (!hand.hasNext())
+                return null;
+        }
+        return hand.next();
+    }
+
+    /**
+     * @return the least recently used of the next sample of entries.
+     */
+    @Nullable
+    private Map.Entry<K, Cached<V>> sampledVictim() {
+        Map.Entry<K, Cached<V>> eldest = null;
+        for (int i = 0; i < EVICTION_SAMPLE; i++) {
+            Map.Entry<K, Cached<V>> entry = nextEntry();
+            if (entry == null)
+                break;
+            if (eldest == null || entry.getValue().accessed < eldest.getValue().accessed)
+                eldest = entry;
+        }
+        return eldest;
+    }
+
+    /**
+     * @return the next entry not read since the hand last passed it.
+     */
+    @Nullable
+    private Map.Entry<K, Cached<V>> clockVictim() {
+        // each entry is passed over once if it has been read, so this goes around at most twice.
+        for (int i = 0, max = 2 * cache.size() + 1; i < max; i++) {
+            Map.Entry<K, Cached<V>> entry = nextEntry();
+            if (entry == null)
+                return null;
+            Cached<V> cached = entry.getValue();
+            if (!cached.referenced)
+                return entry;
+            cached.referenced = false;
+        }
+        return nextEntry();
+    }
+
+    @Override
+    public V get(K key) {
+        return getUsing(key, null);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return cache.containsKey(key) || kvStore.containsKey(key);
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        try {
+            return kvStore.put(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public V getAndPut(K key, V value) {
+        try {
+            return kvStore.getAndPut(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean remove(K key) {
+        try {
+            return kvStore.remove(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public V getAndRemove(K key) {
+        try {
+            return kvStore.getAndRemove(key);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        try {
+            return kvStore.replace(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean replaceIfEqual(K key, V oldValue, V newValue) {
+        try {
+            return kvStore.replaceIfEqual(key, oldValue, newValue);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public boolean removeIfEqual(K key, V value) {
+        try {
+            return kvStore.removeIfEqual(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        try {
+            return kvStore.putIfAbsent(key, value);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        try {
+            return kvStore.compute(key, function);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        try {
+            return kvStore.merge(key, value, function);
+        } finally {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K key : keys) {
+            V v = get(key);
+            if (v != null)
+                result.put(key, v);
+        }
+        return result;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        try {
+            kvStore.putAll(entries);
+        } finally {
+            entries.keySet().forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        try {
+            kvStore.removeAll(keys);
+        } finally {
+            keys.forEach(this::invalidate);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            kvStore.clear();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    static final class Cached<V> {
+        final V value;
+        volatile long accessed = System.nanoTime();
+        volatile boolean referenced;
+
+        Cached(V value) {
+            this.value = value;
+        }
+    }
+
+    public enum Eviction {
+        LRU, CLOCK;
+
+        @NotNull
+        static Eviction parse(String eviction) {
+            if (eviction == null || eviction.isEmpty())
+                return LRU;
+            switch (eviction.toLowerCase()) {
+                case "lru":
+                    return LRU;
+                case "clock":
+                    return CLOCK;
+                default:
+                    throw new IllegalArgumentException("Unknown near cache eviction " + eviction + ", expected lru or clock");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "NearCacheKeyValueStore{" +
+                "hits=" + hits() +
+                ", misses=" + misses() +
+                ", evictions=" + evictions() +
+                '}';
+    }
+}
@@ -30,8 +30,6 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Iterator;
-import java.util.Map;
 import java.util.function.BiFunction;
 
 import static net.openhft.chronicle.engine.map.Buffers.BUFFERS;
@@ -117,12 +115,6 @@ public class ObjectObjectKeyValueStore<K, MV extends V, V> implements KeyValueSt
         kvStore.entriesFor(segment, e -> kvConsumer.accept(e.translate(bytesToKey, bytesToValue)));
     }
 
-    @NotNull
-    @Override
-    public Iterator<Map.Entry<K, V>> entrySetIterator() {
-        throw new UnsupportedOperationException("todo");
-    }
-
     @Override
     public void clear() {
         kvStore.clear();
@@ -136,7 +128,7 @@ public class ObjectObjectKeyValueStore<K, MV extends V, V> implements KeyValueSt
 
     @Override
     public boolean containsValue(final MV value) {
-        throw new UnsupportedOperationException("todo");
+        return kvStore.containsValue(valueToBytes.apply(value, Bytes.elasticByteBuffer()));
     }
 
     @Override
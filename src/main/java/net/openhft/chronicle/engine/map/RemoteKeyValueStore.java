@@ -111,7 +111,34 @@ public class RemoteKeyValueStore<K, V> extends AbstractStatelessClient<EventId>
 
     @Override
     public boolean containsValue(final V value) {
-        throw new UnsupportedOperationException("todo");
+        checkValue(value);
+        return proxyReturnBoolean(containsValue, out -> out.object(value));
+    }
+
+    @NotNull
+    public Set<K> keysForIndex(String indexName, Object fieldValue) {
+        return proxyReturnWireConsumerInOut(keysForIndex, CoreFields.reply,
+                toParameters(keysForIndex, indexName, fieldValue), this::readKeys);
+    }
+
+    @NotNull
+    public Set<K> keysBetweenIndex(String indexName, @Nullable Comparable from, @Nullable Comparable to) {
+        return proxyReturnWireConsumerInOut(keysBetweenIndex, CoreFields.reply,
+                toParameters(keysBetweenIndex, indexName, from, to), this::readKeys);
+    }
+
+    public boolean hasIndex(String indexName) {
+        return proxyReturnBoolean(hasIndex, out -> out.text(indexName));
+    }
+
+    @NotNull
+    private Set<K> readKeys(@NotNull ValueIn read) {
+        final Set<K> keys = new LinkedHashSet<>();
+        read.sequence(s -> {
+            while (s.hasNextSequenceItem())
+                keys.add(s.object(kClass));
+        });
+        return keys;
     }
 
 
@@ -274,6 +301,19 @@ public class RemoteKeyValueStore<K, V> extends AbstractStatelessClient<EventId>
         return false;
     }
 
+    @Override
+    public void putAll(@NotNull Map<? extends K, ? extends V> entries) {
+        entries.forEach((k, v) -> {
+            checkKey(k);
+            checkValue(v);
+        });
+        sendEventAsync(putAll, valueOut -> valueOut.sequence(out -> entries.forEach((k, v) ->
+                out.marshallable(m -> {
+                    m.write(put.params()[0]).object(k);
+                    m.write(put.params()[1]).object(v);
+                }))));
+    }
+
     @Nullable
     @Override
     public V getAndPut(final Object key, final Object value) {
@@ -362,6 +402,18 @@ public class RemoteKeyValueStore<K, V> extends AbstractStatelessClient<EventId>
         return entrySet().iterator();
     }
 
+    @NotNull
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        return entrySet().spliterator();
+    }
+
+    @NotNull
+    @Override
+    public Iterator<K> keySetIterator() {
+        return keySet().iterator();
+    }
+
     @Nullable
     public Set<K> keySet() {
 
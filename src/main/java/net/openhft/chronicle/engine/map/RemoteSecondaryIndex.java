@@ -0,0 +1,78 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.map.SecondaryIndex;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+
+/**
+ * Looks up the indexes defined on the server, via the map's connection.
+ */
+public class RemoteSecondaryIndex<K, V> implements SecondaryIndex<K, V> {
+    private final RemoteKeyValueStore<K, V> kvStore;
+
+    public RemoteSecondaryIndex(RequestContext context, Asset asset, @NotNull ObjectKeyValueStore<K, V, V> kvStore) {
+        // the remote store may have a near cache in front of it.
+        KeyValueStore store = kvStore;
+        while (store != null && !(store instanceof RemoteKeyValueStore))
+            store = store.underlying();
+        if (store == null)
+            throw new IllegalArgumentException("Expected a RemoteKeyValueStore but was " + kvStore.getClass());
+        this.kvStore = (RemoteKeyValueStore<K, V>) store;
+    }
+
+    @Override
+    public <F> void addHashIndex(String name, SerializableFunction<V, F> field) {
+        throw new UnsupportedOperationException("Indexes are added on the server");
+    }
+
+    @Override
+    public <F extends Comparable<? super F>> void addSortedIndex(String name, SerializableFunction<V, F> field) {
+        throw new UnsupportedOperationException("Indexes are added on the server");
+    }
+
+    /**
+     * Asks the server, as indexes can only be added there.
+     */
+    @Override
+    public boolean hasIndex(String name) {
+        return kvStore.hasIndex(name);
+    }
+
+    @NotNull
+    @Override
+    public Set<K> keysFor(String name, Object fieldValue) {
+        return kvStore.keysForIndex(name, fieldValue);
+    }
+
+    @NotNull
+    @Override
+    public Set<K> keysBetween(String name, @Nullable Comparable from, @Nullable Comparable to) {
+        return kvStore.keysBetweenIndex(name, from, to);
+    }
+
+    @Override
+    public boolean containsValue(V value) {
+        return kvStore.containsValue(value);
+    }
+}
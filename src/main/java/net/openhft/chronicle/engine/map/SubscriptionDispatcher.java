@@ -0,0 +1,78 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.core.io.Closeable;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import net.openhft.chronicle.engine.api.tree.View;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pool of threads delivering to every {@link AsyncSubscriber} in a tree, acquired from the
+ * root asset and shut down when the tree is closed.
+ * <p>
+ * The threads are only started as events are queued.
+ */
+public class SubscriptionDispatcher implements View, Closeable {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final ExecutorService dispatchers;
+
+    public SubscriptionDispatcher(RequestContext context, @NotNull Asset asset) {
+        this(asset.fullName());
+    }
+
+    public SubscriptionDispatcher(String name) {
+        String prefix = (name.isEmpty() ? "" : name + "/") + "subscriber-dispatcher-";
+        this.dispatchers = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+                r -> new DispatcherThread(r, prefix + THREAD_COUNT.incrementAndGet()));
+    }
+
+    /**
+     * @return false if the task wasn't run as the dispatcher has been closed.
+     */
+    boolean execute(@NotNull Runnable task) {
+        try {
+            dispatchers.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop taking tasks, those already queued are still run.
+     */
+    @Override
+    public void close() {
+        dispatchers.shutdown();
+    }
+
+    static final class DispatcherThread extends Thread {
+        DispatcherThread(Runnable r, String name) {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.pubsub.Subscriber;
+import net.openhft.chronicle.engine.api.pubsub.TopicSubscriber;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the events a subscriber is sent by {@link RequestContext#keys()}, a glob of keys as
+ * {@link RequestContext#keyPattern()} where * matches any characters and ? one, and
+ * {@link RequestContext#valueFilter()}. All that are given must match. Removals have no value so
+ * are sent if the key matches, and key subscribers are only sent keys, so they aren't filtered by value.
+ */
+public final class SubscriptionFilter<K, V> {
+    @Nullable
+    private final Set<String> keys;
+    @Nullable
+    private final String prefix;
+    @Nullable
+    private final Pattern pattern;
+    @Nullable
+    private final Predicate<V> valueFilter;
+
+    private SubscriptionFilter(@Nullable Set<String> keys, @Nullable String keyPattern, @Nullable Predicate<V> valueFilter) {
+        this.keys = keys;
+        this.valueFilter = valueFilter;
+        if (keyPattern == null || keyPattern.isEmpty() || keyPattern.equals("*")) {
+            prefix = null;
+            pattern = null;
+
+        } else if (keyPattern.indexOf('*') == keyPattern.length() - 1 && keyPattern.indexOf('?') < 0) {
+            // the common case of a prefix doesn't need a regex.
+            prefix = keyPattern.substring(0, keyPattern.length() - 1);
+            pattern = null;
+
+        } else {
+            prefix = null;
+            pattern = Pattern.compile(globToRegex(keyPattern));
+        }
+    }
+
+    /**
+     * @return the filter requested, or null if every event is wanted.
+     */
+    @Nullable
+    public static <K, V> SubscriptionFilter<K, V> of(@NotNull RequestContext rc) {
+        Set<String> keys = rc.keys();
+        String keyPattern = rc.keyPattern();
+        Predicate<V> valueFilter = rc.valueFilter();
+        if (keys == null && (keyPattern == null || keyPattern.isEmpty()) && valueFilter == null)
+            return null;
+        return new SubscriptionFilter<>(keys, keyPattern, valueFilter);
+    }
+
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char ch = glob.charAt(i);
+            if (ch == '*' || ch == '?') {
+                if (start < i)
+                    sb.append(Pattern.quote(glob.substring(start, i)));
+                sb.append(ch == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length())
+            sb.append(Pattern.quote(glob.substring(start)));
+        return sb.toString();
+    }
+
+    /**
+     * @return the set of keys this filter is limited to, or null if not limited to a set.
+     */
+    @Nullable
+    public Set<String> keys() {
+        return keys;
+    }
+
+    /**
+     * @return whether only the set of keys is checked, so a subscriber indexed by those keys needn't be filtered.
+     */
+    public boolean keysOnly() {
+        return keys != null && prefix == null && pattern == null && valueFilter == null;
+    }
+
+    public boolean testKey(K key) {
+        if (keys == null && prefix == null && pattern == null)
+            return true;
+        String keyStr = key.toString();
+        if (keys != null && !keys.contains(keyStr))
+            return false;
+        if (prefix != null && !keyStr.startsWith(prefix))
+            return false;
+        return pattern == null || pattern.matcher(keyStr).matches();
+    }
+
+    public boolean test(K key, V value) {
+        return testKey(key) && (valueFilter == null || value == null || valueFilter.test(value));
+    }
+
+    public boolean test(@NotNull MapEvent<K, V> event) {
+        return test(event.key(), event.value());
+    }
+
+    @NotNull
+    Subscriber<MapEvent<K, V>> filterEntries(@NotNull Subscriber<MapEvent<K, V>> subscriber) {
+        return new Subscriber<MapEvent<K, V>>() {
+            @Override
+            public void onMessage(MapEvent<K, V> e) throws InvalidSubscriberException {
+                if (test(e))
+                    subscriber.onMessage(e);
+            }
+
+            @Override
+            public void onEndOfSubscription() {
+                subscriber.onEndOfSubscription();
+            }
+        };
+    }
+
+    @NotNull
+    Subscriber<K> filterKeys(@NotNull Subscriber<K> subscriber) {
+        return new Subscriber<K>() {
+            @Override
+            public void onMessage(K key) throws InvalidSubscriberException {
+                if (testKey(key))
+                    subscriber.onMessage(key);
+            }
+
+            @Override
+            public void onEndOfSubscription() {
+                subscriber.onEndOfSubscription();
+            }
+        };
+    }
+
+    @NotNull
+    TopicSubscriber<K, V> filterTopics(@NotNull TopicSubscriber<K, V> subscriber) {
+        return new TopicSubscriber<K, V>() {
+            @Override
+            public void onMessage(K key, V value) throws InvalidSubscriberException {
+                if (test(key, value))
+                    subscriber.onMessage(key, value);
+            }
+
+            @Override
+            public void onEndOfSubscription() {
+                subscriber.onEndOfSubscription();
+            }
+        };
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
+
+/**
+ * A hierarchical timing wheel of four levels of 64 slots.  Scheduling is O(1) and each tick only
+ * visits the entries due, plus those cascading down a level every 64, 4096 and 262144 ticks.
+ * Entries further out than 64^4 ticks wait in an overflow list which is re-examined as the top
+ * level turns.
+ * <p>
+ * Entries are not cancelled when they are superseded. Those the caller says are no longer current
+ * are dropped as they cascade down a level, and the caller checks whether an entry fired is still
+ * current.  Not thread safe.
+ */
+class TimingWheel<K> {
+    private static final int BITS = 6, SLOTS = 1 << BITS, MASK = SLOTS - 1, LEVELS = 4;
+
+    private final long tickMillis;
+    @NotNull
+    private final BiPredicate<K, Long> current;
+    private final List<Entry<K>>[][] wheels = new List[LEVELS][SLOTS];
+    private List<Entry<K>> overflow = new ArrayList<>();
+    private long currentTick;
+
+    TimingWheel(long tickMillis, long nowMillis) {
+        this(tickMillis, nowMillis, (k, deadline) -> true);
+    }
+
+    /**
+     * @param current whether the entry for a key and deadline is still wanted.
+     */
+    TimingWheel(long tickMillis, long nowMillis, @NotNull BiPredicate<K, Long> current) {
+        this.tickMillis = tickMillis;
+        this.current = current;
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * @param deadlineMillis the time at or after which the entry is fired, rounded up to a whole tick.
+     */
+    void schedule(K key, long deadlineMillis) {
+        long deadlineTick = (deadlineMillis + tickMillis - 1) / tickMillis;
+        // the current tick has already fired.
+        add(new Entry<>(key, deadlineMillis, Math.max(deadlineTick, currentTick + 1)));
+    }
+
+    private void add(@NotNull Entry<K> entry) {
+        long delta = entry.deadlineTick - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (BITS * (level + 1))) {
+                int slot = (int) ((entry.deadlineTick >>> (BITS * level)) & MASK);
+                List<Entry<K>> list = wheels[level][slot];
+                if (list == null)
+                    list = wheels[level][slot] = new ArrayList<>();
+                list.add(entry);
+                return;
+            }
+        }
+        overflow.add(entry);
+    }
+
+    /**
+     * Move the wheel on to the time given, passing each key and its deadline as it is due.
+     */
+    void advance(long nowMillis, @NotNull BiConsumer<K, Long> expired) {
+        long nowTick = nowMillis / tickMillis;
+        while (currentTick < nowTick) {
+            currentTick++;
+            cascade();
+            List<Entry<K>> due = wheels[0][(int) (currentTick & MASK)];
+            if (due == null || due.isEmpty())
+                continue;
+            wheels[0][(int) (currentTick & MASK)] = null;
+            for (Entry<K> entry : due)
+                expired.accept(entry.key, entry.deadlineMillis);
+        }
+    }
+
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << (BITS * level)) - 1)) != 0)
+                return;
+            int slot = (int) ((currentTick >>> (BITS * level)) & MASK);
+            List<Entry<K>> list = wheels[level][slot];
+            if (list != null) {
+                wheels[level][slot] = null;
+                readd(list);
+            }
+        }
+        if ((currentTick & ((1L << (BITS * LEVELS)) - 1)) == 0 && !overflow.isEmpty()) {
+            List<Entry<K>> list = overflow;
+            overflow = new ArrayList<>();
+            readd(list);
+        }
+    }
+
+    private void readd(@NotNull List<Entry<K>> list) {
+        for (Entry<K> entry : list)
+            if (current.test(entry.key, entry.deadlineMillis))
+                add(entry);
+    }
+
+    /**
+     * @return the number of entries held, including those superseded but not yet dropped.
+     */
+    int size() {
+        int size = overflow.size();
+        for (List<Entry<K>>[] wheel : wheels)
+            for (List<Entry<K>> list : wheel)
+                if (list != null)
+                    size += list.size();
+        return size;
+    }
+
+    static final class Entry<K> {
+        final K key;
+        final long deadlineMillis;
+        final long deadlineTick;
+
+        Entry(K key, long deadlineMillis, long deadlineTick) {
+            this.key = key;
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.pubsub.TopicSubscriber;
+import net.openhft.chronicle.engine.pubsub.SubscriberSet;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer.notifyEachSubscriber;
+
+/**
+ * Topic subscribers by the keys they want, so an event is only offered to the subscribers for its key
+ * and those which want every key. Each key has a copy-on-write array, as there are usually few
+ * subscribers per key and many keys.
+ */
+final class TopicSubscriberIndex<K, V> {
+    private static final TopicSubscriber[] NO_SUBSCRIBERS = {};
+
+    private final Set<TopicSubscriber<K, V>> wildcard = new SubscriberSet<>();
+    private final Map<String, TopicSubscriber<K, V>[]> byKey = new ConcurrentHashMap<>();
+    // the keys each subscriber in byKey was added for, to remove it again.
+    private final Map<TopicSubscriber<K, V>, String[]> keysOf = new ConcurrentHashMap<>();
+    // told of each subscriber removed because it threw InvalidSubscriberException.
+    private final Consumer<TopicSubscriber<K, V>> onInvalid;
+
+    TopicSubscriberIndex() {
+        this(ts -> {
+        });
+    }
+
+    TopicSubscriberIndex(@NotNull Consumer<TopicSubscriber<K, V>> onInvalid) {
+        this.onInvalid = onInvalid;
+    }
+
+    /**
+     * Adding and removing the same subscriber hold the lock, so a remove can't see it in keysOf
+     * before it is in byKey and leave it there. notify() doesn't lock.
+     *
+     * @param keys to send events for, or null for every key.
+     */
+    synchronized void add(@NotNull TopicSubscriber<K, V> subscriber, @Nullable Set<String> keys) {
+        if (keys == null) {
+            wildcard.add(subscriber);
+            return;
+        }
+        String[] keyArr = keys.toArray(new String[keys.size()]);
+        if (keysOf.putIfAbsent(subscriber, keyArr) != null)
+            return;
+        for (String key : keyArr)
+            byKey.compute(key, (k, subs) -> append(subs, subscriber));
+    }
+
+    synchronized boolean remove(TopicSubscriber<K, V> subscriber) {
+        if (wildcard.remove(subscriber))
+            return true;
+        String[] keys = keysOf.remove(subscriber);
+        if (keys == null)
+            return false;
+        for (String key : keys)
+            byKey.computeIfPresent(key, (k, subs) -> without(subs, subscriber));
+        return true;
+    }
+
+    @NotNull
+    private static <K, V> TopicSubscriber<K, V>[] append(@Nullable TopicSubscriber<K, V>[] subs, TopicSubscriber<K, V> subscriber) {
+        if (subs == null)
+            return new TopicSubscriber[]{subscriber};
+        TopicSubscriber<K, V>[] subs2 = Arrays.copyOf(subs, subs.length + 1);
+        subs2[subs.length] = subscriber;
+        return subs2;
+    }
+
+    @Nullable
+    private static <K, V> TopicSubscriber<K, V>[] without(@NotNull TopicSubscriber<K, V>[] subs, TopicSubscriber<K, V> subscriber) {
+        for (int i = 0; i < subs.length; i++) {
+            if (subs[i] != subscriber)
+                continue;
+            if (subs.length == 1)
+                return null; // removes the key
+            TopicSubscriber<K, V>[] subs2 = Arrays.copyOf(subs, subs.length - 1);
+            System.arraycopy(subs, i + 1, subs2, i, subs.length - i - 1);
+            return subs2;
+        }
+        return subs;
+    }
+
+    boolean isEmpty() {
+        return wildcard.isEmpty() && keysOf.isEmpty();
+    }
+
+    int size() {
+        return wildcard.size() + keysOf.size();
+    }
+
+    /**
+     * @return the subscribers for a key, excluding those for every key.
+     */
+    @NotNull
+    TopicSubscriber<K, V>[] subscribersFor(K key) {
+        // String keys hash the same as the keys requested, other types can't match them.
+        TopicSubscriber<K, V>[] subs = key instanceof String ? byKey.get(key) : null;
+        return subs == null ? NO_SUBSCRIBERS : subs;
+    }
+
+    void notify(K key, V value) {
+        if (!wildcard.isEmpty())
+            notifyEachSubscriber(wildcard, ts -> {
+                try {
+                    ts.onMessage(key, value);
+                } catch (InvalidSubscriberException e) {
+                    onInvalid.accept(ts);
+                    throw e;
+                }
+            });
+        if (byKey.isEmpty())
+            return;
+        for (TopicSubscriber<K, V> ts : subscribersFor(key)) {
+            try {
+                ts.onMessage(key, value);
+            } catch (InvalidSubscriberException e) {
+                remove(ts);
+                onInvalid.accept(ts);
+                endSubscription(ts);
+            }
+        }
+    }
+
+    /**
+     * Sends every subscriber onEndOfSubscription and removes them.
+     */
+    synchronized void close() {
+        for (TopicSubscriber<K, V> ts : wildcard)
+            endSubscription(ts);
+        wildcard.clear();
+        for (TopicSubscriber<K, V> ts : keysOf.keySet())
+            endSubscription(ts);
+        keysOf.clear();
+        byKey.clear();
+    }
+
+    private static void endSubscription(TopicSubscriber<?, ?> ts) {
+        try {
+            ts.onEndOfSubscription();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.KeyValueStore;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Iterates the entries of a translating store by walking the underlying store's own iterator and
+ * decoding each value as it is reached, so neither the keys nor the values are collected up front.
+ */
+final class TranslatingEntryIterator<K, U, V> implements Iterator<Map.Entry<K, V>> {
+    private final KeyValueStore<K, ?, V> kvStore;
+    private final Iterator<Map.Entry<K, U>> entries;
+    private final Function<U, V> valueReader;
+    private K lastKey;
+
+    TranslatingEntryIterator(KeyValueStore<K, ?, V> kvStore, Iterator<Map.Entry<K, U>> entries,
+                             Function<U, V> valueReader) {
+        this.kvStore = kvStore;
+        this.entries = entries;
+        this.valueReader = valueReader;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return entries.hasNext();
+    }
+
+    @Override
+    public Map.Entry<K, V> next() {
+        Map.Entry<K, U> entry = entries.next();
+        lastKey = entry.getKey();
+        U value = entry.getValue();
+        return new SimpleEntry<>(lastKey, value == null ? null : valueReader.apply(value));
+    }
+
+    @Override
+    public void remove() {
+        if (lastKey == null)
+            throw new IllegalStateException();
+        // through the translating store so subscribers see the removal.
+        kvStore.remove(lastKey);
+        lastKey = null;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Splits the entries of a translating store as the underlying store's own Spliterator does,
+ * decoding each value as it is reached, so a parallel scan splits by segment with a real size
+ * estimate.
+ */
+final class TranslatingEntrySpliterator<K, U, V> implements Spliterator<Map.Entry<K, V>> {
+    private final Spliterator<Map.Entry<K, U>> entries;
+    private final Function<U, V> valueReader;
+
+    TranslatingEntrySpliterator(Spliterator<Map.Entry<K, U>> entries, Function<U, V> valueReader) {
+        this.entries = entries;
+        this.valueReader = valueReader;
+    }
+
+    @NotNull
+    private Map.Entry<K, V> translate(@NotNull Map.Entry<K, U> entry) {
+        U value = entry.getValue();
+        return new SimpleEntry<>(entry.getKey(), value == null ? null : valueReader.apply(value));
+    }
+
+    @Override
+    public boolean tryAdvance(@NotNull Consumer<? super Map.Entry<K, V>> action) {
+        return entries.tryAdvance(e -> action.accept(translate(e)));
+    }
+
+    @Override
+    public void forEachRemaining(@NotNull Consumer<? super Map.Entry<K, V>> action) {
+        entries.forEachRemaining(e -> action.accept(translate(e)));
+    }
+
+    @Nullable
+    @Override
+    public Spliterator<Map.Entry<K, V>> trySplit() {
+        Spliterator<Map.Entry<K, U>> prefix = entries.trySplit();
+        return prefix == null ? null : new TranslatingEntrySpliterator<>(prefix, valueReader);
+    }
+
+    @Override
+    public long estimateSize() {
+        return entries.estimateSize();
+    }
+
+    @Override
+    public int characteristics() {
+        // the entries are new objects, so they are no longer sorted or in a known order.
+        return entries.characteristics() & (SIZED | SUBSIZED | CONCURRENT | DISTINCT | NONNULL | IMMUTABLE);
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.bytes.VanillaBytes;
+import net.openhft.chronicle.core.io.Closeable;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the serialized values of a store when they are at least a threshold in size, using
+ * "deflate" or "lz4". Each value stored is followed by a byte saying how it was encoded, and a
+ * compressed value by its original length as well, so values too small or which don't compress
+ * are only a byte longer. Values are only decompressed when read, and a value stored raw is read
+ * as a view of the bytes stored, without copying.
+ * <p>
+ * The Deflaters and Inflaters are pooled by the codec and ended when it is closed with its asset.
+ * <p>
+ * A codec is chosen per asset with {@link RequestContext#compression()} or the compression of a
+ * Chronicle Map mount, and must be the same each time the store is opened. It is not suitable for
+ * values written by other programs, e.g. files edited by hand.
+ */
+public final class ValueCodec implements Closeable {
+    public static final String DEFLATE = "deflate";
+    public static final String LZ4 = "lz4";
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    private static final byte RAW_TAG = 0;
+    private static final byte DEFLATE_TAG = 1;
+    private static final byte LZ4_TAG = 2;
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final byte tag;
+    private final int threshold;
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder compressedValues = new LongAdder();
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed = false;
+
+    public ValueCodec(@NotNull String compression, int threshold) {
+        switch (compression) {
+            case DEFLATE:
+                tag = DEFLATE_TAG;
+                break;
+            case LZ4:
+                tag = LZ4_TAG;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown compression " + compression + ", expected " + DEFLATE + " or " + LZ4);
+        }
+        this.threshold = threshold > 0 ? threshold : DEFAULT_THRESHOLD;
+    }
+
+    /**
+     * @return the codec of the asset, or one for the compression requested, or null to store values as is.
+     */
+    @Nullable
+    public static ValueCodec acquire(@NotNull RequestContext context, @NotNull Asset asset) {
+        ValueCodec codec = asset.getView(ValueCodec.class);
+        if (codec != null)
+            return codec;
+        String compression = context.compression();
+        if (compression == null || compression.isEmpty() || compression.equals("none"))
+            return null;
+        codec = new ValueCodec(compression, (int) Math.min(Integer.MAX_VALUE, context.compressionThreshold()));
+        asset.registerView(ValueCodec.class, codec);
+        return codec;
+    }
+
+    private static byte[] copy(BytesStore bs, long offset, int length, @NotNull Scratch s, byte[] to) {
+        VanillaBytes<Void> view = s.view;
+        view.bytesStore(bs.bytesStore(), offset, length);
+        view.read(to, 0, length);
+        return to;
+    }
+
+    /**
+     * Encode the value between the read position and limit of bytes, in place.
+     */
+    @NotNull
+    public Bytes encode(@NotNull Bytes bytes) {
+        int length = (int) bytes.readRemaining();
+        rawBytes.add(length);
+        if (length >= threshold) {
+            Scratch s = SCRATCH.get();
+            byte[] source = copy(bytes, bytes.readPosition(), length, s, s.source(length));
+            int compressedLength = compress(source, length, s);
+            // only worth it if it saves more than the length added.
+            if (compressedLength >= 0 && compressedLength < length - 4) {
+                bytes.clear();
+                bytes.write(s.target, 0, compressedLength);
+                bytes.writeInt(length);
+                bytes.writeByte(tag);
+                storedBytes.add(compressedLength + 5);
+                compressedValues.increment();
+                return bytes;
+            }
+        }
+        bytes.writeByte(RAW_TAG);
+        storedBytes.add(length + 1);
+        return bytes;
+    }
+
+    /**
+     * Decode a value stored by {@link #encode(Bytes)}. A value stored raw is returned as a thread
+     * local view of stored without its tag, so is only valid as long as stored is, and until the
+     * next value is decoded by this thread. A compressed value is decompressed in to the bytes given.
+     *
+     * @return the decoded value, or null if stored is null.
+     */
+    @Nullable
+    public BytesStore decode(@Nullable BytesStore stored, @NotNull Bytes using) {
+        if (stored == null)
+            return null;
+        long start = stored.readPosition(), end = stored.readLimit();
+        byte storedTag = stored.readByte(end - 1);
+        Scratch s = SCRATCH.get();
+        if (storedTag == RAW_TAG) {
+            VanillaBytes<Void> raw = s.raw;
+            raw.bytesStore(stored.bytesStore(), start, end - 1 - start);
+            return raw;
+        }
+        using.clear();
+        int length = stored.readInt(end - 5);
+        int compressedLength = (int) (end - 5 - start);
+        byte[] source = copy(stored, start, compressedLength, s, s.source(compressedLength));
+        byte[] target = s.target(length);
+        if (storedTag == LZ4_TAG) {
+            Lz4.decompress(source, compressedLength, target, length);
+
+        } else if (storedTag == DEFLATE_TAG) {
+            Inflater inflater = inflaters.poll();
+            if (inflater == null)
+                inflater = new Inflater();
+            try {
+                inflater.setInput(source, 0, compressedLength);
+                if (inflater.inflate(target, 0, length) != length)
+                    throw new IllegalStateException("Value truncated");
+            } catch (DataFormatException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                inflater.reset();
+                release(inflater, inflaters);
+            }
+
+        } else {
+            throw new IllegalStateException("Unknown value encoding " + storedTag);
+        }
+        using.write(target, 0, length);
+        return using;
+    }
+
+    /**
+     * @return the length compressed in to the scratch target, or -1 if it doesn't fit in the length given.
+     */
+    private int compress(byte[] source, int length, Scratch s) {
+        if (tag == LZ4_TAG) {
+            byte[] target = s.target(Lz4.maxCompressedLength(length));
+            return Lz4.compress(source, length, target, s.table);
+        }
+        byte[] target = s.target(length);
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(source, 0, length);
+            deflater.finish();
+            int compressedLength = deflater.deflate(target, 0, length);
+            return deflater.finished() ? compressedLength : -1;
+        } finally {
+            deflater.reset();
+            release(deflater, deflaters);
+        }
+    }
+
+    /**
+     * Return a Deflater or Inflater to the pool, or end it once the codec has been closed.
+     */
+    private <Z> void release(@NotNull Z zip, @NotNull Queue<Z> pool) {
+        pool.offer(zip);
+        // closed in the meantime, so not ended by close().
+        if (closed)
+            endAll();
+    }
+
+    private void endAll() {
+        for (Deflater deflater; (deflater = deflaters.poll()) != null; )
+            deflater.end();
+        for (Inflater inflater; (inflater = inflaters.poll()) != null; )
+            inflater.end();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        endAll();
+    }
+
+    /**
+     * @return the total size of the values encoded before compression.
+     */
+    public long rawBytes() {
+        return rawBytes.sum();
+    }
+
+    /**
+     * @return the total size of the values encoded as stored.
+     */
+    public long storedBytes() {
+        return storedBytes.sum();
+    }
+
+    public long compressedValues() {
+        return compressedValues.sum();
+    }
+
+    /**
+     * @return how many times smaller the values encoded were stored, or 1.0 if none have been.
+     */
+    public double compressionRatio() {
+        long stored = storedBytes();
+        return stored == 0 ? 1.0 : (double) rawBytes() / stored;
+    }
+
+    @NotNull
+    @Override
+    public String toString() {
+        return "ValueCodec{" +
+                "compression=" + (tag == LZ4_TAG ? LZ4 : DEFLATE) +
+                ", threshold=" + threshold +
+                ", compressionRatio=" + compressionRatio() +
+                '}';
+    }
+
+    static final class Scratch {
+        final int[] table = new int[Lz4.TABLE_SIZE];
+        // a view of the value being copied, so it is read in bulk.
+        final VanillaBytes<Void> view = VanillaBytes.vanillaBytes();
+        // the last raw value decoded.
+        final VanillaBytes<Void> raw = VanillaBytes.vanillaBytes();
+        byte[] source = new byte[1024];
+        byte[] target = new byte[1024];
+
+        byte[] source(int length) {
+            if (source.length < length)
+                source = new byte[Math.max(length, source.length * 2)];
+            return source;
+        }
+
+        byte[] target(int length) {
+            if (target.length < length)
+                target = new byte[Math.max(length, target.length * 2)];
+            return target;
+        }
+    }
+}
@@ -43,6 +43,11 @@ public class VanillaEntrySetView<K, MV, V> extends AbstractCollection<Map.Entry<
         return mapView.underlying().entrySetIterator();
     }
 
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return mapView.underlying().entrySetSpliterator();
+    }
+
     @Override
     public int size() {
         return Math.min(Integer.MAX_VALUE, mapView.size());
@@ -22,22 +22,36 @@ import net.openhft.chronicle.engine.api.pubsub.*;
 import net.openhft.chronicle.engine.api.tree.Asset;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
 import net.openhft.chronicle.engine.pubsub.SimpleSubscription;
+import net.openhft.chronicle.engine.pubsub.SubscriberSet;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer.notifyEachSubscriber;
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
 
 /**
  * Created by peter on 22/05/15.
  */
 // todo review thread safety
 public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K, MV, V>, RawKVSSubscription<K, MV, V> {
-    private final Set<TopicSubscriber<K, V>> topicSubscribers = new CopyOnWriteArraySet<>();
-    private final Set<Subscriber<MapEvent<K, V>>> subscribers = new CopyOnWriteArraySet<>();
-    private final Set<Subscriber<K>> keySubscribers = new CopyOnWriteArraySet<>();
-    private final Set<EventConsumer<K, V>> downstream = new CopyOnWriteArraySet<>();
+    private static final int MAX_CACHED_KEYS = 1 << 12;
+
+    private final TopicSubscriberIndex<K, V> topicSubscribers = new TopicSubscriberIndex<>(this::forget);
+    private final Set<Subscriber<MapEvent<K, V>>> subscribers = new SubscriberSet<>();
+    private final Set<Subscriber<K>> keySubscribers = new SubscriberSet<>();
+    private final Set<EventConsumer<K, V>> downstream = new SubscriberSet<>();
+    // subscribers registered with a dispatchQueue, by the subscriber they deliver to.
+    private final Map<ISubscriber, AsyncSubscriber<K, V>> queued = new ConcurrentHashMap<>();
+    // the filtering wrapper added to the sets, by the subscriber registered.
+    private final Map<ISubscriber, ISubscriber> filtered = new ConcurrentHashMap<>();
+    // the subscriptions of children by key, while the asset's childrenVersion is unchanged.
+    // up to MAX_CACHED_KEYS keys without a child are kept as well.
+    private final Map<Object, ChildSubscription> childSubscriptions = new ConcurrentHashMap<>();
     private final Asset asset;
     private KeyValueStore<K, MV, V> kvStore;
     private boolean hasSubscribers = false;
@@ -54,10 +68,15 @@ public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K
 
     @Override
     public void close() {
-        notifyEndOfSubscription(topicSubscribers);
+        topicSubscribers.close();
         notifyEndOfSubscription(subscribers);
         notifyEndOfSubscription(keySubscribers);
         notifyEndOfSubscription(downstream);
+        for (AsyncSubscriber<K, V> queue : queued.values())
+            queue.closeAndEnd();
+        queued.clear();
+        filtered.clear();
+        childSubscriptions.clear();
     }
 
     @Override
@@ -96,19 +115,69 @@ public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K
             notifyEvent0(changeEvent);
     }
 
+    @Override
+    public void notifyEvents(@NotNull Collection<MapEvent<K, V>> changeEvents) {
+        if (changeEvents.isEmpty() || !hasSubscribers())
+            return;
+
+        if (!topicSubscribers.isEmpty()) {
+            for (MapEvent<K, V> e : changeEvents)
+                topicSubscribers.notify(e.key(), e.value());
+        }
+        if (!subscribers.isEmpty()) {
+            notifyEachSubscriber(subscribers, forgetIfInvalid(s -> {
+                for (MapEvent<K, V> e : changeEvents)
+                    s.onMessage(e);
+            }));
+        }
+        if (!keySubscribers.isEmpty()) {
+            notifyEachSubscriber(keySubscribers, forgetIfInvalid(s -> {
+                for (MapEvent<K, V> e : changeEvents)
+                    s.onMessage(e.key());
+            }));
+        }
+        if (!downstream.isEmpty()) {
+            notifyEachSubscriber(downstream, d -> d.notifyEvents(changeEvents));
+        }
+        if (!queued.isEmpty()) {
+            for (AsyncSubscriber<K, V> queue : queued.values())
+                for (MapEvent<K, V> e : changeEvents)
+                    queue.enqueue(e);
+        }
+        if (asset.hasChildren()) {
+            for (MapEvent<K, V> e : changeEvents)
+                notifyEventToChild(e);
+        }
+    }
+
     @Override
     public int keySubscriberCount() {
-        return keySubscribers.size();
+        return keySubscribers.size() + queuedCount(AsyncSubscriber.Kind.KEY);
     }
 
     @Override
     public int entrySubscriberCount() {
-        return subscribers.size();
+        return subscribers.size() + queuedCount(AsyncSubscriber.Kind.ENTRY);
     }
 
     @Override
     public int topicSubscriberCount() {
-        return topicSubscribers.size();
+        return topicSubscribers.size() + queuedCount(AsyncSubscriber.Kind.TOPIC);
+    }
+
+    private int queuedCount(AsyncSubscriber.Kind kind) {
+        int count = 0;
+        for (AsyncSubscriber<K, V> queue : queued.values())
+            if (queue.kind() == kind)
+                count++;
+        return count;
+    }
+
+    /**
+     * @return the subscribers delivered to from a queue, to see their depth and lag.
+     */
+    public Collection<AsyncSubscriber<K, V>> asyncSubscribers() {
+        return queued.values();
     }
 
     private boolean hasSubscribers() {
@@ -124,65 +193,162 @@ public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K
         K key = changeEvent.key();
 
         if (!topicSubscribers.isEmpty()) {
-            V value = changeEvent.value();
-            notifyEachSubscriber(topicSubscribers, ts -> ts.onMessage(key, value));
+            topicSubscribers.notify(key, changeEvent.value());
         }
         if (!subscribers.isEmpty()) {
-            notifyEachSubscriber(subscribers, s -> s.onMessage(changeEvent));
+            notifyEachSubscriber(subscribers, forgetIfInvalid(s -> s.onMessage(changeEvent)));
         }
         if (!keySubscribers.isEmpty()) {
-            notifyEachSubscriber(keySubscribers, s -> s.onMessage(key));
+            notifyEachSubscriber(keySubscribers, forgetIfInvalid(s -> s.onMessage(key)));
         }
         if (!downstream.isEmpty()) {
             notifyEachSubscriber(downstream, d -> d.notifyEvent(changeEvent));
         }
+        if (!queued.isEmpty()) {
+            for (AsyncSubscriber<K, V> queue : queued.values())
+                queue.enqueue(changeEvent);
+        }
     }
 
     private void notifyEventToChild(@NotNull MapEvent<K, V> changeEvent) {
         K key = changeEvent.key();
         if (asset.hasChildren() && key instanceof CharSequence) {
-            String keyStr = key.toString();
-            Asset child = asset.getChild(keyStr);
-            if (child != null) {
-                Subscription subscription = child.subscription(false);
-                if (subscription instanceof SimpleSubscription) {
-//                    System.out.println(changeEvent.toString().substring(0, 100));
-                    ((SimpleSubscription) subscription).notifyMessage(changeEvent.value());
-                }
+            SimpleSubscription subscription = childSubscription(key);
+            if (subscription != null) {
+                subscription.notifyMessage(changeEvent.value());
+            }
+        }
+    }
+
+    @Nullable
+    private SimpleSubscription childSubscription(@NotNull K key) {
+        int version = asset.childrenVersion();
+        if (version < 0)
+            return ChildSubscription.lookup(asset, key);
+
+        ChildSubscription cs = childSubscriptions.get(key);
+        if (cs == null || cs.version != version) {
+            if (cs != null) {
+                // the children changed so every entry is stale.
+                childSubscriptions.clear();
             }
+            Asset child = asset.getChild(key.toString());
+            cs = new ChildSubscription(version, child);
+            // keys without a child are only kept up to a limit, as every key in the map could be one.
+            // a CharSequence other than a String may be mutable.
+            if (key instanceof String && (child != null || childSubscriptions.size() < MAX_CACHED_KEYS))
+                childSubscriptions.put(key, cs);
         }
+        return cs.subscription();
     }
 
     @Override
     public boolean needsPrevious() {
         // todo optimise this to reduce false positives.
-        return !subscribers.isEmpty() || !downstream.isEmpty();
+        return !subscribers.isEmpty() || !downstream.isEmpty() || !queued.isEmpty();
+    }
+
+    private static boolean isQueued(@NotNull RequestContext rc) {
+        return rc.dispatchQueue() > 0 || rc.conflate();
+    }
+
+    @NotNull
+    private SubscriptionDispatcher dispatcher() {
+        return asset.root().acquireView(SubscriptionDispatcher.class, requestContext());
+    }
+
+    private void registerQueued(@NotNull RequestContext rc, @NotNull AsyncSubscriber<K, V> queue) {
+        queued.put(queue.subscriber(), queue);
+        hasSubscribers = true;
+        if (rc.bootstrap() != Boolean.FALSE && kvStore != null) {
+            try {
+                // the queue holds on to each event until it is delivered, so they can't be reused.
+                for (int i = 0; i < kvStore.segments(); i++)
+                    kvStore.entriesFor(i, queue::bootstrap);
+            } catch (InvalidSubscriberException e) {
+                unregisterQueued(queue.subscriber());
+            }
+        }
+    }
+
+    private boolean unregisterQueued(ISubscriber subscriber) {
+        AsyncSubscriber<K, V> queue = queued.remove(subscriber);
+        if (queue == null)
+            return false;
+        queue.close();
+        return true;
+    }
+
+    /**
+     * Forget the subscriber registered for a filtering wrapper dropped as invalid.
+     */
+    private void forget(ISubscriber wrapper) {
+        if (!filtered.isEmpty())
+            filtered.values().remove(wrapper);
+    }
+
+    @NotNull
+    private <S extends ISubscriber> SubscriptionConsumer<S> forgetIfInvalid(@NotNull SubscriptionConsumer<S> doNotify) {
+        return s -> {
+            try {
+                doNotify.accept(s);
+            } catch (InvalidSubscriberException e) {
+                forget(s);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @return the subscriber added to the sets for the one registered, which differ if it is filtered.
+     */
+    private ISubscriber registered(ISubscriber subscriber) {
+        ISubscriber wrapper = filtered.remove(subscriber);
+        return wrapper == null ? subscriber : wrapper;
     }
 
     @Override
     public void registerSubscriber(@NotNull RequestContext rc, Subscriber subscriber) {
         Boolean bootstrap = rc.bootstrap();
         Class eClass = rc.type();
-        if (eClass == KeyValueStore.Entry.class || eClass == MapEvent.class || eClass == MapEvent.class) {
-            subscribers.add(subscriber);
+        boolean entries = eClass == KeyValueStore.Entry.class || eClass == MapEvent.class;
+        SubscriptionFilter<K, V> filter = SubscriptionFilter.of(rc);
+        if (isQueued(rc)) {
+            Runnable onDisconnect = () -> unregisterSubscriber(subscriber);
+            registerQueued(rc, (entries
+                    ? AsyncSubscriber.<K, V>forEntries(rc, dispatcher(), subscriber, onDisconnect)
+                    : AsyncSubscriber.<K, V>forKeys(rc, dispatcher(), subscriber, onDisconnect)).filter(filter));
+            return;
+        }
+        if (entries) {
+            Subscriber<MapEvent<K, V>> sub = (Subscriber<MapEvent<K, V>>) subscriber;
+            if (filter != null) {
+                sub = filter.filterEntries(sub);
+                filtered.put(subscriber, sub);
+            }
+            subscribers.add(sub);
             if (bootstrap != Boolean.FALSE && kvStore != null) {
-                Subscriber<MapEvent<K, V>> sub = (Subscriber<MapEvent<K, V>>) subscriber;
                 try {
+                    // a subscriber may keep the events it is given, so they can't be reused.
                     for (int i = 0; i < kvStore.segments(); i++)
                         kvStore.entriesFor(i, sub::onMessage);
                 } catch (InvalidSubscriberException e) {
-                    subscribers.remove(subscriber);
+                    subscribers.remove(registered(subscriber));
                 }
             }
         } else {
             Subscriber<K> sub = (Subscriber<K>) subscriber;
+            if (filter != null) {
+                sub = filter.filterKeys(sub);
+                filtered.put(subscriber, sub);
+            }
             keySubscribers.add(sub);
             if (bootstrap != Boolean.FALSE && kvStore != null) {
                 try {
                     for (int i = 0; i < kvStore.segments(); i++)
                         kvStore.keysFor(i, sub::onMessage);
                 } catch (InvalidSubscriberException e) {
-                    subscribers.remove(subscriber);
+                    keySubscribers.remove(registered(subscriber));
                 }
             }
         }
@@ -192,14 +358,24 @@ public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K
     @Override
     public void registerKeySubscriber(RequestContext rc, Subscriber<K> subscriber) {
         Boolean bootstrap = rc.bootstrap();
+        SubscriptionFilter<K, V> filter = SubscriptionFilter.of(rc);
+        if (isQueued(rc)) {
+            registerQueued(rc, AsyncSubscriber.<K, V>forKeys(rc, dispatcher(), subscriber, () -> unregisterKeySubscriber(subscriber)).filter(filter));
+            return;
+        }
 
-        keySubscribers.add(subscriber);
+        Subscriber<K> sub = subscriber;
+        if (filter != null) {
+            sub = filter.filterKeys(subscriber);
+            filtered.put(subscriber, sub);
+        }
+        keySubscribers.add(sub);
         if (bootstrap != Boolean.FALSE && kvStore != null) {
             try {
                 for (int i = 0; i < kvStore.segments(); i++)
-                    kvStore.keysFor(i, subscriber::onMessage);
+                    kvStore.keysFor(i, sub::onMessage);
             } catch (InvalidSubscriberException e) {
-                keySubscribers.remove(subscriber);
+                keySubscribers.remove(registered(subscriber));
             }
         }
         hasSubscribers = true;
@@ -208,13 +384,35 @@ public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K
     @Override
     public void registerTopicSubscriber(@NotNull RequestContext rc, @NotNull TopicSubscriber subscriber) {
         Boolean bootstrap = rc.bootstrap();
-        topicSubscribers.add((TopicSubscriber<K, V>) subscriber);
+        SubscriptionFilter<K, V> filter = SubscriptionFilter.of(rc);
+        if (isQueued(rc)) {
+            registerQueued(rc, AsyncSubscriber.forTopics(rc, dispatcher(), (TopicSubscriber<K, V>) subscriber, () -> unregisterTopicSubscriber(subscriber)).filter(filter));
+            return;
+        }
+        TopicSubscriber<K, V> sub = (TopicSubscriber<K, V>) subscriber;
+        // String keys can be looked up in an index of subscribers by key.
+        boolean indexed = filter != null && filter.keys() != null && rc.type() == String.class;
+        if (filter != null && !(indexed && filter.keysOnly())) {
+            sub = filter.filterTopics(sub);
+            filtered.put(subscriber, sub);
+        }
+        topicSubscribers.add(sub, indexed ? filter.keys() : null);
         if (bootstrap != Boolean.FALSE && kvStore != null) {
+            TopicSubscriber<K, V> ts = sub;
             try {
-                for (int i = 0; i < kvStore.segments(); i++)
-                    kvStore.entriesFor(i, e -> subscriber.onMessage(e.key(), e.value()));
+                if (indexed) {
+                    // only look up the keys wanted rather than scanning every entry.
+                    for (String key : filter.keys()) {
+                        V value = kvStore.get((K) key);
+                        if (value != null)
+                            ts.onMessage((K) key, value);
+                    }
+                } else {
+                    for (int i = 0; i < kvStore.segments(); i++)
+                        kvStore.entriesForTransient(i, e -> ts.onMessage(e.key(), e.value()));
+                }
             } catch (InvalidSubscriberException dontAdd) {
-                topicSubscribers.remove(subscriber);
+                topicSubscribers.remove((TopicSubscriber<K, V>) registered(subscriber));
             }
         }
         hasSubscribers = true;
@@ -233,24 +431,62 @@ public class VanillaKVSSubscription<K, MV, V> implements ObjectKVSSubscription<K
 
     @Override
     public void unregisterKeySubscriber(Subscriber<K> subscriber) {
-        keySubscribers.remove(subscriber);
+        if (!unregisterQueued(subscriber))
+            keySubscribers.remove(registered(subscriber));
         updateHasSubscribers();
     }
 
     @Override
     public void unregisterSubscriber(Subscriber<MapEvent<K, V>> subscriber) {
-        subscribers.remove(subscriber);
+        if (!unregisterQueued(subscriber))
+            subscribers.remove(registered(subscriber));
         updateHasSubscribers();
     }
 
     @Override
     public void unregisterTopicSubscriber(TopicSubscriber subscriber) {
-        topicSubscribers.remove(subscriber);
+        if (!unregisterQueued(subscriber))
+            topicSubscribers.remove((TopicSubscriber<K, V>) registered(subscriber));
         updateHasSubscribers();
     }
 
     private void updateHasSubscribers() {
-        hasSubscribers = !topicSubscribers.isEmpty() && !subscribers.isEmpty()
-                && !keySubscribers.isEmpty() && !downstream.isEmpty();
+        hasSubscribers = !topicSubscribers.isEmpty() || !subscribers.isEmpty()
+                || !keySubscribers.isEmpty() || !downstream.isEmpty() || !queued.isEmpty();
+    }
+
+    static final class ChildSubscription {
+        final int version;
+        // null if the key has no child.
+        @Nullable
+        final Asset child;
+        @Nullable
+        private volatile SimpleSubscription subscription;
+
+        ChildSubscription(int version, @Nullable Asset child) {
+            this.version = version;
+            this.child = child;
+        }
+
+        @Nullable
+        static SimpleSubscription lookup(@NotNull Asset asset, @NotNull Object key) {
+            Asset child = asset.getChild(key.toString());
+            if (child == null)
+                return null;
+            Subscription subscription = child.subscription(false);
+            return subscription instanceof SimpleSubscription ? (SimpleSubscription) subscription : null;
+        }
+
+        @Nullable
+        SimpleSubscription subscription() {
+            SimpleSubscription subscription = this.subscription;
+            if (subscription == null && child != null) {
+                // a child's subscription is added when first subscribed to, then kept.
+                Subscription s = child.subscription(false);
+                if (s instanceof SimpleSubscription)
+                    this.subscription = subscription = (SimpleSubscription) s;
+            }
+            return subscription;
+        }
     }
 }
@@ -16,10 +16,12 @@
 
 package net.openhft.chronicle.engine.map;
 
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication;
 import net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntry;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.SegmentSpliterator;
 import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
 import net.openhft.chronicle.engine.api.tree.Asset;
@@ -27,16 +29,28 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
+ * An on heap store partitioned into a power of two number of segments, each a ConcurrentHashMap,
+ * so segments can be scanned independently, and in parallel.
+ * <p>
  * Created by peter on 22/05/15.
  */
 public class VanillaKeyValueStore<K, MV, V> implements AuthenticatedKeyValueStore<K, MV, V> {
-    private final ConcurrentMap<K, V> map = new ConcurrentHashMap<>();
+    static final int DEFAULT_SEGMENTS = segmentsFor(Runtime.getRuntime().availableProcessors() * 4);
+
+    private final ConcurrentMap<K, V>[] maps;
+    private final int segmentShift;
     private Asset asset;
 
     public VanillaKeyValueStore(RequestContext context, Asset asset) {
@@ -44,63 +58,164 @@ public class VanillaKeyValueStore<K, MV, V> implements AuthenticatedKeyValueStor
     }
 
     public VanillaKeyValueStore(Asset asset) {
+        this(asset, DEFAULT_SEGMENTS);
+    }
+
+    public VanillaKeyValueStore(Asset asset, int segments) {
         this.asset = asset;
+        int actualSegments = segmentsFor(segments);
+        maps = new ConcurrentMap[actualSegments];
+        for (int i = 0; i < actualSegments; i++)
+            maps[i] = new ConcurrentHashMap<>();
+        segmentShift = 32 - Integer.numberOfTrailingZeros(actualSegments);
+    }
+
+    static int segmentsFor(int segments) {
+        return segments <= 1 ? 1 : Integer.highestOneBit(segments - 1) << 1;
+    }
+
+    private ConcurrentMap<K, V> mapFor(K key) {
+        return maps[segmentFor(key)];
+    }
+
+    @Override
+    public int segments() {
+        return maps.length;
+    }
+
+    @Override
+    public int segmentFor(K key) {
+        if (maps.length == 1)
+            return 0;
+        // ConcurrentHashMap picks its bucket from the low bits, so take the segment from the top
+        // bits of a Fibonacci hash, which depend on all the bits of the hashCode, otherwise keys
+        // in one segment would crowd into a few buckets.
+        return (key.hashCode() * 0x9E3779B9) >>> segmentShift;
     }
 
     @Override
     public V getAndPut(K key, V value) {
-        return map.put(key, value);
+        return mapFor(key).put(key, value);
     }
 
     @Override
     public V getAndRemove(K key) {
-        return map.remove(key);
+        return mapFor(key).remove(key);
     }
 
     @Override
     public V getUsing(K key, MV value) {
-        return map.get(key);
+        return mapFor(key).get(key);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        return mapFor(key).containsKey(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        entries.forEach((k, v) -> mapFor(k).put(k, v));
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        for (K key : keys)
+            mapFor(key).remove(key);
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return mapFor(key).replace(key, value);
+    }
+
+    @Override
+    public boolean replaceIfEqual(K key, V oldValue, V newValue) {
+        return oldValue != null && mapFor(key).replace(key, oldValue, newValue);
+    }
+
+    @Override
+    public boolean removeIfEqual(K key, V value) {
+        return value != null && mapFor(key).remove(key, value);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return mapFor(key).putIfAbsent(key, value);
+    }
+
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        return mapFor(key).compute(key, (k, v) -> function.apply(v));
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return mapFor(key).merge(key, value, function);
     }
 
     @Override
     public long longSize() {
-        return map.size();
+        long size = 0;
+        for (ConcurrentMap<K, V> map : maps)
+            size += map.size();
+        return size;
     }
 
     @Override
     public void keysFor(int segment, @NotNull SubscriptionConsumer<K> kConsumer) throws InvalidSubscriberException {
-        SubscriptionConsumer.notifyEachEvent(map.keySet(), kConsumer);
+        SubscriptionConsumer.notifyEachEvent(maps[segment].keySet(), kConsumer);
     }
 
     @Override
     public void entriesFor(int segment, @NotNull SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
-        SubscriptionConsumer.notifyEachEvent(map.entrySet(), e -> kvConsumer.accept(InsertedEvent.of(asset.fullName(), e.getKey(), e.getValue())));
+        String assetName = asset.fullName();
+        SubscriptionConsumer.notifyEachEvent(maps[segment].entrySet(), e -> kvConsumer.accept(InsertedEvent.of(assetName, e.getKey(), e.getValue())));
+    }
+
+    @Override
+    public void entriesForTransient(int segment, @NotNull SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        InsertedEvent<K, V> event = InsertedEvent.of(asset.fullName(), null, null);
+        for (Map.Entry<K, V> e : maps[segment].entrySet())
+            kvConsumer.accept(event.set(e.getKey(), e.getValue()));
     }
 
     @NotNull
     @Override
     public Iterator<Map.Entry<K, V>> entrySetIterator() {
-        return map.entrySet().iterator();
+        return new SegmentsIterator<>(m -> m.entrySet().iterator());
     }
 
     @Override
     public Iterator<K> keySetIterator() {
-        return map.keySet().iterator();
+        return new SegmentsIterator<>(m -> m.keySet().iterator());
+    }
+
+    @Override
+    public Iterator<V> valuesIterator() {
+        return new SegmentsIterator<>(m -> m.values().iterator());
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        return new SegmentSpliterator<>(segment -> maps[segment].entrySet().spliterator(),
+                longSize() / maps.length, 0, maps.length);
     }
 
     @Override
     public void clear() {
-        try {
-            for (int i = 0, segs = segments(); i < segs; i++)
-                keysFor(i, (K k) -> map.remove(k));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
+        if (maps.length == 1)
+            maps[0].clear();
+        else
+            Stream.of(maps).parallel().forEach(Map::clear);
     }
 
     @Override
     public boolean containsValue(final MV value) {
-        throw new UnsupportedOperationException("todo");
+        for (ConcurrentMap<K, V> map : maps)
+            if (map.containsValue(value))
+                return true;
+        return false;
     }
 
     @Override
@@ -128,4 +243,44 @@ public class VanillaKeyValueStore<K, MV, V> implements AuthenticatedKeyValueStor
     public void accept(final ReplicationEntry replicationEntry) {
         throw new UnsupportedOperationException("todo");
     }
+
+    /**
+     * Iterates over each segment in turn without copying.
+     */
+    class SegmentsIterator<T> implements Iterator<T> {
+        private final Function<ConcurrentMap<K, V>, Iterator<T>> iteratorFor;
+        private int segment = 0;
+        private Iterator<T> iterator, lastIterator;
+
+        SegmentsIterator(Function<ConcurrentMap<K, V>, Iterator<T>> iteratorFor) {
+            this.iteratorFor = iteratorFor;
+            this.iterator = iteratorFor.apply(maps[0]);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!iterator.hasNext()) {
+                if (++segment >= maps.length)
+                    return false;
+                iterator = iteratorFor.apply(maps[segment]);
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            lastIterator = iterator;
+            return iterator.next();
+        }
+
+        @Override
+        public void remove() {
+            if (lastIterator == null)
+                throw new IllegalStateException();
+            lastIterator.remove();
+            lastIterator = null;
+        }
+    }
 }
@@ -17,6 +17,7 @@
 package net.openhft.chronicle.engine.map;
 
 import net.openhft.chronicle.core.annotation.NotNull;
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.map.MapEvent;
 import net.openhft.chronicle.engine.api.map.MapView;
@@ -29,7 +30,9 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.AbstractMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.BiFunction;
 
 import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
 
@@ -88,6 +91,12 @@ public class VanillaMapView<K, MV, V> extends AbstractMap<K, V> implements MapVi
         return kvStore;
     }
 
+    @Override
+    public boolean containsValue(final Object value) {
+        checkValue(value);
+        return kvStore.containsValue((MV) value);
+    }
+
     @Nullable
     @Override
     public V get(Object key) {
@@ -126,6 +135,15 @@ public class VanillaMapView<K, MV, V> extends AbstractMap<K, V> implements MapVi
         }
     }
 
+    @Override
+    public void putAll(@NotNull Map<? extends K, ? extends V> m) {
+        m.forEach((k, v) -> {
+            checkKey(k);
+            checkValue(v);
+        });
+        kvStore.putAll(m);
+    }
+
     @Override
     public int size() {
         return (int) Math.min(Integer.MAX_VALUE, kvStore.longSize());
@@ -174,6 +192,31 @@ public class VanillaMapView<K, MV, V> extends AbstractMap<K, V> implements MapVi
         return kvStore.replace(key, value);
     }
 
+    @Override
+    public V compute(K key, @NotNull BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        checkKey(key);
+        return kvStore.compute(key, v -> remappingFunction.apply(key, v));
+    }
+
+    @Override
+    public V merge(K key, V value, @NotNull BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        checkKey(key);
+        checkValue(value);
+        return kvStore.merge(key, value, remappingFunction::apply);
+    }
+
+    @Override
+    public void asyncUpdate(K key, SerializableFunction<V, V> updateFunction) {
+        checkKey(key);
+        kvStore.compute(key, updateFunction);
+    }
+
+    @Override
+    public <R> R syncUpdate(K key, SerializableFunction<V, V> updateFunction, SerializableFunction<V, R> returnFunction) {
+        checkKey(key);
+        return returnFunction.apply(kvStore.compute(key, updateFunction));
+    }
+
     @Override
     public void registerTopicSubscriber(TopicSubscriber<K, V> topicSubscriber) {
         KVSSubscription<K, V, V> subscription = (KVSSubscription) asset.subscription(true);
@@ -0,0 +1,229 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.SecondaryIndex;
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hash and sorted indexes over the values of a store, updated by registering downstream of the
+ * store's subscription. An index of value hash codes is built on the first containsValue, so maps
+ * which never search by value don't pay for it.
+ */
+public class VanillaSecondaryIndex<K, MV, V> implements SecondaryIndex<K, V>, EventConsumer<K, V> {
+    private final Map<String, Index<K, V>> indexMap = new ConcurrentHashMap<>();
+    private final List<Index<K, V>> indexes = new CopyOnWriteArrayList<>();
+    private final ObjectKeyValueStore<K, MV, V> kvStore;
+    @Nullable
+    private volatile Index<K, V> valueIndex;
+
+    public VanillaSecondaryIndex(RequestContext context, Asset asset, @NotNull ObjectKeyValueStore<K, MV, V> kvStore) {
+        this.kvStore = kvStore;
+        // register first so no update is missed while the indexes are populated.
+        kvStore.subscription(true).registerDownstream(this);
+    }
+
+    @Override
+    public <F> void addHashIndex(String name, SerializableFunction<V, F> field) {
+        addIndex(name, new Index<>(field, new ConcurrentHashMap<>()));
+    }
+
+    @Override
+    public <F extends Comparable<? super F>> void addSortedIndex(String name, SerializableFunction<V, F> field) {
+        addIndex(name, new Index<>(field, new ConcurrentSkipListMap<>()));
+    }
+
+    private void addIndex(String name, @NotNull Index<K, V> index) {
+        if (indexMap.putIfAbsent(name, index) != null)
+            throw new IllegalArgumentException("Index " + name + " already exists");
+        populate(index);
+    }
+
+    private void populate(@NotNull Index<K, V> index) {
+        // hold every stripe while populating so events for the same keys are applied afterwards.
+        index.lockAll();
+        try {
+            indexes.add(index);
+            for (int i = 0; i < kvStore.segments(); i++)
+                kvStore.entriesForTransient(i, e -> index.update(e.key(), e.value()));
+        } catch (InvalidSubscriberException e) {
+            throw new AssertionError(e);
+        } finally {
+            index.unlockAll();
+        }
+    }
+
+    @Override
+    public boolean hasIndex(String name) {
+        return indexMap.containsKey(name);
+    }
+
+    @NotNull
+    @Override
+    public Set<K> keysFor(String name, Object fieldValue) {
+        return indexFor(name).keysFor(fieldValue);
+    }
+
+    @NotNull
+    @Override
+    public Set<K> keysBetween(String name, @Nullable Comparable from, @Nullable Comparable to) {
+        return indexFor(name).keysBetween(from, to);
+    }
+
+    /**
+     * Only the hash code of each value is indexed, so no caller owned instance is retained; the
+     * candidate keys are checked against the store.
+     */
+    @Override
+    public boolean containsValue(V value) {
+        if (value == null)
+            return false;
+        for (K key : valueIndex().keysFor(value.hashCode())) {
+            if (value.equals(kvStore.get(key)))
+                return true;
+        }
+        return false;
+    }
+
+    @NotNull
+    private Index<K, V> valueIndex() {
+        Index<K, V> index = valueIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = valueIndex;
+                if (index == null) {
+                    index = new Index<>(Object::hashCode, new ConcurrentHashMap<>());
+                    populate(index);
+                    valueIndex = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    @NotNull
+    private Index<K, V> indexFor(String name) {
+        Index<K, V> index = indexMap.get(name);
+        if (index == null)
+            throw new IllegalArgumentException("No index " + name);
+        return index;
+    }
+
+    @Override
+    public void notifyEvent(@NotNull MapEvent<K, V> changeEvent) {
+        K key = changeEvent.key();
+        V value = changeEvent.value();
+        for (Index<K, V> index : indexes)
+            index.update(key, value);
+    }
+
+    static class Index<K, V> {
+        private static final int STRIPES = 64;
+
+        private final SerializableFunction<V, ?> field;
+        private final Map<K, Object> fieldByKey = new ConcurrentHashMap<>();
+        private final ConcurrentMap<Object, Set<K>> keysByField;
+        // keys are striped for fieldByKey, fields for the sets in keysByField.
+        private final ReentrantLock[] keyLocks = new ReentrantLock[STRIPES];
+        private final Object[] fieldLocks = new Object[STRIPES];
+
+        Index(SerializableFunction<V, ?> field, ConcurrentMap<Object, Set<K>> keysByField) {
+            this.field = field;
+            this.keysByField = keysByField;
+            for (int i = 0; i < STRIPES; i++) {
+                keyLocks[i] = new ReentrantLock();
+                fieldLocks[i] = new Object();
+            }
+        }
+
+        private static int stripe(@NotNull Object o) {
+            int h = o.hashCode();
+            return (h ^ (h >>> 16)) & (STRIPES - 1);
+        }
+
+        void lockAll() {
+            for (ReentrantLock lock : keyLocks)
+                lock.lock();
+        }
+
+        void unlockAll() {
+            for (int i = STRIPES - 1; i >= 0; i--)
+                keyLocks[i].unlock();
+        }
+
+        void update(K key, @Nullable V value) {
+            ReentrantLock lock = keyLocks[stripe(key)];
+            lock.lock();
+            try {
+                Object newField = value == null ? null : field.apply(value);
+                Object oldField = newField == null ? fieldByKey.remove(key) : fieldByKey.put(key, newField);
+                if (Objects.equals(oldField, newField))
+                    return;
+                if (oldField != null) {
+                    synchronized (fieldLocks[stripe(oldField)]) {
+                        Set<K> keys = keysByField.get(oldField);
+                        if (keys != null) {
+                            keys.remove(key);
+                            if (keys.isEmpty())
+                                keysByField.remove(oldField);
+                        }
+                    }
+                }
+                if (newField != null) {
+                    synchronized (fieldLocks[stripe(newField)]) {
+                        keysByField.computeIfAbsent(newField, f -> ConcurrentHashMap.newKeySet()).add(key);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        @NotNull
+        Set<K> keysFor(Object fieldValue) {
+            Set<K> keys = keysByField.get(fieldValue);
+            return keys == null ? Collections.emptySet() : Collections.unmodifiableSet(keys);
+        }
+
+        @NotNull
+        Set<K> keysBetween(@Nullable Comparable from, @Nullable Comparable to) {
+            if (!(keysByField instanceof ConcurrentNavigableMap))
+                throw new UnsupportedOperationException("Not a sorted index");
+            ConcurrentNavigableMap<Object, Set<K>> sorted = (ConcurrentNavigableMap<Object, Set<K>>) keysByField;
+            if (from != null)
+                sorted = sorted.tailMap(from, true);
+            if (to != null)
+                sorted = sorted.headMap(to, false);
+            Set<K> keys = new LinkedHashSet<>();
+            for (Set<K> ks : sorted.values())
+                keys.addAll(ks);
+            return keys;
+        }
+    }
+}
@@ -18,7 +18,8 @@ package net.openhft.chronicle.engine.map;
 
 import net.openhft.chronicle.bytes.Bytes;
 import net.openhft.chronicle.bytes.BytesStore;
-import net.openhft.chronicle.core.ClassLocal;
+import net.openhft.chronicle.bytes.VanillaBytes;
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication;
 import net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntry;
 import net.openhft.chronicle.engine.api.map.*;
@@ -30,13 +31,9 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import net.openhft.chronicle.wire.Marshallable;
 import net.openhft.chronicle.wire.Wire;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.Constructor;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 
@@ -46,18 +43,11 @@ import static net.openhft.chronicle.engine.map.Buffers.BUFFERS;
  * Created by peter on 25/05/15.
  */
 public class VanillaStringMarshallableKeyValueStore<V extends Marshallable> implements StringMarshallableKeyValueStore<V> {
-    private static final ClassLocal<Constructor> CONSTRUCTORS = ClassLocal.withInitial(c -> {
-        try {
-            Constructor con = c.getDeclaredConstructor();
-            con.setAccessible(true);
-            return con;
-        } catch (NoSuchMethodException e) {
-            throw new AssertionError(e);
-        }
-    });
     private final BiFunction<V, Bytes, Bytes> valueToBytes;
     private final BiFunction<BytesStore, V, V> bytesToValue;
     private final ObjectKVSSubscription<String, V, V> subscriptions;
+    @Nullable
+    private final ValueCodec codec;
     private SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore;
     private Asset asset;
     private Class<V> valueType;
@@ -65,63 +55,121 @@ public class VanillaStringMarshallableKeyValueStore<V extends Marshallable> impl
     public VanillaStringMarshallableKeyValueStore(RequestContext context, Asset asset,
                                                   SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore) throws AssetNotFoundException {
         this(asset.acquireView(ObjectKVSSubscription.class, context), asset, context.valueType(),
-                kvStore, context.wireType());
+                kvStore, context.wireType(), context.marshalFields(), ValueCodec.acquire(context, asset));
     }
 
     VanillaStringMarshallableKeyValueStore(ObjectKVSSubscription<String, V, V> subscriptions, Asset asset, Class valueType,
                                            SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore,
-                                           Function<Bytes, Wire> wireType) {
+                                           Function<Bytes, Wire> wireType, boolean marshalFields,
+                                           @Nullable ValueCodec codec) {
         this.asset = asset;
+        this.codec = codec;
         this.valueType = valueType;
-        valueToBytes = toBytes(valueType, wireType);
-        bytesToValue = fromBytes(valueType, wireType);
+        valueToBytes = toBytes(valueType, wireType, marshalFields);
+        bytesToValue = fromBytes(valueType, wireType, marshalFields);
         this.kvStore = kvStore;
-        ValueReader<BytesStore, V> valueReader = (bs, v) -> bytesToValue.apply(bs, null);
+        ValueReader<BytesStore, V> valueReader = (bs, v) -> bytesToValue.apply(decode(bs), v);
         asset.registerView(ValueReader.class, valueReader);
         RawKVSSubscription<String, Bytes, BytesStore> rawSubscription =
                 (RawKVSSubscription<String, Bytes, BytesStore>) kvStore.subscription(true);
         this.subscriptions = subscriptions;
-        rawSubscription.registerDownstream(mpe ->
-                subscriptions.notifyEvent(mpe.translate(s -> s, b -> bytesToValue.apply(b, null))));
+        rawSubscription.registerDownstream(new EventConsumer<String, BytesStore>() {
+            @Override
+            public void notifyEvent(MapEvent<String, BytesStore> mpe) throws InvalidSubscriberException {
+                subscriptions.notifyEvent(translate(mpe));
+            }
+
+            @Override
+            public void notifyEvents(Collection<MapEvent<String, BytesStore>> mpes) throws InvalidSubscriberException {
+                // the events of a putAll or removeAll are passed on as one batch.
+                List<MapEvent<String, V>> events = new ArrayList<>(mpes.size());
+                for (MapEvent<String, BytesStore> mpe : mpes)
+                    events.add(translate(mpe));
+                subscriptions.notifyEvents(events);
+            }
+        });
+    }
+
+    @NotNull
+    private MapEvent<String, V> translate(@NotNull MapEvent<String, BytesStore> mpe) {
+        return mpe.translate(s -> s, b -> bytesToValue.apply(decode(b), null));
+    }
+
+    private Bytes encode(Bytes bytes) {
+        return codec == null ? bytes : codec.encode(bytes);
     }
 
-    static <T> BiFunction<T, Bytes, Bytes> toBytes(Class type, Function<Bytes, Wire> wireType) {
+    // decodes in to the read buffer, which is then read through the view without copying.
+    private BytesStore decode(BytesStore bytes) {
+        return codec == null ? bytes : codec.decode(bytes, BUFFERS.get().readBuffer);
+    }
+
+    @NotNull
+    private Bytes toStored(V value, Bytes using) {
+        return encode(valueToBytes.apply(value, using));
+    }
+
+    @Nullable
+    private V fromStored(@Nullable BytesStore stored) {
+        return stored == null ? null : bytesToValue.apply(decode(stored), null);
+    }
+
+    static <T> BiFunction<T, Bytes, Bytes> toBytes(Class type, Function<Bytes, Wire> wireType, boolean marshalFields) {
         if (type == String.class)
-            return (t, bytes) -> (Bytes) bytes.append((String) t);
-        if (Marshallable.class.isAssignableFrom(type))
             return (t, bytes) -> {
-                t = acquireInstance(type, t);
+                bytes.clear();
+                return (Bytes) bytes.append((String) t);
+            };
+        if (Marshallable.class.isAssignableFrom(type)) {
+            FieldMarshaller<T> marshaller = FieldMarshaller.of(type);
+            if (marshalFields && marshaller.canMarshalFields())
+                return (t, bytes) -> {
+                    bytes.clear();
+                    marshaller.writeFields(marshaller.acquireInstance(t), bytes);
+                    return bytes;
+                };
+            return (t, bytes) -> {
+                bytes.clear();
+                t = marshaller.acquireInstance(t);
                 ((Marshallable) t).writeMarshallable(wireType.apply(bytes));
                 return bytes;
             };
+        }
         throw new UnsupportedOperationException("todo");
     }
 
-    static <T> T acquireInstance(Class type, T t) {
-        if (t == null)
-            try {
-                t = (T) CONSTRUCTORS.get(type).newInstance();
-            } catch (Exception e) {
-                throw new AssertionError(e);
-            }
-        return t;
-    }
-
-    private <T> BiFunction<BytesStore, T, T> fromBytes(Class type, Function<Bytes, Wire> wireType) {
+    private <T> BiFunction<BytesStore, T, T> fromBytes(Class type, Function<Bytes, Wire> wireType, boolean marshalFields) {
         if (type == String.class)
             return (t, bytes) -> (T) (bytes == null ? null : bytes.toString());
-        if (Marshallable.class.isAssignableFrom(type))
+        if (Marshallable.class.isAssignableFrom(type)) {
+            FieldMarshaller<T> marshaller = FieldMarshaller.of(type);
+            if (marshalFields && marshaller.canMarshalFields())
+                return (bytes, t) -> bytes == null ? null : marshaller.readFields(view(bytes), t);
+            ThreadLocal<Wire> readWire = ThreadLocal.withInitial(() -> wireType.apply(BUFFERS.get().valueView));
             return (bytes, t) -> {
                 if (bytes == null)
                     return null;
 
-                t = acquireInstance(type, t);
-                ((Marshallable) t).readMarshallable(wireType.apply(bytes.bytesForRead()));
+                t = marshaller.acquireInstance(t);
+                view(bytes);
+                ((Marshallable) t).readMarshallable(readWire.get());
                 return t;
             };
+        }
         throw new UnsupportedOperationException("todo");
     }
 
+    /**
+     * Points this thread's view at the readable bytes of the value, so it is read in place rather
+     * than copied.
+     */
+    @NotNull
+    private static Bytes view(@NotNull BytesStore bytes) {
+        VanillaBytes<Void> view = BUFFERS.get().valueView;
+        view.bytesStore(bytes.bytesStore(), bytes.readPosition(), bytes.readRemaining());
+        return view;
+    }
+
     @Override
     public ObjectKVSSubscription<String, V, V> subscription(boolean createIfAbsent) {
         return subscriptions;
@@ -129,17 +177,12 @@ public class VanillaStringMarshallableKeyValueStore<V extends Marshallable> impl
 
     @Override
     public boolean put(String key, V value) {
-        Buffers b = BUFFERS.get();
-        Bytes valueBytes = valueToBytes.apply(value, b.valueBuffer);
-        return kvStore.put(key, valueBytes);
+        return kvStore.put(key, toStored(value, BUFFERS.get().valueBuffer));
     }
 
     @Override
     public V getAndPut(String key, V value) {
-        Buffers b = BUFFERS.get();
-        Bytes valueBytes = valueToBytes.apply(value, b.valueBuffer);
-        BytesStore retBytes = kvStore.getAndPut(key, valueBytes);
-        return retBytes == null ? null : bytesToValue.apply(retBytes, null);
+        return fromStored(kvStore.getAndPut(key, toStored(value, BUFFERS.get().valueBuffer)));
     }
 
     @Override
@@ -150,14 +193,64 @@ public class VanillaStringMarshallableKeyValueStore<V extends Marshallable> impl
     @Override
     public V getAndRemove(String key) {
         BytesStore retBytes = kvStore.getAndRemove(key);
-        return retBytes == null ? null : bytesToValue.apply(retBytes, null);
+        return retBytes == null ? null : bytesToValue.apply(decode(retBytes), null);
     }
 
     @Override
     public V getUsing(String key, V value) {
         Buffers b = BUFFERS.get();
         BytesStore retBytes = kvStore.getUsing(key, b.valueBuffer);
-        return retBytes == null ? null : bytesToValue.apply(retBytes, value);
+        return retBytes == null ? null : bytesToValue.apply(decode(retBytes), value);
+    }
+
+    @Override
+    public V replace(String key, V value) {
+        return fromStored(kvStore.replace(key, toStored(value, BUFFERS.get().valueBuffer)));
+    }
+
+    @Override
+    public boolean replaceIfEqual(String key, V oldValue, V newValue) {
+        Buffers b = BUFFERS.get();
+        return kvStore.replaceIfEqual(key, toStored(oldValue, b.value2Buffer), toStored(newValue, b.valueBuffer));
+    }
+
+    @Override
+    public boolean removeIfEqual(String key, V value) {
+        return kvStore.removeIfEqual(key, toStored(value, BUFFERS.get().valueBuffer));
+    }
+
+    @Override
+    public V putIfAbsent(String key, V value) {
+        return fromStored(kvStore.putIfAbsent(key, toStored(value, BUFFERS.get().valueBuffer)));
+    }
+
+    @Override
+    public V compute(String key, SerializableFunction<V, V> function) {
+        // the store underneath runs this holding the key's lock, so the update is atomic and never retried.
+        Object[] result = {null};
+        kvStore.compute(key, stored -> {
+            V value = function.apply(fromStored(stored));
+            result[0] = value;
+            return value == null ? null : toStored(value, BUFFERS.get().valueBuffer);
+        });
+        return (V) result[0];
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends V> entries) {
+        kvStore.putAll(Buffers.encodeAll(entries, this::toStored));
+    }
+
+    @Override
+    public void removeAll(Collection<? extends String> keys) {
+        kvStore.removeAll(keys);
+    }
+
+    @Override
+    public Map<String, V> getAll(Collection<? extends String> keys) {
+        Map<String, V> map = new LinkedHashMap<>();
+        kvStore.getAll(keys).forEach((k, bs) -> map.put(k, fromStored(bs)));
+        return map;
     }
 
     @Override
@@ -173,33 +266,34 @@ public class VanillaStringMarshallableKeyValueStore<V extends Marshallable> impl
     @Override
     public void entriesFor(int segment, SubscriptionConsumer<MapEvent<String, V>> kvConsumer) throws InvalidSubscriberException {
         kvStore.entriesFor(segment, e -> kvConsumer.accept(
-                InsertedEvent.of(asset.fullName(), e.key(), bytesToValue.apply(e.value(), null))));
+                InsertedEvent.of(asset.fullName(), e.key(), bytesToValue.apply(decode(e.value()), null))));
+    }
+
+    @Override
+    public void entriesForTransient(int segment, SubscriptionConsumer<MapEvent<String, V>> kvConsumer) throws InvalidSubscriberException {
+        InsertedEvent<String, V> event = InsertedEvent.of(asset.fullName(), null, null);
+        kvStore.entriesForTransient(segment, e -> kvConsumer.accept(event.set(e.key(), fromStored(e.value()))));
     }
 
     @Override
     public Iterator<Map.Entry<String, V>> entrySetIterator() {
-        // todo optimise
-        List<Map.Entry<String, V>> entries = new ArrayList<>();
-        try {
-            for (int i = 0, seg = segments(); i < seg; i++)
-                entriesFor(i, e -> entries.add(new SimpleEntry<>(e.key(), e.value())));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
-        return entries.iterator();
+        // the underlying store's iterator is lazy, so each value is only read and decoded when reached.
+        return new TranslatingEntryIterator<>(this, kvStore.entrySetIterator(), bs -> bytesToValue.apply(decode(bs), null));
+    }
+
+    @Override
+    public Spliterator<Map.Entry<String, V>> entrySetSpliterator() {
+        return new TranslatingEntrySpliterator<>(kvStore.entrySetSpliterator(), bs -> bytesToValue.apply(decode(bs), null));
     }
 
     @Override
     public Iterator<String> keySetIterator() {
-        // todo optimise
-        List<String> entries = new ArrayList<>();
-        try {
-            for (int i = 0, seg = segments(); i < seg; i++)
-                keysFor(i, k -> entries.add(k));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
-        return entries.iterator();
+        return kvStore.keySetIterator();
+    }
+
+    @Override
+    public Iterator<V> valuesIterator() {
+        return SegmentIterator.values(entrySetIterator());
     }
 
     @Override
@@ -209,7 +303,8 @@ public class VanillaStringMarshallableKeyValueStore<V extends Marshallable> impl
 
     @Override
     public boolean containsValue(final V value) {
-        throw new UnsupportedOperationException("todo");
+        // value2Buffer as the underlying store reads values in to the other buffers.
+        return kvStore.containsValue(encode(valueToBytes.apply(value, BUFFERS.get().value2Buffer)));
     }
 
     @Override
@@ -19,6 +19,7 @@ package net.openhft.chronicle.engine.map;
 import net.openhft.chronicle.bytes.Bytes;
 import net.openhft.chronicle.bytes.BytesStore;
 import net.openhft.chronicle.bytes.BytesUtil;
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.EngineReplication;
 import net.openhft.chronicle.engine.api.EngineReplication.ReplicationEntry;
 import net.openhft.chronicle.engine.api.map.*;
@@ -30,12 +31,7 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.nio.ByteBuffer;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.function.Function;
 
 import static net.openhft.chronicle.engine.map.Buffers.BUFFERS;
@@ -45,27 +41,74 @@ import static net.openhft.chronicle.engine.map.Buffers.BUFFERS;
  */
 public class VanillaStringStringKeyValueStore implements StringStringKeyValueStore {
     private final ObjectKVSSubscription<String, StringBuilder, String> subscriptions;
+    @Nullable
+    private final ValueCodec codec;
 
     private SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore;
     private Asset asset;
 
     public VanillaStringStringKeyValueStore(RequestContext context, @NotNull Asset asset,
                                             @NotNull SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore) throws AssetNotFoundException {
-        this(asset.acquireView(ObjectKVSSubscription.class, context), asset, kvStore);
+        this(asset.acquireView(ObjectKVSSubscription.class, context), asset, kvStore, ValueCodec.acquire(context, asset));
     }
 
     VanillaStringStringKeyValueStore(ObjectKVSSubscription<String, StringBuilder, String> subscriptions,
                                      @NotNull Asset asset,
-                                     @NotNull SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore) throws AssetNotFoundException {
+                                     @NotNull SubscriptionKeyValueStore<String, Bytes, BytesStore> kvStore,
+                                     @Nullable ValueCodec codec) throws AssetNotFoundException {
         this.asset = asset;
         this.kvStore = kvStore;
-        asset.registerView(ValueReader.class, StringValueReader.BYTES_STORE_TO_STRING);
+        this.codec = codec;
+        if (codec == null) {
+            asset.registerView(ValueReader.class, StringValueReader.BYTES_STORE_TO_STRING);
+        } else {
+            ValueReader<BytesStore, String> valueReader = (bs, s) -> StringValueReader.BYTES_STORE_TO_STRING.readFrom(decode(bs), s);
+            asset.registerView(ValueReader.class, valueReader);
+        }
         RawKVSSubscription<String, Bytes, BytesStore> rawSubscription =
                 (RawKVSSubscription<String, Bytes, BytesStore>) kvStore.subscription(true);
         this.subscriptions = subscriptions;
         subscriptions.setKvStore(this);
-        rawSubscription.registerDownstream(mpe ->
-                subscriptions.notifyEvent(mpe.translate(s -> s, BytesStoreToString.BYTES_STORE_TO_STRING)));
+        rawSubscription.registerDownstream(new EventConsumer<String, BytesStore>() {
+            @Override
+            public void notifyEvent(MapEvent<String, BytesStore> mpe) throws InvalidSubscriberException {
+                subscriptions.notifyEvent(translate(mpe));
+            }
+
+            @Override
+            public void notifyEvents(Collection<MapEvent<String, BytesStore>> mpes) throws InvalidSubscriberException {
+                // the events of a putAll or removeAll are passed on as one batch.
+                List<MapEvent<String, String>> events = new ArrayList<>(mpes.size());
+                for (MapEvent<String, BytesStore> mpe : mpes)
+                    events.add(translate(mpe));
+                subscriptions.notifyEvents(events);
+            }
+        });
+    }
+
+    @NotNull
+    private MapEvent<String, String> translate(@NotNull MapEvent<String, BytesStore> mpe) {
+        return mpe.translate(s -> s, b -> BytesStoreToString.BYTES_STORE_TO_STRING.apply(decode(b)));
+    }
+
+    private Bytes encode(Bytes bytes) {
+        return codec == null ? bytes : codec.encode(bytes);
+    }
+
+    private BytesStore decode(BytesStore bytes) {
+        return codec == null ? bytes : codec.decode(bytes, BUFFERS.get().readBuffer);
+    }
+
+    @NotNull
+    private Bytes toStored(String value, Bytes using) {
+        using.clear();
+        using.append8bit(value);
+        return encode(using);
+    }
+
+    @Nullable
+    private String fromStored(@Nullable BytesStore stored) {
+        return BytesStoreToString.BYTES_STORE_TO_STRING.apply(decode(stored));
     }
 
     @Override
@@ -86,22 +129,13 @@ public class VanillaStringStringKeyValueStore implements StringStringKeyValueSto
 
     @Override
     public boolean put(String key, String value) {
-        Buffers b = BUFFERS.get();
-        Bytes<ByteBuffer> bytes = b.valueBuffer;
-        bytes.clear();
-        bytes.append8bit(value);
-        return kvStore.put(key, bytes);
+        return kvStore.put(key, toStored(value, BUFFERS.get().valueBuffer));
     }
 
     @Nullable
     @Override
     public String getAndPut(String key, String value) {
-        Buffers b = BUFFERS.get();
-        Bytes<ByteBuffer> bytes = b.valueBuffer;
-        bytes.clear();
-        bytes.append(value);
-        BytesStore retBytes = kvStore.getAndPut(key, bytes);
-        return retBytes == null ? null : retBytes.toString();
+        return fromStored(kvStore.getAndPut(key, toStored(value, BUFFERS.get().valueBuffer)));
     }
 
     @Override
@@ -113,7 +147,7 @@ public class VanillaStringStringKeyValueStore implements StringStringKeyValueSto
     @Override
     public String getAndRemove(String key) {
         BytesStore retBytes = kvStore.getAndRemove(key);
-        return retBytes == null ? null : retBytes.toString();
+        return retBytes == null ? null : decode(retBytes).toString();
     }
 
     @Nullable
@@ -121,7 +155,60 @@ public class VanillaStringStringKeyValueStore implements StringStringKeyValueSto
     public String getUsing(String key, StringBuilder value) {
         Buffers b = BUFFERS.get();
         BytesStore retBytes = kvStore.getUsing(key, b.valueBuffer);
-        return retBytes == null ? null : retBytes.toString();
+        return retBytes == null ? null : decode(retBytes).toString();
+    }
+
+    @Nullable
+    @Override
+    public String replace(String key, String value) {
+        return fromStored(kvStore.replace(key, toStored(value, BUFFERS.get().valueBuffer)));
+    }
+
+    @Override
+    public boolean replaceIfEqual(String key, String oldValue, String newValue) {
+        Buffers b = BUFFERS.get();
+        return kvStore.replaceIfEqual(key, toStored(oldValue, b.value2Buffer), toStored(newValue, b.valueBuffer));
+    }
+
+    @Override
+    public boolean removeIfEqual(String key, String value) {
+        return kvStore.removeIfEqual(key, toStored(value, BUFFERS.get().valueBuffer));
+    }
+
+    @Nullable
+    @Override
+    public String putIfAbsent(String key, String value) {
+        return fromStored(kvStore.putIfAbsent(key, toStored(value, BUFFERS.get().valueBuffer)));
+    }
+
+    @Nullable
+    @Override
+    public String compute(String key, SerializableFunction<String, String> function) {
+        // the store underneath runs this holding the key's lock, so the update is atomic and never retried.
+        Object[] result = {null};
+        kvStore.compute(key, stored -> {
+            String value = function.apply(fromStored(stored));
+            result[0] = value;
+            return value == null ? null : toStored(value, BUFFERS.get().valueBuffer);
+        });
+        return (String) result[0];
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> entries) {
+        kvStore.putAll(Buffers.encodeAll(entries, this::toStored));
+    }
+
+    @Override
+    public void removeAll(Collection<? extends String> keys) {
+        kvStore.removeAll(keys);
+    }
+
+    @Override
+    public Map<String, String> getAll(Collection<? extends String> keys) {
+        Map<String, String> map = new LinkedHashMap<>();
+        kvStore.getAll(keys).forEach((k, bs) -> map.put(k, fromStored(bs)));
+        return map;
     }
 
     @Override
@@ -136,20 +223,34 @@ public class VanillaStringStringKeyValueStore implements StringStringKeyValueSto
 
     @Override
     public void entriesFor(int segment, @NotNull SubscriptionConsumer<MapEvent<String, String>> kvConsumer) throws InvalidSubscriberException {
-        kvStore.entriesFor(segment, e -> kvConsumer.accept(e.translate(k -> k, BytesStoreToString.BYTES_STORE_TO_STRING)));
+        kvStore.entriesFor(segment, e -> kvConsumer.accept(e.translate(k -> k, b -> BytesStoreToString.BYTES_STORE_TO_STRING.apply(decode(b)))));
+    }
+
+    @Override
+    public void entriesForTransient(int segment, @NotNull SubscriptionConsumer<MapEvent<String, String>> kvConsumer) throws InvalidSubscriberException {
+        InsertedEvent<String, String> event = InsertedEvent.of(asset.fullName(), null, null);
+        kvStore.entriesForTransient(segment, e -> kvConsumer.accept(event.set(e.key(), fromStored(e.value()))));
     }
 
-    @NotNull
     @Override
     public Iterator<Map.Entry<String, String>> entrySetIterator() {
-        List<Map.Entry<String, String>> entries = new ArrayList<>();
-        try {
-            for (int i = 0, seg = segments(); i < seg; i++)
-                entriesFor(i, e -> entries.add(new SimpleEntry<>(e.key(), e.value())));
-        } catch (InvalidSubscriberException e) {
-            throw new AssertionError(e);
-        }
-        return entries.iterator();
+        // the underlying store's iterator is lazy, so each value is only read and decoded when reached.
+        return new TranslatingEntryIterator<>(this, kvStore.entrySetIterator(), bs -> BytesStoreToString.BYTES_STORE_TO_STRING.apply(decode(bs)));
+    }
+
+    @Override
+    public Spliterator<Map.Entry<String, String>> entrySetSpliterator() {
+        return new TranslatingEntrySpliterator<>(kvStore.entrySetSpliterator(), bs -> BytesStoreToString.BYTES_STORE_TO_STRING.apply(decode(bs)));
+    }
+
+    @Override
+    public Iterator<String> keySetIterator() {
+        return kvStore.keySetIterator();
+    }
+
+    @Override
+    public Iterator<String> valuesIterator() {
+        return SegmentIterator.values(entrySetIterator());
     }
 
     @Override
@@ -159,7 +260,11 @@ public class VanillaStringStringKeyValueStore implements StringStringKeyValueSto
 
     @Override
     public boolean containsValue(final StringBuilder value) {
-        throw new UnsupportedOperationException("todo");
+        // value2Buffer as the underlying store reads values in to the other buffers.
+        Bytes bytes = BUFFERS.get().value2Buffer;
+        bytes.clear();
+        bytes.append(value);
+        return kvStore.containsValue(encode(bytes));
     }
 
 
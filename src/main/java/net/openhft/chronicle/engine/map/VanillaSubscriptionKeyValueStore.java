@@ -16,20 +16,41 @@
 
 package net.openhft.chronicle.engine.map;
 
+import net.openhft.chronicle.core.util.SerializableFunction;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.map.MapEvent;
 import net.openhft.chronicle.engine.api.tree.Asset;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+
 /**
+ * Publishes an event for each change made through it.  A write to a key and its event are made
+ * holding the key's lock, so the events for a key are published in the order of the writes.
+ * <p>
  * Created by peter on 22/05/15.
  */
 public class VanillaSubscriptionKeyValueStore<K, MV, V> extends AbstractKeyValueStore<K, MV, V> implements ObjectKeyValueStore<K, MV, V>, AuthenticatedKeyValueStore<K, MV, V> {
+    private static final int LOCK_STRIPES = 64;
+
     private final ObjectKVSSubscription<K, MV, V> subscriptions;
+    private final Object[] locks = new Object[LOCK_STRIPES];
 
     public VanillaSubscriptionKeyValueStore(RequestContext context, Asset asset, KeyValueStore<K, MV, V> item) {
         super(context, asset, item);
         this.subscriptions = asset.acquireView(ObjectKVSSubscription.class, context);
         subscriptions.setKvStore(this);
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+    }
+
+    private Object lockFor(K key) {
+        int h = key.hashCode();
+        return locks[(h ^ (h >>> 16)) & (locks.length - 1)];
     }
 
     @Override
@@ -39,79 +60,163 @@ public class VanillaSubscriptionKeyValueStore<K, MV, V> extends AbstractKeyValue
 
     @Override
     public V replace(K key, V value) {
-        V oldValue = kvStore.replace(key, value);
-        if (oldValue != null) {
-            subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), key, oldValue, value));
+        synchronized (lockFor(key)) {
+            V oldValue = kvStore.replace(key, value);
+            if (oldValue != null) {
+                subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), key, oldValue, value));
+            }
+            return oldValue;
         }
-        return oldValue;
     }
 
     @Override
     public boolean put(K key, V value) {
-        if (subscriptions.needsPrevious()) {
-            return getAndPut(key, value) != null;
-        }
-        boolean replaced = kvStore.put(key, value);
+        synchronized (lockFor(key)) {
+            if (subscriptions.needsPrevious()) {
+                return getAndPut(key, value) != null;
+            }
+            boolean replaced = kvStore.put(key, value);
             subscriptions.notifyEvent(replaced
-                    ? InsertedEvent.of(asset.fullName(), key, value)
-                    : UpdatedEvent.of(asset.fullName(), key, null, value));
-        return replaced;
-
+                    ? UpdatedEvent.of(asset.fullName(), key, null, value)
+                    : InsertedEvent.of(asset.fullName(), key, value));
+            return replaced;
+        }
     }
 
     @Override
     public boolean remove(K key) {
-        if (subscriptions.needsPrevious()) {
-            return getAndRemove(key) != null;
+        synchronized (lockFor(key)) {
+            if (subscriptions.needsPrevious()) {
+                return getAndRemove(key) != null;
+            }
+            if (kvStore.remove(key)) {
+                subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, null));
+                return true;
+            }
+            return false;
         }
-        if (kvStore.remove(key)) {
-            subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, null));
-            return true;
-        }
-        return false;
     }
 
     @Override
     public boolean replaceIfEqual(K key, V oldValue, V newValue) {
-        if (kvStore.replaceIfEqual(key, oldValue, newValue)) {
-            subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), key, oldValue, newValue));
-            return true;
+        synchronized (lockFor(key)) {
+            if (kvStore.replaceIfEqual(key, oldValue, newValue)) {
+                subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), key, oldValue, newValue));
+                return true;
+            }
+            return false;
         }
-        return false;
     }
 
     @Override
     public boolean removeIfEqual(K key, V value) {
-        if (kvStore.removeIfEqual(key, value)) {
-            subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, value));
-            return true;
+        synchronized (lockFor(key)) {
+            if (kvStore.removeIfEqual(key, value)) {
+                subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, value));
+                return true;
+            }
+            return false;
         }
-        return false;
     }
 
     @Override
     public V putIfAbsent(K key, V value) {
-        V ret = kvStore.putIfAbsent(key, value);
-        if (ret == null)
-            subscriptions.notifyEvent(InsertedEvent.of(asset.fullName(), key, value));
-        return ret;
+        synchronized (lockFor(key)) {
+            V ret = kvStore.putIfAbsent(key, value);
+            if (ret == null)
+                subscriptions.notifyEvent(InsertedEvent.of(asset.fullName(), key, value));
+            return ret;
+        }
     }
 
     @Override
-    public V getAndPut(K key, V value) {
-        V oldValue = kvStore.getAndPut(key, value);
+    public V compute(K key, SerializableFunction<V, V> function) {
+        synchronized (lockFor(key)) {
+            // the last call is the one applied if the store has to retry.
+            Object[] oldValue = {null};
+            V newValue = kvStore.compute(key, v -> {
+                oldValue[0] = v;
+                return function.apply(v);
+            });
+            V old = (V) oldValue[0];
+            if (old == null) {
+                if (newValue != null)
+                    subscriptions.notifyEvent(InsertedEvent.of(asset.fullName(), key, newValue));
+            } else if (newValue == null) {
+                subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, old));
+            } else {
+                subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), key, old, newValue));
+            }
+            return newValue;
+        }
+    }
 
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return compute(key, v -> v == null ? value : function.apply(v, value));
+    }
+
+    /**
+     * The entries are written with one putAll() so the store can batch them, after reading the
+     * previous values with one getAll() if the subscribers need them.  The writes are not made
+     * holding the keys' locks, so their events may interleave with those of single writes.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        boolean needsPrevious = subscriptions.needsPrevious();
+        Map<K, V> previous = needsPrevious ? kvStore.getAll(entries.keySet()) : null;
+        List<MapEvent<K, V>> events = new ArrayList<>(entries.size());
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            K key = entry.getKey();
+            V value = entry.getValue();
+            if (needsPrevious) {
+                V oldValue = previous.get(key);
+                events.add(oldValue == null
+                        ? InsertedEvent.of(asset.fullName(), key, value)
+                        : UpdatedEvent.of(asset.fullName(), key, oldValue, value));
+            } else {
+                events.add(kvStore.containsKey(key)
+                        ? UpdatedEvent.of(asset.fullName(), key, null, value)
+                        : InsertedEvent.of(asset.fullName(), key, value));
+            }
+        }
+        kvStore.putAll(entries);
+        subscriptions.notifyEvents(events);
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        List<MapEvent<K, V>> events = new ArrayList<>(keys.size());
+        if (subscriptions.needsPrevious()) {
+            kvStore.getAll(keys).forEach((key, oldValue) ->
+                    events.add(RemovedEvent.of(asset.fullName(), key, oldValue)));
+        } else {
+            for (K key : keys)
+                if (kvStore.containsKey(key))
+                    events.add(RemovedEvent.of(asset.fullName(), key, null));
+        }
+        kvStore.removeAll(keys);
+        subscriptions.notifyEvents(events);
+    }
+
+    @Override
+    public V getAndPut(K key, V value) {
+        synchronized (lockFor(key)) {
+            V oldValue = kvStore.getAndPut(key, value);
             subscriptions.notifyEvent(oldValue == null
                     ? InsertedEvent.of(asset.fullName(), key, value)
                     : UpdatedEvent.of(asset.fullName(), key, oldValue, value));
-        return oldValue;
+            return oldValue;
+        }
     }
 
     @Override
     public V getAndRemove(K key) {
-        V oldValue = kvStore.getAndRemove(key);
-        if (oldValue != null)
-            subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, oldValue));
-        return oldValue;
+        synchronized (lockFor(key)) {
+            V oldValue = kvStore.getAndRemove(key);
+            if (oldValue != null)
+                subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, oldValue));
+            return oldValue;
+        }
     }
 }
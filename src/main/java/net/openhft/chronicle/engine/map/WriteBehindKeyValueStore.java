@@ -0,0 +1,513 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.bytes.BytesUtil;
+import net.openhft.chronicle.core.util.SerializableFunction;
+import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.SubscriptionKeyValueStore;
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.pubsub.SubscriptionConsumer;
+import net.openhft.chronicle.engine.api.tree.Asset;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiFunction;
+
+/**
+ * Acknowledges writes once they are held in memory and writes them to the underlying store in
+ * batches every {@link RequestContext#writeBehindMillis()}.  Only the latest write to a key is
+ * kept, so repeated writes between flushes become one.  Once
+ * {@link RequestContext#writeBehindSize()} keys are waiting, writers to other keys block until
+ * the next flush.
+ * <p>
+ * Reads see the pending writes.  Sizes and scans flush first, as do close() and clear().  The
+ * compare-and-set operations are atomic with respect to writes to the same key through this store;
+ * they hold a lock striped by key, and the underlying store is read before taking it.
+ * <p>
+ * Normally a store above this one notifies the subscribers as the writes are made. When this store
+ * is the one the events are taken from, e.g. over a mounted file or Chronicle Map store, it is
+ * created to publish, notifying its own subscribers as each write is staged and dropping the events
+ * of the underlying store for the writes it flushed.
+ */
+public class WriteBehindKeyValueStore<K, MV, V> extends AbstractKeyValueStore<K, MV, V>
+        implements AuthenticatedKeyValueStore<K, MV, V> {
+    static final int DEFAULT_WRITE_BEHIND_SIZE = 1 << 16;
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindKeyValueStore.class);
+    private static final int LOCK_STRIPES = 64;
+    private static final Object REMOVED = new Object();
+    // the key is in the underlying store, when its value isn't needed.
+    private static final Object PRESENT = new Object();
+
+    private final long writeBehindMillis;
+    private final int maxPending;
+    // serialises the writes to a key with reading what they replace.
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    // incremented on every write staged in the stripe, so a read of the underlying store can tell it is stale.
+    private final AtomicLongArray versions = new AtomicLongArray(LOCK_STRIPES);
+    // waited on by writers for space, and by the flusher for the next flush.
+    private final Object space = new Object();
+    private final Object flushLock = new Object();
+    @NotNull
+    private final Thread flusher;
+    // the value or REMOVED by key, kept until it has been written.
+    private final Map<K, Object> pending = new ConcurrentHashMap<>();
+    @Nullable
+    private final KVSSubscription<K, MV, V> subscriptions;
+    // with publish, the writes flushed whose events from the underlying store are still to be dropped.
+    private final Map<K, Object> unechoed = new ConcurrentHashMap<>();
+    private volatile boolean closed = false;
+
+    public WriteBehindKeyValueStore(@NotNull RequestContext context, @NotNull Asset asset, @NotNull KeyValueStore<K, MV, V> kvStore) {
+        this(context, asset, kvStore, false);
+    }
+
+    /**
+     * @param publish whether this store notifies the subscribers of the writes, rather than a store above it.
+     */
+    public WriteBehindKeyValueStore(@NotNull RequestContext context, @NotNull Asset asset, @NotNull KeyValueStore<K, MV, V> kvStore, boolean publish) {
+        super(context, asset, kvStore);
+        this.writeBehindMillis = context.writeBehindMillis();
+        long size = context.writeBehindSize();
+        this.maxPending = size > 0 ? (int) Math.min(Integer.MAX_VALUE, size) : DEFAULT_WRITE_BEHIND_SIZE;
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+        if (publish) {
+            subscriptions = new VanillaKVSSubscription<>((Class) null, asset);
+            subscriptions.setKvStore(this);
+            underlyingSubscription(true).registerDownstream(new EventConsumer<K, V>() {
+                @Override
+                public void notifyEvent(MapEvent<K, V> changeEvent) {
+                    if (!isEcho(changeEvent))
+                        subscriptions.notifyEvent(changeEvent);
+                }
+
+                @Override
+                public void notifyEvents(Collection<MapEvent<K, V>> changeEvents) {
+                    List<MapEvent<K, V>> events = new ArrayList<>(changeEvents.size());
+                    for (MapEvent<K, V> changeEvent : changeEvents)
+                        if (!isEcho(changeEvent))
+                            events.add(changeEvent);
+                    if (!events.isEmpty())
+                        subscriptions.notifyEvents(events);
+                }
+            });
+        } else {
+            subscriptions = null;
+        }
+        flusher = new Thread(this::flushPeriodically, asset.fullName() + "-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void flushPeriodically() {
+        while (!closed) {
+            try {
+                synchronized (space) {
+                    space.wait(writeBehindMillis);
+                }
+                flush();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                LOGGER.warn("Failed to write to " + asset.fullName(), e);
+            }
+        }
+    }
+
+    /**
+     * Write everything pending to the underlying store.
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            if (pending.isEmpty())
+                return;
+            Map<K, Object> batch = new LinkedHashMap<>(pending);
+            Map<K, V> puts = new LinkedHashMap<>();
+            List<K> removes = new ArrayList<>();
+            batch.forEach((k, v) -> {
+                if (v == REMOVED) {
+                    // a key never flushed has nothing to remove, nor an event to drop.
+                    if (kvStore.containsKey(k))
+                        removes.add(k);
+                } else {
+                    puts.put(k, (V) v);
+                }
+            });
+            if (subscriptions != null) {
+                // before writing, as the underlying store may notify as it writes.
+                unechoed.putAll(puts);
+                removes.forEach(k -> unechoed.put(k, REMOVED));
+            }
+            try {
+                if (!puts.isEmpty())
+                    kvStore.putAll(puts);
+                if (!removes.isEmpty())
+                    kvStore.removeAll(removes);
+            } catch (RuntimeException e) {
+                // what wasn't written is still pending, so is written by the next attempt.
+                batch.forEach(unechoed::remove);
+                throw e;
+            }
+            // unless written again in the meantime.
+            batch.forEach(pending::remove);
+            synchronized (space) {
+                // wake any writers waiting for space.
+                space.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return whether the event is the underlying store's for a write this store has already notified.
+     */
+    private boolean isEcho(@NotNull MapEvent<K, V> event) {
+        K key = event.key();
+        Object expected = unechoed.get(key);
+        if (expected == null)
+            return false;
+        boolean echo = expected == REMOVED
+                ? event instanceof RemovedEvent
+                : !(event instanceof RemovedEvent) && equal(expected, event.value());
+        return echo && unechoed.remove(key, expected);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a instanceof BytesStore && b instanceof BytesStore
+                ? BytesUtil.contentEqual((BytesStore) a, (BytesStore) b)
+                : Objects.equals(a, b);
+    }
+
+    private int stripe(@NotNull K key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Wait while too many keys are pending, unless this key is one of them.
+     */
+    private void awaitSpace(K key) {
+        if (closed) throw new IllegalStateException("closed");
+        while (pending.size() >= maxPending && !pending.containsKey(key)) {
+            synchronized (space) {
+                // wake the flusher and wait for it to write the batch.
+                space.notifyAll();
+                try {
+                    space.wait(writeBehindMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a write replacing old, the value or PRESENT it replaces. Called holding the key's lock.
+     */
+    private void stage(K key, int stripe, @Nullable Object old, @Nullable V value) {
+        versions.incrementAndGet(stripe);
+        Object staged = value;
+        // a value in a thread local buffer would be overwritten before it is flushed.
+        if (staged instanceof BytesStore)
+            staged = ((BytesStore) staged).copy();
+        pending.put(key, staged == null ? REMOVED : staged);
+        if (subscriptions == null)
+            return;
+        V oldValue = old == PRESENT ? null : (V) old;
+        if (staged == null) {
+            if (old != null)
+                subscriptions.notifyEvent(RemovedEvent.of(asset.fullName(), key, oldValue));
+        } else if (old == null) {
+            subscriptions.notifyEvent(InsertedEvent.of(asset.fullName(), key, (V) staged));
+        } else {
+            subscriptions.notifyEvent(UpdatedEvent.of(asset.fullName(), key, oldValue, (V) staged));
+        }
+    }
+
+    /**
+     * Apply a change to the current value of a key. The change is passed the pending value, or
+     * if there is none that of the underlying store, read without holding the lock and read
+     * again if the key was written in the meantime.
+     *
+     * @param needsValue whether the value is needed, otherwise PRESENT is passed if there is one.
+     */
+    private <R> R update(K key, boolean needsValue, @NotNull BiFunction<Integer, Object, R> change) {
+        awaitSpace(key);
+        int stripe = stripe(key);
+        // the events published need the value replaced.
+        boolean readValue = needsValue || (subscriptions != null && subscriptions.needsPrevious());
+        for (; ; ) {
+            long version = versions.get(stripe);
+            Object v = pending.get(key);
+            Object old;
+            if (v != null) {
+                old = v == REMOVED ? null : v;
+            } else if (readValue) {
+                old = kvStore.get(key);
+                // the underlying store may read in to a thread local buffer.
+                if (old instanceof BytesStore)
+                    old = ((BytesStore) old).copy();
+            } else {
+                old = kvStore.containsKey(key) ? PRESENT : null;
+            }
+            synchronized (locks[stripe]) {
+                if (versions.get(stripe) == version)
+                    return change.apply(stripe, old);
+            }
+        }
+    }
+
+    @Override
+    public KVSSubscription<K, MV, V> subscription(boolean createIfAbsent) {
+        return subscriptions != null ? subscriptions : underlyingSubscription(createIfAbsent);
+    }
+
+    private KVSSubscription<K, MV, V> underlyingSubscription(boolean createIfAbsent) {
+        // events are published by the underlying store as the writes are flushed.
+        return kvStore instanceof SubscriptionKeyValueStore
+                ? ((SubscriptionKeyValueStore<K, MV, V>) kvStore).subscription(createIfAbsent)
+                : (KVSSubscription<K, MV, V>) asset.subscription(createIfAbsent);
+    }
+
+    @Nullable
+    @Override
+    public V getUsing(K key, MV value) {
+        Object v = pending.get(key);
+        if (v != null)
+            return v == REMOVED ? null : (V) v;
+        return kvStore.getUsing(key, value);
+    }
+
+    @Override
+    public V get(K key) {
+        return getUsing(key, null);
+    }
+
+    @Override
+    public boolean containsKey(K key) {
+        Object v = pending.get(key);
+        if (v != null)
+            return v != REMOVED;
+        return kvStore.containsKey(key);
+    }
+
+    @Override
+    public Map<K, V> getAll(Collection<? extends K> keys) {
+        Map<K, V> result = new LinkedHashMap<>();
+        for (K key : keys) {
+            V v = get(key);
+            if (v != null)
+                result.put(key, v);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean put(K key, V value) {
+        return update(key, false, (stripe, old) -> {
+            stage(key, stripe, old, value);
+            return old != null;
+        });
+    }
+
+    @Override
+    public V getAndPut(K key, V value) {
+        return update(key, true, (stripe, old) -> {
+            stage(key, stripe, old, value);
+            return (V) old;
+        });
+    }
+
+    @Override
+    public boolean remove(K key) {
+        return update(key, false, (stripe, old) -> {
+            if (old == null)
+                return false;
+            stage(key, stripe, old, null);
+            return true;
+        });
+    }
+
+    @Override
+    public V getAndRemove(K key) {
+        return update(key, true, (stripe, old) -> {
+            if (old != null)
+                stage(key, stripe, old, null);
+            return (V) old;
+        });
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        return update(key, true, (stripe, old) -> {
+            if (old != null)
+                stage(key, stripe, old, value);
+            return (V) old;
+        });
+    }
+
+    @Override
+    public boolean replaceIfEqual(K key, V oldValue, V newValue) {
+        return update(key, true, (stripe, old) -> {
+            if (!equal(old, oldValue))
+                return false;
+            stage(key, stripe, old, newValue);
+            return true;
+        });
+    }
+
+    @Override
+    public boolean removeIfEqual(K key, V value) {
+        return update(key, true, (stripe, old) -> {
+            if (!equal(old, value))
+                return false;
+            stage(key, stripe, old, null);
+            return true;
+        });
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return update(key, true, (stripe, old) -> {
+            if (old == null)
+                stage(key, stripe, null, value);
+            return (V) old;
+        });
+    }
+
+    @Override
+    public V compute(K key, SerializableFunction<V, V> function) {
+        return update(key, true, (stripe, old) -> {
+            V value = function.apply((V) old);
+            if (value != null || old != null)
+                stage(key, stripe, old, value);
+            return value;
+        });
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<V, V, V> function) {
+        return compute(key, v -> v == null ? value : function.apply(v, value));
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> entries) {
+        if (subscriptions != null) {
+            // each event needs to know whether the key is replaced.
+            entries.forEach(this::put);
+            return;
+        }
+        for (Map.Entry<? extends K, ? extends V> entry : entries.entrySet()) {
+            K key = entry.getKey();
+            awaitSpace(key);
+            int stripe = stripe(key);
+            synchronized (locks[stripe]) {
+                stage(key, stripe, null, entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<? extends K> keys) {
+        for (K key : keys)
+            remove(key);
+    }
+
+    @Override
+    public long longSize() {
+        flush();
+        return kvStore.longSize();
+    }
+
+    @Override
+    public void keysFor(int segment, SubscriptionConsumer<K> kConsumer) throws InvalidSubscriberException {
+        flush();
+        kvStore.keysFor(segment, kConsumer);
+    }
+
+    @Override
+    public void entriesFor(int segment, SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        flush();
+        kvStore.entriesFor(segment, kvConsumer);
+    }
+
+    @Override
+    public void entriesForTransient(int segment, SubscriptionConsumer<MapEvent<K, V>> kvConsumer) throws InvalidSubscriberException {
+        flush();
+        kvStore.entriesForTransient(segment, kvConsumer);
+    }
+
+    @Override
+    public Iterator<Map.Entry<K, V>> entrySetIterator() {
+        flush();
+        return kvStore.entrySetIterator();
+    }
+
+    @Override
+    public Spliterator<Map.Entry<K, V>> entrySetSpliterator() {
+        flush();
+        return kvStore.entrySetSpliterator();
+    }
+
+    @Override
+    public Iterator<K> keySetIterator() {
+        flush();
+        return kvStore.keySetIterator();
+    }
+
+    @Override
+    public boolean containsValue(MV value) {
+        flush();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public void clear() {
+        synchronized (flushLock) {
+            pending.clear();
+            synchronized (space) {
+                space.notifyAll();
+            }
+            kvStore.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // wake rather than interrupt the flusher, as an interrupt can close a file being written.
+        synchronized (space) {
+            space.notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+        kvStore.close();
+    }
+}
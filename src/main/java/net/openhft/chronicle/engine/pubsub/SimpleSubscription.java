@@ -23,13 +23,12 @@ import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Created by peter on 29/05/15.
  */
 public class SimpleSubscription<E> implements Subscription<E> {
-    private final Set<Subscriber<E>> subscribers = new CopyOnWriteArraySet<>();
+    private final Set<Subscriber<E>> subscribers = new SubscriberSet<>();
     private final Reference<E> currentValue;
     private final ValueReader<Object, E> valueReader;
 
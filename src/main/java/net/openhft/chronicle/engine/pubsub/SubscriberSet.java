@@ -0,0 +1,158 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.pubsub;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * A set of subscribers for many threads notifying and few changing it, as a replacement for
+ * CopyOnWriteArraySet which copies every subscriber on each add and remove.
+ * <p>
+ * Subscribers are held in chunks of {@link #CHUNK_SIZE}. An add writes to a slot past the end of
+ * every snapshot so it needn't copy anything, and a remove moves the last subscriber into the gap
+ * copying only the one or two chunks changed and the array of chunks. Readers iterate over an
+ * immutable snapshot, without locking or allocating. The order of subscribers isn't kept after a remove.
+ */
+public class SubscriberSet<S> extends AbstractSet<S> {
+    static final int CHUNK_SIZE = 32;
+    private static final Snapshot EMPTY = new Snapshot(new Object[0][], 0);
+
+    // the index of each subscriber in the snapshot, only changed holding the lock.
+    private final Map<Object, Integer> positions = new ConcurrentHashMap<>();
+    private volatile Snapshot snapshot = EMPTY;
+
+    @Override
+    public synchronized boolean add(@NotNull S subscriber) {
+        if (positions.containsKey(subscriber))
+            return false;
+        Snapshot snap = snapshot;
+        int index = snap.size;
+        Object[][] chunks = snap.chunks;
+        int c = index / CHUNK_SIZE;
+        // slots from index on aren't read by any snapshot sharing these arrays, so they can be written in place.
+        if (c == chunks.length)
+            chunks = Arrays.copyOf(chunks, Math.max(4, chunks.length * 2));
+        if (chunks[c] == null)
+            chunks[c] = new Object[CHUNK_SIZE];
+        chunks[c][index % CHUNK_SIZE] = subscriber;
+        positions.put(subscriber, index);
+        snapshot = new Snapshot(chunks, index + 1);
+        return true;
+    }
+
+    @Override
+    public synchronized boolean remove(Object subscriber) {
+        Integer pos = positions.remove(subscriber);
+        if (pos == null)
+            return false;
+        Snapshot snap = snapshot;
+        int last = snap.size - 1;
+        Object[][] chunks = snap.chunks.clone();
+        int lc = last / CHUNK_SIZE;
+        Object[] lastChunk = chunks[lc] = chunks[lc].clone();
+        if (pos != last) {
+            Object moved = lastChunk[last % CHUNK_SIZE];
+            int pc = pos / CHUNK_SIZE;
+            Object[] chunk = pc == lc ? lastChunk : (chunks[pc] = chunks[pc].clone());
+            chunk[pos % CHUNK_SIZE] = moved;
+            positions.put(moved, pos);
+        }
+        lastChunk[last % CHUNK_SIZE] = null;
+        snapshot = new Snapshot(chunks, last);
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object subscriber) {
+        return positions.containsKey(subscriber);
+    }
+
+    @Override
+    public synchronized void clear() {
+        positions.clear();
+        snapshot = EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return snapshot.size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return snapshot.size == 0;
+    }
+
+    @Override
+    public void forEach(@NotNull Consumer<? super S> action) {
+        Snapshot snap = snapshot;
+        Object[][] chunks = snap.chunks;
+        int size = snap.size;
+        for (int c = 0, start = 0; start < size; c++, start += CHUNK_SIZE) {
+            Object[] chunk = chunks[c];
+            int end = Math.min(CHUNK_SIZE, size - start);
+            for (int i = 0; i < end; i++)
+                action.accept((S) chunk[i]);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<S> iterator() {
+        Snapshot snap = snapshot;
+        return new Iterator<S>() {
+            int index = 0;
+            S lastReturned;
+
+            @Override
+            public boolean hasNext() {
+                return index < snap.size;
+            }
+
+            @Override
+            public S next() {
+                if (index >= snap.size)
+                    throw new NoSuchElementException();
+                lastReturned = (S) snap.chunks[index / CHUNK_SIZE][index % CHUNK_SIZE];
+                index++;
+                return lastReturned;
+            }
+
+            @Override
+            public void remove() {
+                if (lastReturned == null)
+                    throw new IllegalStateException();
+                SubscriberSet.this.remove(lastReturned);
+                lastReturned = null;
+            }
+        };
+    }
+
+    static final class Snapshot {
+        final Object[][] chunks;
+        final int size;
+
+        Snapshot(Object[][] chunks, int size) {
+            this.chunks = chunks;
+            this.size = size;
+        }
+    }
+}
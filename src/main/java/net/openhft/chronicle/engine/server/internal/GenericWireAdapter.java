@@ -16,6 +16,8 @@
 
 package net.openhft.chronicle.engine.server.internal;
 
+import net.openhft.chronicle.engine.map.FieldMarshaller;
+import net.openhft.chronicle.wire.Marshallable;
 import net.openhft.chronicle.wire.ValueIn;
 import net.openhft.chronicle.wire.ValueOut;
 import org.jetbrains.annotations.NotNull;
@@ -38,13 +40,13 @@ class GenericWireAdapter<K, V> implements WireAdapter<K, V> {
 
     GenericWireAdapter(@NotNull final Class<K> kClass, @NotNull final Class<V> vClass) {
 
-        wireToKey = (valueIn) -> valueIn.object(kClass);
-        wireToValue = in -> in.object(vClass);
+        wireToKey = reader(kClass);
+        wireToValue = reader(vClass);
 
         wireToEntry = valueIn -> valueIn.applyToMarshallable(x -> {
 
-            final K key = x.read(() -> "key").object(kClass);
-            final V value = x.read(() -> "value").object(vClass);
+            final K key = wireToKey.apply(x.read(() -> "key"));
+            final V value = wireToValue.apply(x.read(() -> "value"));
 
             return new Entry<K, V>() {
                 @Nullable
@@ -68,6 +70,24 @@ class GenericWireAdapter<K, V> implements WireAdapter<K, V> {
         });
     }
 
+    /**
+     * Marshallable types are created by a cached factory and read in to, rather than looked up and
+     * constructed reflectively for every value.
+     */
+    @NotNull
+    static <T> Function<ValueIn, T> reader(@NotNull Class<T> tClass) {
+        if (!Marshallable.class.isAssignableFrom(tClass))
+            return in -> in.object(tClass);
+        FieldMarshaller<T> marshaller = FieldMarshaller.of(tClass);
+        if (!marshaller.canCreateInstances())
+            return in -> in.object(tClass);
+        return in -> {
+            T t = marshaller.newInstance();
+            in.marshallable((Marshallable) t);
+            return t;
+        };
+    }
+
     private final BiConsumer<ValueOut, Entry<K, V>> entryToWire
             = (v, e) -> v.marshallable(w -> w.write(() -> "key").object(e.getKey())
             .write(() -> "value").object(e.getValue()));
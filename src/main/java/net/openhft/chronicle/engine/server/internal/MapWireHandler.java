@@ -22,6 +22,7 @@ package net.openhft.chronicle.engine.server.internal;
 
 import net.openhft.chronicle.core.pool.StringBuilderPool;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.map.SecondaryIndex;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
 import net.openhft.chronicle.engine.map.RemoteKeyValueStore;
 import net.openhft.chronicle.map.ChronicleMap;
@@ -33,8 +34,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.StreamCorruptedException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
@@ -59,6 +59,7 @@ public class MapWireHandler<K, V> extends AbstractHandler {
     private final Map<String, Long> cspToCid = new HashMap<>();
     private final AtomicLong cid = new AtomicLong();
 
+    private BiConsumer<ValueOut, K> kToWire;
     private BiConsumer<ValueOut, V> vToWire;
     private Function<ValueIn, K> wireToK;
     private Function<ValueIn, V> wireToV;
@@ -110,13 +111,19 @@ public class MapWireHandler<K, V> extends AbstractHandler {
                     }
 
                     if (putAll.contentEquals(eventName)) {
+                        final Map<K, V> entries = new LinkedHashMap<>();
                         valueIn.sequence(v -> {
                             while (v.hasNextSequenceItem()) {
-                                valueIn.marshallable(wire -> map.put(
-                                        wireToK.apply(wire.read(put.params()[0])),
-                                        wireToV.apply(wire.read(put.params()[1]))));
+                                v.marshallable(wire -> {
+                                    final K key = wireToK.apply(wire.read(put.params()[0]));
+                                    final V value = wireToV.apply(wire.read(put.params()[1]));
+                                    nullCheck(key);
+                                    nullCheck(value);
+                                    entries.put(key, value);
+                                });
                             }
                         });
+                        map.putAll(entries);
                         return;
                     }
 
@@ -256,6 +263,35 @@ public class MapWireHandler<K, V> extends AbstractHandler {
                         });
                     }
 
+                    if (keysForIndex.contentEquals(eventName)) {
+                        valueIn.marshallable(wire -> {
+                            final Params[] params = keysForIndex.params();
+                            final String name = wire.read(params[0]).text();
+                            final Object value = wire.read(params[1]).object(Object.class);
+                            final SecondaryIndex<K, V> index = secondaryIndex(name);
+                            writeKeys(index == null ? Collections.emptySet() : index.keysFor(name, value));
+                        });
+                        return;
+                    }
+
+                    if (keysBetweenIndex.contentEquals(eventName)) {
+                        valueIn.marshallable(wire -> {
+                            final Params[] params = keysBetweenIndex.params();
+                            final String name = wire.read(params[0]).text();
+                            final Comparable fromValue = (Comparable) wire.read(params[1]).object(Object.class);
+                            final Comparable toValue = (Comparable) wire.read(params[2]).object(Object.class);
+                            final SecondaryIndex<K, V> index = secondaryIndex(name);
+                            writeKeys(index == null ? Collections.emptySet() : index.keysBetween(name, fromValue, toValue));
+                        });
+                        return;
+                    }
+
+                    if (hasIndex.contentEquals(eventName)) {
+                        final String name = valueIn.text();
+                        outWire.writeEventName(reply).bool(secondaryIndex(name) != null);
+                        return;
+                    }
+
                     if (hashCode.contentEquals(eventName)) {
                         outWire.writeEventName(reply).int32(map.hashCode());
                         return;
@@ -285,6 +321,16 @@ public class MapWireHandler<K, V> extends AbstractHandler {
 
 
 
+    @Nullable
+    private SecondaryIndex<K, V> secondaryIndex(String name) {
+        final SecondaryIndex<K, V> index = map.asset().getView(SecondaryIndex.class);
+        return index != null && index.hasIndex(name) ? index : null;
+    }
+
+    private void writeKeys(@NotNull Set<K> keys) {
+        outWire.writeEventName(reply).sequence(v -> keys.forEach(k -> kToWire.accept(v, k)));
+    }
+
     /**
      * @param in             the data the has come in from network
      * @param out            the data that is going out to network
@@ -301,6 +347,7 @@ public class MapWireHandler<K, V> extends AbstractHandler {
                         @NotNull final WireAdapter<K, V> wireAdapter,
                         @NotNull final RequestContext requestContext) throws
             StreamCorruptedException {
+        this.kToWire = wireAdapter.keyToWire();
         this.vToWire = wireAdapter.valueToWire();
         this.wireToK = wireAdapter.wireToKey();
         this.wireToV = wireAdapter.wireToValue();
@@ -376,7 +423,11 @@ public class MapWireHandler<K, V> extends AbstractHandler {
         newValue,
         timestamp,
         identifier,
-        entry
+        entry,
+        indexName,
+        fieldValue,
+        from,
+        to
     }
 
     public enum EventId implements ParameterizeWireKey {
@@ -410,7 +461,10 @@ public class MapWireHandler<K, V> extends AbstractHandler {
         subscribe,
         unSubscribe,
         replicationEvent,
-        bootstap;
+        bootstap,
+        keysForIndex(indexName, fieldValue),
+        keysBetweenIndex(indexName, from, to),
+        hasIndex(indexName);
 
         private final WireKey[] params;
 
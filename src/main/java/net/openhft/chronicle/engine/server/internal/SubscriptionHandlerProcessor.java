@@ -1,5 +1,6 @@
 package net.openhft.chronicle.engine.server.internal;
 
+import net.openhft.chronicle.engine.api.map.MapEvent;
 import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 import net.openhft.chronicle.engine.api.pubsub.Subscriber;
 import net.openhft.chronicle.engine.api.pubsub.TopicSubscriber;
@@ -12,6 +13,9 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -47,20 +51,15 @@ public class SubscriptionHandlerProcessor extends AbstractHandler {
 
             if (registerTopicSubscriber.contentEquals(eventName)) {
 
+                final Conflater conflater = requestContext.conflate() ? new Conflater() : null;
                 final TopicSubscriber listener = new TopicSubscriber() {
 
                     @Override
                     public void onMessage(final Object topic, final Object message) throws InvalidSubscriberException {
-
-                        publisher.add(publish -> {
-                            publish.writeDocument(true, wire -> wire.writeEventName(tid).int64
-                                    (inputTid));
-                            publish.writeNotReadyDocument(false, wire -> wire.write(reply)
-                                    .marshallable(m -> {
-                                        m.write(() -> "topic").object(topic);
-                                        m.write(() -> "message").object(message);
-                                    }));
-                        });
+                        if (conflater == null)
+                            publisher.add(publish -> publishTopic(publish, inputTid, topic, message));
+                        else if (conflater.offer(topic, message))
+                            publisher.add(publish -> publishTopic(publish, inputTid, topic, conflater.take(topic)));
                     }
 
                     public void onEndOfSubscription() {
@@ -79,7 +78,7 @@ public class SubscriptionHandlerProcessor extends AbstractHandler {
                     final Class vClass = m.read(() -> "valueType").typeLiteral();
 
                     tidToListener.put(inputTid, listener);
-                    assetTree.registerTopicSubscriber(requestContext.name(), kClass, vClass, listener);
+                    assetTree.registerTopicSubscriber(subscriptionName(), kClass, vClass, listener);
                 });
                 return;
             }
@@ -104,14 +103,19 @@ public class SubscriptionHandlerProcessor extends AbstractHandler {
 
             if (subscribe.contentEquals(eventName)) {
                 Class eventClass = valueIn.typeLiteral();
+                final Conflater conflater = requestContext.conflate() ? new Conflater() : null;
                 Subscriber<Object> listener = e -> {
-                    publisher.add(publish -> {
-                        publish.writeDocument(true, wire -> wire.writeEventName(CoreFields.tid).int64(inputTid));
-                        publish.writeNotReadyDocument(false, wire -> wire.write(reply).object(e));
-                    });
+                    if (conflater == null) {
+                        publisher.add(publish -> publishEvent(publish, inputTid, e));
+                        return;
+                    }
+                    // other events are only conflated when they are equal
+                    Object key = e instanceof MapEvent ? ((MapEvent) e).key() : e;
+                    if (conflater.offer(key, e))
+                        publisher.add(publish -> publishEvent(publish, inputTid, conflater.take(key)));
                 };
                 tidToListener.put(inputTid, listener);
-                assetTree.registerSubscriber(requestContext.name(), eventClass, listener);
+                assetTree.registerSubscriber(subscriptionName(), eventClass, listener);
 
                 return;
             }
@@ -153,6 +157,51 @@ public class SubscriptionHandlerProcessor extends AbstractHandler {
         }
     };
 
+    private static void publishTopic(Wire publish, long inputTid, Object topic, Object message) {
+        publish.writeDocument(true, wire -> wire.writeEventName(tid).int64(inputTid));
+        publish.writeNotReadyDocument(false, wire -> wire.write(reply)
+                .marshallable(m -> {
+                    m.write(() -> "topic").object(topic);
+                    m.write(() -> "message").object(message);
+                }));
+    }
+
+    private static void publishEvent(Wire publish, long inputTid, Object e) {
+        publish.writeDocument(true, wire -> wire.writeEventName(CoreFields.tid).int64(inputTid));
+        publish.writeNotReadyDocument(false, wire -> wire.write(reply).object(e));
+    }
+
+    @NotNull
+    private static String urlEncode(@NotNull String text) {
+        try {
+            return URLEncoder.encode(text, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * The name subscribed to, with the filters requested so events are filtered before they reach
+     * the listener. Conflation is left to the listener's Conflater, which also covers a slow
+     * connection.
+     */
+    private String subscriptionName() {
+        StringBuilder sb = new StringBuilder(requestContext.name());
+        char sep = '?';
+        if (requestContext.keys() != null) {
+            sb.append(sep).append("keys=");
+            String comma = "";
+            for (String key : requestContext.keys()) {
+                sb.append(comma).append(urlEncode(key));
+                comma = ",";
+            }
+            sep = '&';
+        }
+        if (requestContext.keyPattern() != null)
+            sb.append(sep).append("keyPattern=").append(urlEncode(requestContext.keyPattern()));
+        return sb.toString();
+    }
+
     void process(final Wire inWire,
                  final RequestContext requestContext,
                  final Queue<Consumer<Wire>> publisher,
@@ -168,6 +217,27 @@ public class SubscriptionHandlerProcessor extends AbstractHandler {
 
     }
 
+    /**
+     * Holds the latest message for each key until it is written, so the publisher queue holds at
+     * most one write per key for a conflating subscriber however slow the connection is.
+     */
+    static final class Conflater {
+        private final Map<Object, Object> pending = new HashMap<>();
+
+        /**
+         * @return true if nothing was pending for the key, so a write needs to be queued.
+         */
+        synchronized boolean offer(Object key, Object message) {
+            boolean first = !pending.containsKey(key);
+            pending.put(key, message);
+            return first;
+        }
+
+        synchronized Object take(Object key) {
+            return pending.remove(key);
+        }
+    }
+
     public enum EventId implements ParameterizeWireKey {
         unSubscribe,
         subscribe,
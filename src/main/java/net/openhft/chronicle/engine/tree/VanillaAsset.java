@@ -21,6 +21,7 @@ import net.openhft.chronicle.core.util.ThrowingAcceptor;
 import net.openhft.chronicle.engine.api.collection.ValuesCollection;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.map.SecondaryIndex;
 import net.openhft.chronicle.engine.api.map.SubscriptionKeyValueStore;
 import net.openhft.chronicle.engine.api.pubsub.*;
 import net.openhft.chronicle.engine.api.session.SessionProvider;
@@ -28,6 +29,8 @@ import net.openhft.chronicle.engine.api.set.EntrySetView;
 import net.openhft.chronicle.engine.api.set.KeySetView;
 import net.openhft.chronicle.engine.api.tree.*;
 import net.openhft.chronicle.engine.collection.VanillaValuesCollection;
+import net.openhft.chronicle.engine.fs.FileWatcher;
+import net.openhft.chronicle.engine.fs.VanillaFileWatcher;
 import net.openhft.chronicle.engine.map.*;
 import net.openhft.chronicle.engine.pubsub.VanillaReference;
 import net.openhft.chronicle.engine.session.VanillaSessionProvider;
@@ -44,6 +47,7 @@ import java.util.Map;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiPredicate;
 
 import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
@@ -57,6 +61,7 @@ public class VanillaAsset implements Asset, Closeable {
     private static final BiPredicate<RequestContext, Asset> ALWAYS = (rc, asset) -> true;
     final Map<Class, View> viewMap = new ConcurrentSkipListMap<>(CLASS_COMPARATOR);
     final ConcurrentMap<String, Asset> children = new ConcurrentSkipListMap<>();
+    private final AtomicInteger childrenVersion = new AtomicInteger();
     private final Asset parent;
     @NotNull
     private final String name;
@@ -93,10 +98,15 @@ public class VanillaAsset implements Asset, Closeable {
         addWrappingRule(KeySetView.class, LAST + " keySet", VanillaKeySetView::new, MapView.class);
         addWrappingRule(ValuesCollection.class, LAST + " values", VanillaValuesCollection::new, MapView.class);
 
+        addWrappingRule(ObjectKeyValueStore.class, "{Cache} near cache", (rc, asset) -> rc.nearCacheSize() > 0,
+                VanillaAsset::nearCache, AuthenticatedKeyValueStore.class);
         addWrappingRule(MapView.class, LAST + " string key maps", VanillaMapView::new, ObjectKeyValueStore.class);
+        addWrappingRule(SecondaryIndex.class, LAST + " secondary index", VanillaSecondaryIndex::new, ObjectKeyValueStore.class);
 
         addLeafRule(TopologySubscription.class, LAST + " vanilla",
                 VanillaTopologySubscription::new);
+        addLeafRule(FileWatcher.class, LAST + " file watcher", VanillaFileWatcher::new);
+        addLeafRule(SubscriptionDispatcher.class, LAST + " subscription dispatcher", SubscriptionDispatcher::new);
 
         addView(SessionProvider.class, new VanillaSessionProvider());
     }
@@ -105,6 +115,9 @@ public class VanillaAsset implements Asset, Closeable {
         standardStack();
         addWrappingRule(TopicPublisher.class, LAST + " topic publisher", VanillaTopicPublisher::new, MapView.class);
         addWrappingRule(Publisher.class, LAST + "publisher", VanillaReference::new, MapView.class);
+        addWrappingRule(ObjectKeyValueStore.class, "{Extended} expiry, size bound and write behind",
+                (rc, asset) -> rc.ttl() > 0 || rc.maxEntries() > 0 || rc.maxBytes() > 0 || rc.writeBehindMillis() > 0,
+                VanillaAsset::extendedStore, AuthenticatedKeyValueStore.class);
         addWrappingRule(ObjectKeyValueStore.class, LAST + " authenticated",
                 VanillaSubscriptionKeyValueStore::new, AuthenticatedKeyValueStore.class);
 
@@ -116,15 +129,39 @@ public class VanillaAsset implements Asset, Closeable {
                 VanillaKVSSubscription::new);
     }
 
+    @NotNull
+    static ObjectKeyValueStore extendedStore(@NotNull RequestContext rc, @NotNull Asset asset, @NotNull KeyValueStore kvStore) {
+        if (rc.writeBehindMillis() > 0)
+            kvStore = new WriteBehindKeyValueStore<>(rc, asset, kvStore);
+        if (rc.maxEntries() > 0 || rc.maxBytes() > 0)
+            kvStore = new BoundedKeyValueStore<>(rc, asset, kvStore);
+        if (rc.ttl() > 0)
+            kvStore = new ExpiringKeyValueStore<>(rc, asset, kvStore);
+        return new VanillaSubscriptionKeyValueStore(rc, asset, kvStore);
+    }
+
+    /**
+     * Puts the cache in front of the store the next rule would have made.
+     */
+    @NotNull
+    static ObjectKeyValueStore nearCache(@NotNull RequestContext rc, @NotNull Asset asset, @NotNull AuthenticatedKeyValueStore kvStore) {
+        ObjectKeyValueStore store = asset.createWrappingView(ObjectKeyValueStore.class, rc.clone().nearCacheSize(0), asset, kvStore);
+        if (store == null)
+            throw new AssetNotFoundException("Unable to classify " + ObjectKeyValueStore.class.getName() + " context: " + rc);
+        return new NearCacheKeyValueStore<>(rc, asset, store);
+    }
+
     public void forRemoteAccess(String hostname, int port) {
         standardStack();
 
         addLeafRule(ObjectKVSSubscription.class, LAST + " Remote",
                 RemoteKVSSubscription::new);
 
-        addLeafRule(ObjectKeyValueStore.class, LAST + " Remote AKVS",
-                RemoteKeyValueStore::new);
+        addLeafRule(ObjectKeyValueStore.class, LAST + " Remote AKVS", (rc, asset) -> rc.nearCacheSize() > 0
+                ? new NearCacheKeyValueStore<>(rc, asset, new RemoteKeyValueStore<>(rc, asset))
+                : new RemoteKeyValueStore<>(rc, asset));
         addWrappingRule(Publisher.class, LAST + "publisher", RemotePublisher::new, MapView.class);
+        addWrappingRule(SecondaryIndex.class, LAST + " secondary index", RemoteSecondaryIndex::new, ObjectKeyValueStore.class);
         addWrappingRule(TopicPublisher.class, LAST + " topic publisher", RemoteTopicPublisher::new,
                 MapView.class);
 
@@ -202,6 +239,11 @@ public class VanillaAsset implements Asset, Closeable {
         return !children.isEmpty();
     }
 
+    @Override
+    public int childrenVersion() {
+        return childrenVersion.get();
+    }
+
     @Override
     public void forEachChild(ThrowingAcceptor<Asset, InvalidSubscriberException> consumer) throws InvalidSubscriberException {
         for (Asset child : children.values())
@@ -317,9 +359,15 @@ public class VanillaAsset implements Asset, Closeable {
     @Nullable
     protected Asset createAsset(RequestContext context, @NotNull String name) {
         assert name.length() > 0;
-        return children.computeIfAbsent(name, keyedAsset != Boolean.TRUE
+        Asset asset = children.get(name);
+        if (asset != null)
+            return asset;
+        asset = children.computeIfAbsent(name, keyedAsset != Boolean.TRUE
                 ? n -> new VanillaAsset(this, name)
                 : n -> new VanillaSubAsset(context, this, name));
+        // changed after the child is visible so a lookup which missed it is no longer current.
+        childrenVersion.incrementAndGet();
+        return asset;
     }
 
     @Override
@@ -331,6 +379,7 @@ public class VanillaAsset implements Asset, Closeable {
     public void removeChild(String name) {
         Asset removed = children.remove(name);
         if (removed == null) return;
+        childrenVersion.incrementAndGet();
         TopologySubscription topologySubscription = removed.findView(TopologySubscription.class);
         if (topologySubscription != null)
             topologySubscription.notifyEvent(RemovedAssetEvent.of(fullName(), name));
@@ -20,16 +20,16 @@ import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
 import net.openhft.chronicle.engine.api.pubsub.Subscriber;
 import net.openhft.chronicle.engine.api.tree.Asset;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
+import net.openhft.chronicle.engine.pubsub.SubscriberSet;
 
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
 
 /**
  * Created by peter on 11/06/15.
  */
 public class VanillaTopologySubscription implements TopologySubscription {
     private final Asset asset;
-    private final Set<Subscriber<TopologicalEvent>> subscribers = new CopyOnWriteArraySet<>();
+    private final Set<Subscriber<TopologicalEvent>> subscribers = new SubscriberSet<>();
 
     public VanillaTopologySubscription(RequestContext requestContext, Asset asset) {
         this.asset = asset;
@@ -22,9 +22,7 @@ import net.openhft.chronicle.engine.api.pubsub.*;
 import org.junit.Before;
 import org.junit.Test;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 import static net.openhft.chronicle.engine.Chassis.*;
 import static org.junit.Assert.assertEquals;
@@ -92,6 +90,48 @@ public class ChassisRFCTest {
                 "RemovedEvent{assetName='/group-A', key=Key-1, oldValue=Value-2}]", values.toString());
     }
 
+    @Test
+    public void updatesAreASingleEvent() {
+        MapView<String, Integer, Integer> map = acquireMap("counters", String.class, Integer.class);
+
+        List<MapEvent> values = new ArrayList<>();
+        Subscriber<MapEvent> subscriber = values::add;
+        registerSubscriber("counters?view=map&bootstrap=false", MapEvent.class, subscriber);
+
+        map.asyncUpdate("count", v -> v == null ? 1 : v + 1);
+        assertEquals((Integer) 3, map.syncUpdate("count", v -> v + 1, v -> v + 1));
+        assertEquals((Integer) 4, map.merge("count", 2, Integer::sum));
+        map.compute("count", (k, v) -> null);
+
+        assertEquals("[InsertedEvent{assetName='/counters', key=count, value=1}, " +
+                "UpdatedEvent{assetName='/counters', key=count, oldValue=1, value=2}, " +
+                "UpdatedEvent{assetName='/counters', key=count, oldValue=2, value=4}, " +
+                "RemovedEvent{assetName='/counters', key=count, oldValue=4}]", values.toString());
+    }
+
+    @Test
+    public void bulkOperations() {
+        MapView<String, String, String> map = acquireMap("group-B", String.class, String.class);
+        map.put("Key-1", "Value-1");
+
+        List<MapEvent> values = new ArrayList<>();
+        Subscriber<MapEvent> subscriber = values::add;
+        registerSubscriber("group-B?view=map&bootstrap=false", MapEvent.class, subscriber);
+
+        Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("Key-1", "Value-2");
+        entries.put("Key-2", "Value-1");
+        map.putAll(entries);
+        assertEquals(entries, map.underlying().getAll(Arrays.asList("Key-1", "Key-2", "Key-3")));
+
+        map.underlying().removeAll(Arrays.asList("Key-1", "Key-3"));
+        assertEquals(1, map.size());
+
+        assertEquals("[UpdatedEvent{assetName='/group-B', key=Key-1, oldValue=Value-1, value=Value-2}, " +
+                "InsertedEvent{assetName='/group-B', key=Key-2, value=Value-1}, " +
+                "RemovedEvent{assetName='/group-B', key=Key-1, oldValue=Value-2}]", values.toString());
+    }
+
     @Test
     public void publishToATopic() {
         Map<String, String> map = acquireMap("group", String.class, String.class);
@@ -17,9 +17,13 @@
 package net.openhft.chronicle.engine;
 
 import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import net.openhft.chronicle.bytes.BytesUtil;
 import net.openhft.chronicle.core.OS;
 import net.openhft.chronicle.engine.api.map.KeyValueStore;
 import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.pubsub.Subscriber;
+import net.openhft.chronicle.engine.api.tree.Asset;
 import net.openhft.chronicle.engine.map.AuthenticatedKeyValueStore;
 import net.openhft.chronicle.engine.map.FilePerKeyValueStore;
 import net.openhft.chronicle.engine.map.VanillaMapView;
@@ -31,16 +35,21 @@ import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 
 import static net.openhft.chronicle.core.Jvm.pause;
 import static net.openhft.chronicle.engine.Chassis.*;
-import static org.junit.Assert.assertEquals;
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
+import static org.junit.Assert.*;
 
 /**
  * JUnit test class to support
@@ -96,6 +105,173 @@ public class FilePerKeyValueStoreTest {
         assertEquals(3, events.size());
     }
 
+    @Test
+    public void sizeAndKeysAreIndexed() {
+        map.clear();
+        map.put("indexA", "One");
+        map.put("indexB", "Two");
+        assertEquals(2, map.size());
+        assertTrue(map.containsKey("indexA"));
+
+        map.remove("indexA");
+        assertEquals(1, map.size());
+        assertFalse(map.containsKey("indexA"));
+        map.remove("indexB");
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void entriesAreIteratedFromTheUnderlyingStore() {
+        map.clear();
+        map.put("iterA", "One");
+        map.put("iterB", "Two");
+        Map<String, String> copy = new TreeMap<>();
+        for (Iterator<Map.Entry<String, String>> it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, String> e = it.next();
+            copy.put(e.getKey(), e.getValue());
+            if (e.getKey().equals("iterA"))
+                it.remove();
+        }
+        assertEquals("{iterA=One, iterB=Two}", copy.toString());
+        assertEquals(1, map.size());
+        assertEquals("Two", map.get("iterB"));
+        map.remove("iterB");
+    }
+
+    @Test
+    public void conditionalUpdatesUseTheFileStore() {
+        ConcurrentMap<String, String> cmap = (ConcurrentMap<String, String>) map;
+        map.clear();
+        assertNull(cmap.putIfAbsent("casA", "One"));
+        assertEquals("One", cmap.putIfAbsent("casA", "Two"));
+        assertFalse(cmap.replace("casA", "Two", "Three"));
+        assertTrue(cmap.replace("casA", "One", "Three"));
+        assertEquals("Three", cmap.replace("casA", "Four"));
+        assertNull(cmap.replace("casB", "Four"));
+        assertFalse(cmap.remove("casA", "Three"));
+        assertTrue(cmap.remove("casA", "Four"));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void putAllAndRemoveAllAreTranslated() {
+        map.clear();
+        Map<String, String> entries = new TreeMap<>();
+        for (int i = 0; i < 3; i++)
+            entries.put("bulk" + i, "value" + i);
+        List<String> keys = new ArrayList<>();
+        Subscriber<MapEvent<String, String>> subscriber = e -> keys.add(e.key());
+        registerSubscriber(NAME + "?bootstrap=false", MapEvent.class, (Subscriber) subscriber);
+        try {
+            map.putAll(entries);
+            assertEquals(entries, new TreeMap<>(map));
+            assertTrue(keys.containsAll(entries.keySet()));
+
+            ((VanillaMapView<String, String, String>) map).underlying().removeAll(entries.keySet());
+            assertEquals(0, map.size());
+        } finally {
+            unregisterSubscriber(NAME, (Subscriber) subscriber);
+        }
+    }
+
+    @Test
+    public void writesAreCoalescedUntilFlushed() {
+        String name = "groupcommit";
+        Asset asset = acquireAsset(name, Void.class, null, null);
+        FilePerKeyValueStore store = new FilePerKeyValueStore(
+                requestContext(name).basePath(OS.TARGET).commitDelayMillis(60_000), asset);
+        File file = new File(OS.TARGET + "/" + name, "key");
+        try {
+            store.clear();
+            for (int i = 0; i < 100; i++)
+                store.put("key", Bytes.from("value-" + i));
+            assertFalse(file.exists());
+            assertEquals(1, store.longSize());
+            BytesStore value = store.get("key");
+            assertTrue(BytesUtil.contentEqual(Bytes.from("value-99"), value));
+
+            assertTrue(store.remove("key"));
+            assertNull(store.get("key"));
+            store.put("key", Bytes.from("last"));
+        } finally {
+            store.close();
+        }
+        assertEquals(4, file.length());
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void mappedValuesOutliveUpdates() {
+        String name = "mapped";
+        Asset asset = acquireAsset(name, Void.class, null, null);
+        FilePerKeyValueStore store = new FilePerKeyValueStore(
+                requestContext(name).basePath(OS.TARGET).memoryMapThreshold(16), asset);
+        try {
+            store.clear();
+            Bytes first = Bytes.from("the first value, long enough to be mapped");
+            Bytes second = Bytes.from("the second value, long enough to be mapped");
+            store.put("key", first);
+            BytesStore mapped = store.get("key");
+            assertTrue(BytesUtil.contentEqual(first, mapped));
+            // kept past the update, so reserved.
+            mapped.reserve();
+
+            BytesStore previous = store.getAndPut("key", second);
+            assertTrue(BytesUtil.contentEqual(first, previous));
+            assertTrue(BytesUtil.contentEqual(first, mapped));
+
+            BytesStore removed = store.getAndRemove("key");
+            assertTrue(BytesUtil.contentEqual(second, removed));
+            store.put("key", first);
+            assertTrue(BytesUtil.contentEqual(second, removed));
+            assertTrue(BytesUtil.contentEqual(first, previous));
+            mapped.release();
+            previous.release();
+            removed.release();
+        } finally {
+            store.clear();
+            store.close();
+        }
+    }
+
+    @Test
+    public void putIfAbsentReplacesTheCachedRecord() {
+        String name = "putifabsent";
+        Asset asset = acquireAsset(name, Void.class, null, null);
+        FilePerKeyValueStore store = new FilePerKeyValueStore(requestContext(name).basePath(OS.TARGET), asset);
+        try {
+            store.clear();
+            store.put("key", Bytes.from("first"));
+            assertTrue(BytesUtil.contentEqual(Bytes.from("first"), store.get("key")));
+            assertTrue(store.remove("key"));
+            assertNull(store.putIfAbsent("key", Bytes.from("second")));
+            assertTrue(BytesUtil.contentEqual(Bytes.from("second"), store.get("key")));
+        } finally {
+            store.clear();
+            store.close();
+        }
+    }
+
+    @Test
+    public void filesInHiddenDirectoriesAreNotKeys() throws IOException {
+        String name = "hiddendirs";
+        File dir = new File(OS.TARGET, name);
+        for (String path : new String[]{"sub/visible", "sub/.hidden/file", ".hidden/file"}) {
+            File file = new File(dir, path);
+            assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+            assertTrue(file.isFile() || file.createNewFile());
+        }
+        Asset asset = acquireAsset(name, Void.class, null, null);
+        FilePerKeyValueStore store = new FilePerKeyValueStore(
+                requestContext(name).basePath(OS.TARGET).recurse(true), asset);
+        try {
+            assertEquals(1, store.longSize());
+            assertTrue(store.containsKey("sub" + File.separator + "visible"));
+        } finally {
+            store.close();
+        }
+    }
+
     private void waitFor(List<MapEvent<String, String>> events, int count) throws InterruptedException {
         for (int i = 1; i <= 10; i++) {
             if (events.size() >= count)
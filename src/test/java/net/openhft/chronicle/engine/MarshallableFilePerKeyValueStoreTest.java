@@ -41,7 +41,7 @@ import java.util.function.Function;
 
 import static net.openhft.chronicle.core.Jvm.pause;
 import static net.openhft.chronicle.engine.Chassis.*;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  * JUnit test class to support
@@ -101,6 +101,44 @@ public class MarshallableFilePerKeyValueStoreTest {
         assertEquals(3, events.size());
     }
 
+    @Test
+    public void getUsingReadsInToTheValuePassed() {
+        map.put("testUsing", new TestMarshallable("one", "two",
+                new Nested(Arrays.asList(1.5, 2.5))));
+        KeyValueStore<String, TestMarshallable, TestMarshallable> kvStore = ((VanillaMapView) map).underlying();
+
+        TestMarshallable using = new TestMarshallable();
+        for (int i = 0; i < 3; i++) {
+            assertSame(using, kvStore.getUsing("testUsing", using));
+            assertEquals("one", using.getS1());
+            assertEquals(2.5, using.getNested().getListDouble().get(1), 0);
+        }
+        map.remove("testUsing");
+    }
+
+    @Test(timeout = 10000)
+    public void computeUpdatesAValueWithoutEquals() {
+        map.put("testCompute", new TestMarshallable("a", "b", new Nested(Arrays.asList(1.0))));
+        // the same instance is returned, mutated, which a compare-and-set of decoded values never matches.
+        for (int i = 0; i < 3; i++)
+            map.compute("testCompute", (k, v) -> {
+                v.setS1(v.getS1() + "!");
+                return v;
+            });
+        assertEquals("a!!!", map.get("testCompute").getS1());
+
+        map.merge("testCompute", new TestMarshallable("x", "y", new Nested()), (v1, v2) -> {
+            v1.setS2(v2.getS2());
+            return v1;
+        });
+        assertEquals("y", map.get("testCompute").getS2());
+
+        assertNull(map.compute("testCompute", (k, v) -> null));
+        assertFalse(map.containsKey("testCompute"));
+        assertEquals("new", map.compute("testCompute", (k, v) -> v == null ? new TestMarshallable("new", "", new Nested()) : v).getS1());
+        map.remove("testCompute");
+    }
+
     private void waitFor(List<MapEvent<String, TestMarshallable>> events, int count) throws InterruptedException {
         for (int i = 1; i <= 10; i++) {
             if (events.size() >= count)
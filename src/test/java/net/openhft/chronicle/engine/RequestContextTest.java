@@ -19,6 +19,9 @@ package net.openhft.chronicle.engine;
 import net.openhft.chronicle.engine.api.tree.RequestContext;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
 import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
 import static org.junit.Assert.assertEquals;
 
@@ -50,12 +53,53 @@ public class RequestContextTest {
                 "bootstrap=true,\n" +
                 "averageValueSize=0.0,\n" +
                 "entries=0,\n" +
-                "recurse=null}", rc.toString().replaceAll(", ", ",\n"));
+                "recurse=null,\n" +
+                "memoryMapThreshold=0,\n" +
+                "commitDelayMillis=0,\n" +
+                "fsync=null,\n" +
+                "contentCacheBytes=0,\n" +
+                "nearCacheSize=0,\n" +
+                "nearCacheEviction=null,\n" +
+                "writeBehindMillis=0,\n" +
+                "writeBehindSize=0,\n" +
+                "ttl=0,\n" +
+                "maxEntries=0,\n" +
+                "maxBytes=0,\n" +
+                "eviction=null,\n" +
+                "compression=null,\n" +
+                "compressionThreshold=0,\n" +
+                "marshalFields=false,\n" +
+                "dispatchQueue=0,\n" +
+                "overflow=null,\n" +
+                "conflate=false,\n" +
+                "keys=null,\n" +
+                "keyPattern=null,\n" +
+                "valueFilter=null}", rc.toString().replaceAll(", ", ",\n"));
         assertEquals(Boolean.TRUE, rc.putReturnsNull());
         assertEquals(Boolean.FALSE, rc.removeReturnsNull());
         assertEquals(Boolean.TRUE, rc.bootstrap());
     }
 
+    @Test
+    public void parseMemoryMapThreshold() {
+        RequestContext rc = requestContext("/documents?view=map&memoryMapThreshold=1048576");
+        assertEquals(1 << 20, rc.memoryMapThreshold());
+    }
+
+    @Test
+    public void parseCommitOptions() {
+        RequestContext rc = requestContext("/documents?view=map&commitDelayMillis=20&fsync=true");
+        assertEquals(20, rc.commitDelayMillis());
+        assertEquals(Boolean.TRUE, rc.fsync());
+    }
+
+    @Test
+    public void parseEncodedKeys() {
+        RequestContext rc = requestContext("/prices?keys=EUR%2CUSD,GBP%26USD&keyPattern=EUR%3D*");
+        assertEquals(new LinkedHashSet<>(Arrays.asList("EUR,USD", "GBP&USD")), rc.keys());
+        assertEquals("EUR=*", rc.keyPattern());
+    }
+
     @Test
     public void parseDirectory(){
         String uri = "/grandparent/parent/child/";
@@ -0,0 +1,66 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.fs;
+
+import net.openhft.chronicle.core.Jvm;
+import net.openhft.chronicle.core.OS;
+import net.openhft.chronicle.engine.api.map.KeyValueStore;
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.map.WriteBehindKeyValueStore;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class FilePerKeyGroupFSTest {
+    @Test
+    public void writeBehindNotifiesBeforeTheFlush() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        FilePerKeyGroupFS mount = new FilePerKeyGroupFS();
+        mount.spec = "writebehindfs";
+        mount.name = "/WriteBehind";
+        mount.valueType = String.class;
+        mount.writeBehindMillis = 60_000;
+        mount.install(OS.TARGET, tree);
+
+        MapView<String, String, String> map = tree.acquireMap("/WriteBehind", String.class, String.class);
+        File file = new File(OS.TARGET + "/writebehindfs/WriteBehind", "key");
+        file.delete();
+        List<MapEvent<String, String>> events = new CopyOnWriteArrayList<>();
+        map.registerSubscriber(events::add);
+
+        map.put("key", "value");
+        assertEquals(1, events.size());
+        assertEquals("value", events.get(0).value());
+        assertFalse(file.exists());
+
+        WriteBehindKeyValueStore kvStore = (WriteBehindKeyValueStore) map.asset().getView(KeyValueStore.class);
+        kvStore.flush();
+        assertTrue(file.exists());
+        // the file's own event is dropped, as the write has been notified.
+        Jvm.pause(500);
+        assertEquals(1, events.size());
+        kvStore.close();
+        assertTrue(file.delete());
+    }
+}
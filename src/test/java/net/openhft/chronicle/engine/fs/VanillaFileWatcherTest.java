@@ -0,0 +1,65 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.fs;
+
+import net.openhft.chronicle.core.OS;
+import net.openhft.chronicle.engine.fs.FileWatcher.FileChangeListener;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.openhft.chronicle.core.Jvm.pause;
+import static org.junit.Assert.assertTrue;
+
+public class VanillaFileWatcherTest {
+    @Test
+    public void watchesSubDirectories() throws IOException {
+        Path dir = Paths.get(OS.TARGET, "file-watcher-" + System.nanoTime());
+        Path sub = dir.resolve("sub");
+        Files.createDirectories(sub);
+
+        Map<Path, WatchEvent.Kind<?>> seen = new ConcurrentHashMap<>();
+        try (VanillaFileWatcher watcher = new VanillaFileWatcher("test");
+             Closeable ignored = watcher.register(dir, true, new FileChangeListener() {
+                 @Override
+                 public void onChanges(@NotNull Map<Path, WatchEvent.Kind<?>> changes) {
+                     seen.putAll(changes);
+                 }
+
+                 @Override
+                 public void onOverflow() {
+                 }
+             })) {
+            Path top = dir.resolve("top");
+            Path nested = sub.resolve("nested");
+            Files.write(top, "one".getBytes());
+            Files.write(nested, "two".getBytes());
+            for (int i = 1; i <= 30 && !(seen.containsKey(top) && seen.containsKey(nested)); i++)
+                pause(i * 10);
+            assertTrue(seen.keySet().toString(), seen.containsKey(top));
+            assertTrue(seen.keySet().toString(), seen.containsKey(nested));
+        }
+    }
+}
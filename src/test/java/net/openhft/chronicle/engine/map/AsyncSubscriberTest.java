@@ -0,0 +1,228 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.pubsub.Subscriber;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
+import static org.junit.Assert.*;
+
+public class AsyncSubscriberTest {
+    private final SubscriptionDispatcher dispatcher = new SubscriptionDispatcher("test");
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @After
+    public void closeDispatcher() {
+        dispatcher.close();
+    }
+
+    @Test
+    public void slowSubscriberDoesntBlockWriters() throws InterruptedException {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("prices", String.class, String.class);
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        tree.registerSubscriber("prices?dispatchQueue=100&bootstrap=false", MapEvent.class, (Subscriber<MapEvent>) e -> {
+            await(release);
+            received.add((String) e.value());
+        });
+
+        for (int i = 0; i < 10; i++)
+            map.put("EURUSD", "1.1" + i);
+        assertTrue(received.isEmpty());
+
+        release.countDown();
+        for (int i = 0; i < 10; i++)
+            assertEquals("1.1" + i, received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void conflatingKeepsTheLatestEventPerKey() throws InterruptedException {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("prices", String.class, String.class);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> received = new CopyOnWriteArrayList<>();
+        tree.registerTopicSubscriber("prices?conflate=true&bootstrap=false", String.class, String.class, (k, v) -> {
+            started.countDown();
+            await(release);
+            received.add(k + "=" + v);
+        });
+
+        map.put("a", "1");
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        map.put("a", "2");
+        map.put("b", "1");
+        map.put("a", "3");
+        release.countDown();
+
+        for (int i = 0; i < 100 && received.size() < 3; i++)
+            Thread.sleep(10);
+        List<String> expected = new ArrayList<>();
+        expected.add("a=1");
+        expected.add("a=3");
+        expected.add("b=1");
+        assertEquals(expected, received);
+    }
+
+    @Test
+    public void overflowDropsOrConflates() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> received = new CopyOnWriteArrayList<>();
+        Subscriber<MapEvent<String, String>> slow = e -> {
+            started.countDown();
+            await(release);
+            received.add(e.key() + "=" + e.value());
+        };
+        AsyncSubscriber<String, String> queue = AsyncSubscriber.forEntries(
+                requestContext().dispatchQueue(2).overflow("conflate"), dispatcher, slow, () -> {
+                });
+
+        queue.enqueue(InsertedEvent.of("prices", "a", "1"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.enqueue(InsertedEvent.of("prices", "b", "1"));
+        queue.enqueue(InsertedEvent.of("prices", "c", "1"));
+        // replaces the pending event for c
+        queue.enqueue(InsertedEvent.of("prices", "c", "2"));
+        // drops the oldest, b
+        queue.enqueue(InsertedEvent.of("prices", "d", "1"));
+        assertEquals(2, queue.depth());
+        assertEquals(1, queue.conflated());
+        assertEquals(1, queue.dropped());
+
+        release.countDown();
+        for (int i = 0; i < 100 && queue.delivered() < 3; i++)
+            Thread.sleep(10);
+        List<String> expected = new ArrayList<>();
+        expected.add("a=1");
+        expected.add("c=2");
+        expected.add("d=1");
+        assertEquals(expected, received);
+        assertEquals(3, queue.delivered());
+    }
+
+    @Test
+    public void overflowCanDisconnect() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ended = new CountDownLatch(1);
+        AtomicBoolean disconnected = new AtomicBoolean();
+        Subscriber<MapEvent<String, String>> slow = new Subscriber<MapEvent<String, String>>() {
+            @Override
+            public void onMessage(MapEvent<String, String> e) throws InterruptedException {
+                await(release);
+            }
+
+            @Override
+            public void onEndOfSubscription() {
+                ended.countDown();
+            }
+        };
+        AsyncSubscriber<String, String> queue = AsyncSubscriber.forEntries(
+                requestContext().dispatchQueue(1).overflow("disconnect"), dispatcher, slow, () -> disconnected.set(true));
+
+        for (int i = 0; i < 3; i++)
+            queue.enqueue(InsertedEvent.of("prices", "a", "" + i));
+        assertTrue(disconnected.get());
+        assertTrue(ended.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void queueGrowsToItsCapacity() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Subscriber<MapEvent<String, String>> slow = e -> {
+            started.countDown();
+            await(release);
+        };
+        AsyncSubscriber<String, String> queue = AsyncSubscriber.forEntries(
+                requestContext().dispatchQueue(100), dispatcher, slow, () -> {
+                });
+
+        queue.enqueue(InsertedEvent.of("prices", "a", "0"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 100; i++)
+            queue.enqueue(InsertedEvent.of("prices", "a", "" + i));
+        assertEquals(100, queue.depth());
+        assertEquals(0, queue.dropped());
+        queue.enqueue(InsertedEvent.of("prices", "a", "101"));
+        assertEquals(100, queue.depth());
+        assertEquals(1, queue.dropped());
+        release.countDown();
+    }
+
+    @Test
+    public void dispatcherThreadsDontBlock() throws InterruptedException {
+        AtomicReference<AsyncSubscriber<String, String>> queue = new AtomicReference<>();
+        // a and the last b, the two before it are dropped
+        CountDownLatch received = new CountDownLatch(2);
+        Subscriber<MapEvent<String, String>> echo = e -> {
+            // queues more than fit from the thread which would drain them
+            if (e.key().equals("a"))
+                for (int i = 0; i < 3; i++)
+                    queue.get().enqueue(InsertedEvent.of("prices", "b", "" + i));
+            received.countDown();
+        };
+        queue.set(AsyncSubscriber.forEntries(
+                requestContext().dispatchQueue(1).overflow("block"), dispatcher, echo, () -> {
+                }));
+
+        queue.get().enqueue(InsertedEvent.of("prices", "a", "1"));
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        assertEquals(2, queue.get().dropped());
+    }
+
+    @Test
+    public void bootstrapLargerThanTheQueueIsKept() throws InterruptedException {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("prices", String.class, String.class);
+        for (int i = 0; i < 10; i++)
+            map.put("k" + i, "v" + i);
+
+        CountDownLatch release = new CountDownLatch(1);
+        BlockingQueue<String> received = new LinkedBlockingQueue<>();
+        tree.registerSubscriber("prices?dispatchQueue=2", MapEvent.class, (Subscriber<MapEvent>) e -> {
+            await(release);
+            received.add((String) e.key());
+        });
+        release.countDown();
+
+        for (int i = 0; i < 10; i++)
+            assertNotNull(received.poll(5, TimeUnit.SECONDS));
+        tree.close();
+    }
+}
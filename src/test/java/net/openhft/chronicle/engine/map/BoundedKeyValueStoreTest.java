@@ -0,0 +1,73 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BoundedKeyValueStoreTest {
+    @Test
+    public void leastRecentlyUsedIsEvicted() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("lru?maxEntries=3&eviction=lru", String.class, String.class);
+        List<MapEvent<String, String>> events = new ArrayList<>();
+        map.registerSubscriber(events::add);
+
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        assertEquals("1", map.get("a"));
+        map.put("d", "4");
+
+        assertEquals(3, map.size());
+        assertNull(map.get("b"));
+        assertEquals("1", map.get("a"));
+        assertTrue(events.stream().anyMatch(e -> e instanceof RemovedEvent && e.key().equals("b")));
+    }
+
+    @Test
+    public void popularEntriesSurviveAScan() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("tinylfu?maxEntries=100", String.class, String.class);
+        for (int i = 0; i < 100; i++)
+            map.put("hot-" + i, "value");
+        for (int j = 0; j < 5; j++)
+            for (int i = 0; i < 100; i++)
+                map.get("hot-" + i);
+
+        for (int i = 0; i < 1000; i++)
+            map.put("scan-" + i, "value");
+
+        assertEquals(100, map.size());
+        int hot = 0;
+        for (int i = 0; i < 100; i++)
+            if (map.containsKey("hot-" + i))
+                hot++;
+        assertTrue("hot=" + hot, hot >= 95);
+        BoundedKeyValueStore kvStore = tree.getAsset("tinylfu").getView(BoundedKeyValueStore.class);
+        assertEquals(1000, kvStore.evictions());
+        assertTrue(kvStore.rejections() >= 990);
+    }
+}
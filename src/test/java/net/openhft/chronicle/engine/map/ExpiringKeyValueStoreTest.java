@@ -0,0 +1,142 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExpiringKeyValueStoreTest {
+    @Test
+    public void wheelFiresEachEntryOnceAtItsDeadline() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 0);
+        wheel.schedule("now", 0);
+        wheel.schedule("soon", 25);
+        wheel.schedule("later", 5_000);
+        wheel.schedule("much later", 50_000_000);
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(10, (k, d) -> fired.add(k));
+        assertEquals(Collections.singletonList("now"), fired);
+        wheel.advance(4_990, (k, d) -> fired.add(k));
+        assertEquals(2, fired.size());
+        wheel.advance(5_000, (k, d) -> fired.add(k));
+        assertEquals("later", fired.get(2));
+        wheel.advance(50_000_000, (k, d) -> fired.add(k));
+        assertEquals(4, fired.size());
+        wheel.advance(60_000_000, (k, d) -> fired.add(k));
+        assertEquals(4, fired.size());
+    }
+
+    @Test
+    public void entriesExpireAndNotifySubscribers() throws InterruptedException {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("sessions?ttl=100", String.class, String.class);
+        List<MapEvent<String, String>> events = Collections.synchronizedList(new ArrayList<>());
+        map.registerSubscriber(events::add);
+
+        map.put("a", "1");
+        map.put("b", "2");
+        ExpiringKeyValueStore<String, String, String> kvStore = tree.getAsset("sessions").getView(ExpiringKeyValueStore.class);
+        assertTrue(kvStore.expireAfter("b", 1, TimeUnit.HOURS));
+        assertFalse(kvStore.expireAfter("c", 1, TimeUnit.HOURS));
+
+        for (int i = 0; i < 100 && map.containsKey("a"); i++)
+            Thread.sleep(10);
+        assertNull(map.get("a"));
+        assertEquals("2", map.get("b"));
+        for (int i = 0; i < 100 && events.size() < 3; i++)
+            Thread.sleep(10);
+        assertEquals(3, events.size());
+        assertTrue(events.get(2) instanceof RemovedEvent);
+        assertEquals("a", events.get(2).key());
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void supersededEntriesAreDroppedAsTheyCascade() {
+        Map<String, Long> deadlines = new HashMap<>();
+        TimingWheel<String> wheel = new TimingWheel<>(10, 0, (k, d) -> d.equals(deadlines.get(k)));
+        wheel.schedule("key", 5_000);
+        deadlines.put("key", 6_000L);
+        wheel.schedule("key", 6_000);
+        assertEquals(2, wheel.size());
+
+        List<Long> fired = new ArrayList<>();
+        wheel.advance(5_000, (k, d) -> fired.add(d));
+        assertTrue(fired.isEmpty());
+        assertEquals(1, wheel.size());
+        wheel.advance(6_000, (k, d) -> fired.add(d));
+        assertEquals(Collections.singletonList(6_000L), fired);
+    }
+
+    @Test
+    public void rewritesKeepOneWheelEntryPerKey() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("quotes?ttl=60000", String.class, String.class);
+        ExpiringKeyValueStore<String, String, String> kvStore = tree.getAsset("quotes").getView(ExpiringKeyValueStore.class);
+
+        for (int i = 0; i < 100; i++) {
+            map.put("a", "v" + i);
+            map.put("b", "v" + i);
+        }
+        assertEquals(2, kvStore.wheelSize());
+        // an entry due sooner is added, superseding the one already in the wheel.
+        assertTrue(kvStore.expireAfter("a", 0, TimeUnit.MILLISECONDS));
+        assertFalse(map.containsKey("a"));
+        assertEquals("v99", map.get("b"));
+    }
+
+    @Test
+    public void writesDoNotSeeExpiredEntries() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("tokens?ttl=60000", String.class, String.class);
+        ExpiringKeyValueStore<String, String, String> kvStore = tree.getAsset("tokens").getView(ExpiringKeyValueStore.class);
+
+        map.put("a", "1");
+        kvStore.expireAfter("a", 0, TimeUnit.MILLISECONDS);
+        assertNull(kvStore.putIfAbsent("a", "2"));
+        assertEquals("2", map.get("a"));
+
+        kvStore.expireAfter("a", 0, TimeUnit.MILLISECONDS);
+        assertNull(kvStore.getAndPut("a", "3"));
+
+        kvStore.expireAfter("a", 0, TimeUnit.MILLISECONDS);
+        assertEquals("new", kvStore.compute("a", v -> v == null ? "new" : v + "+"));
+
+        kvStore.expireAfter("a", 0, TimeUnit.MILLISECONDS);
+        assertNull(kvStore.replace("a", "4"));
+        assertFalse(map.containsKey("a"));
+
+        map.put("b", "1");
+        map.put("c", "2");
+        kvStore.expireAfter("b", 0, TimeUnit.MILLISECONDS);
+        assertEquals(Collections.singleton("c"), new HashSet<>(map.keySet()));
+    }
+}
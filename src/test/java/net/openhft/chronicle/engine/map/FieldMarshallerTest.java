@@ -0,0 +1,156 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.wire.Marshallable;
+import net.openhft.chronicle.wire.WireIn;
+import net.openhft.chronicle.wire.WireOut;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FieldMarshallerTest {
+    @Test
+    public void fieldsRoundTrip() {
+        FieldMarshaller<Order> marshaller = FieldMarshaller.of(Order.class);
+        assertTrue(marshaller.canMarshalFields());
+
+        Order order = marshaller.newInstance();
+        order.id = 12345678901L;
+        order.quantity = 100;
+        order.price = 1.25;
+        order.buy = true;
+        order.side = 'B';
+        order.symbol = "EURUSD";
+        order.unit = TimeUnit.SECONDS;
+        order.cache = "not written";
+
+        Bytes bytes = Bytes.elasticByteBuffer();
+        marshaller.writeFields(order, bytes);
+        Order using = new Order();
+        Order read = marshaller.readFields(bytes, using);
+
+        assertSame(using, read);
+        assertEquals(12345678901L, read.id);
+        assertEquals(100, read.quantity);
+        assertEquals(1.25, read.price, 0.0);
+        assertTrue(read.buy);
+        assertEquals('B', read.side);
+        assertEquals("EURUSD", read.symbol);
+        assertEquals(TimeUnit.SECONDS, read.unit);
+        assertNull(read.cache);
+        assertEquals(0, bytes.readRemaining());
+    }
+
+    @Test
+    public void nullsRoundTrip() {
+        FieldMarshaller<Order> marshaller = FieldMarshaller.of(Order.class);
+        Bytes bytes = Bytes.elasticByteBuffer();
+        marshaller.writeFields(new Order(), bytes);
+        Order read = marshaller.readFields(bytes, null);
+        assertNull(read.symbol);
+        assertNull(read.unit);
+    }
+
+    @Test
+    public void unsupportedFieldsFallBack() {
+        FieldMarshaller<Dated> marshaller = FieldMarshaller.of(Dated.class);
+        assertFalse(marshaller.canMarshalFields());
+        assertTrue(marshaller.canCreateInstances());
+        assertNotNull(marshaller.newInstance());
+    }
+
+    @Test
+    public void fieldsAreWrittenByName() {
+        Bytes bytes = Bytes.elasticByteBuffer();
+        Pair pair = new Pair();
+        pair.b = 2;
+        pair.a = 1;
+        FieldMarshaller.of(Pair.class).writeFields(pair, bytes);
+        bytes.readInt();
+        assertEquals(1, bytes.readInt());
+        assertEquals(2, bytes.readInt());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void otherLayoutsAreRejected() {
+        Bytes bytes = Bytes.elasticByteBuffer();
+        FieldMarshaller.of(Pair.class).writeFields(new Pair(), bytes);
+        FieldMarshaller.of(Order.class).readFields(bytes, null);
+    }
+
+    @Test
+    public void ownMarshallingIsNotBypassed() {
+        FieldMarshaller<Custom> marshaller = FieldMarshaller.of(Custom.class);
+        assertFalse(marshaller.canMarshalFields());
+        assertTrue(marshaller.canCreateInstances());
+    }
+
+    @Test
+    public void annotatedMarshallablesMarshalFields() {
+        FieldMarshaller<Annotated> marshaller = FieldMarshaller.of(Annotated.class);
+        assertTrue(marshaller.canMarshalFields());
+
+        Annotated annotated = new Annotated();
+        annotated.value = 42;
+        Bytes bytes = Bytes.elasticByteBuffer();
+        marshaller.writeFields(annotated, bytes);
+        assertEquals(42, marshaller.readFields(bytes, null).value);
+    }
+
+    static class Order {
+        long id;
+        int quantity;
+        double price;
+        boolean buy;
+        char side;
+        String symbol;
+        TimeUnit unit;
+        transient String cache;
+    }
+
+    static class Dated extends Order {
+        Date date;
+    }
+
+    static class Pair {
+        int b;
+        int a;
+    }
+
+    static class Custom implements Marshallable {
+        int value;
+
+        @Override
+        public void readMarshallable(WireIn wire) throws IllegalStateException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void writeMarshallable(WireOut wire) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @MarshalFields
+    static class Annotated extends Custom {
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class FileRecordCacheTest {
+    @Test
+    public void evictsToBudgetButDetectsChanges() {
+        FileRecordCache cache = new FileRecordCache(16);
+        File a = new File("a"), b = new File("b");
+        cache.put(a, new FileRecord<>(1, Bytes.from("0123456789")));
+        cache.put(b, new FileRecord<>(1, Bytes.from("abcdefghij")));
+
+        // a was evicted to keep within 16 bytes.
+        assertEquals(10, cache.bytes());
+        assertNull(cache.get(a));
+        assertNotNull(cache.get(b));
+
+        assertTrue(cache.contains(a));
+        assertTrue(cache.isUnchanged(a, Bytes.from("0123456789")));
+        assertFalse(cache.isUnchanged(a, Bytes.from("0123456780")));
+        assertTrue(cache.isUnchanged(b, Bytes.from("abcdefghij")));
+
+        FileRecord<BytesStore> removed = cache.remove(b);
+        assertNotNull(removed);
+        assertFalse(cache.contains(b));
+        assertEquals(0, cache.bytes());
+    }
+
+    @Test
+    public void recordsReadAreGivenASecondChance() {
+        FileRecordCache cache = new FileRecordCache(25);
+        File a = new File("a"), b = new File("b"), c = new File("c");
+        cache.put(a, new FileRecord<>(1, Bytes.from("0123456789")));
+        cache.put(b, new FileRecord<>(1, Bytes.from("abcdefghij")));
+        assertNotNull(cache.get(a));
+        cache.put(c, new FileRecord<>(1, Bytes.from("ABCDEFGHIJ")));
+
+        assertNotNull(cache.get(a));
+        assertNull(cache.get(b));
+        assertNotNull(cache.get(c));
+        assertEquals(20, cache.bytes());
+    }
+}
@@ -24,6 +24,7 @@ import org.junit.Test;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -50,4 +51,15 @@ public class MapViewTest {
         int hc = keys.hashCode();
         assertEquals(new HashSet<>(keys).hashCode(), hc);
     }
+
+    @Test
+    public void entrySetSpliteratorIsSized() {
+        Map<String, String> map = Chassis.acquireMap("test", String.class, String.class);
+        for (int i = 0; i < 1000; i++)
+            map.put("key-" + i, "value-" + i);
+        Spliterator<Map.Entry<String, String>> spliterator = map.entrySet().spliterator();
+        long estimate = spliterator.estimateSize();
+        assertTrue("estimate " + estimate, estimate > 500 && estimate <= 1000);
+        assertEquals(1000, map.entrySet().parallelStream().count());
+    }
 }
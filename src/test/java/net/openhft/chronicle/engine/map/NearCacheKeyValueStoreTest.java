@@ -0,0 +1,98 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.TestMarshallable;
+import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NearCacheKeyValueStoreTest {
+    @Test
+    public void cachesReadsAndEvictsOnChange() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("quotes?nearCacheSize=2", String.class, String.class);
+        NearCacheKeyValueStore cache = map.asset().getView(NearCacheKeyValueStore.class);
+        assertNotNull(cache);
+
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        assertEquals("1", map.get("a"));
+        assertEquals("1", map.get("a"));
+        assertEquals(1, cache.misses());
+        assertEquals(1, cache.hits());
+
+        // changes are seen, not the cached value.
+        map.put("a", "10");
+        assertEquals("10", map.get("a"));
+
+        map.get("b");
+        map.get("c");
+        assertEquals(2, cache.cacheSize());
+        assertEquals(1, cache.evictions());
+    }
+
+    @Test
+    public void clockKeepsTheEntriesRead() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("prices?nearCacheSize=2&nearCacheEviction=clock",
+                String.class, String.class);
+        NearCacheKeyValueStore cache = map.asset().getView(NearCacheKeyValueStore.class);
+
+        map.put("a", "1");
+        map.put("b", "2");
+        map.put("c", "3");
+        map.get("a");
+        map.get("b");
+        // a is read again so is given a second chance over b.
+        map.get("a");
+        map.get("c");
+        assertEquals(2, cache.cacheSize());
+        assertEquals(1, cache.evictions());
+
+        map.get("a");
+        assertEquals(2, cache.hits());
+    }
+
+    @Test
+    public void getUsingReadsInToTheValuePassed() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, TestMarshallable, TestMarshallable> map =
+                tree.acquireMap("orders?nearCacheSize=10", String.class, TestMarshallable.class);
+        NearCacheKeyValueStore<String, TestMarshallable, TestMarshallable> cache =
+                map.asset().getView(NearCacheKeyValueStore.class);
+        // the cache is in front of the store, not just the map view.
+        assertSame(cache, map.asset().getView(ObjectKeyValueStore.class));
+
+        TestMarshallable order = new TestMarshallable();
+        order.setName(new StringBuilder("one"));
+        order.setCount(1);
+        map.put("o1", order);
+        TestMarshallable cached = map.get("o1");
+
+        TestMarshallable using = new TestMarshallable();
+        assertSame(using, cache.getUsing("o1", using));
+        assertNotSame(cached, using);
+        assertEquals("one", using.getName().toString());
+        assertEquals(1, using.getCount());
+        assertEquals(1, cache.hits());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.pubsub.Subscriber;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.api.tree.RequestContext;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
+import static org.junit.Assert.*;
+
+public class SubscriptionFilterTest {
+    @Test
+    public void keyPatterns() {
+        SubscriptionFilter<String, String> prefix = SubscriptionFilter.of(requestContext().keyPattern("EUR*"));
+        assertTrue(prefix.testKey("EURUSD"));
+        assertFalse(prefix.testKey("GBPEUR"));
+
+        SubscriptionFilter<String, String> glob = SubscriptionFilter.of(requestContext().keyPattern("*/EUR?.csv"));
+        assertTrue(glob.testKey("fx/EURO.csv"));
+        assertFalse(glob.testKey("fx/EUR.csv"));
+        assertFalse(glob.testKey("fx/EURUxcsv"));
+
+        assertNull(SubscriptionFilter.of(requestContext()));
+    }
+
+    @Test
+    public void topicSubscribersOnlySeeTheirKeys() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("prices", String.class, String.class);
+        map.put("EURUSD", "1.10");
+        map.put("GBPUSD", "1.50");
+        map.put("USDJPY", "120.1");
+
+        List<String> received = new ArrayList<>();
+        tree.registerTopicSubscriber("prices?keys=EURUSD,USDJPY", String.class, String.class,
+                (k, v) -> received.add(k + "=" + v));
+        assertEquals("[EURUSD=1.10, USDJPY=120.1]", received.toString());
+
+        map.put("GBPUSD", "1.51");
+        map.put("USDJPY", "120.2");
+        map.remove("EURUSD");
+        assertEquals("[EURUSD=1.10, USDJPY=120.1, USDJPY=120.2, EURUSD=null]", received.toString());
+    }
+
+    @Test
+    public void entrySubscribersCanFilterByValue() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("orders", String.class, String.class);
+        map.put("1", "BUY 100");
+        map.put("2", "SELL 50");
+
+        List<String> received = new ArrayList<>();
+        RequestContext rc = requestContext("orders").type(MapEvent.class)
+                .valueFilter((String v) -> v.startsWith("BUY"));
+        Subscriber<MapEvent<String, String>> subscriber = e -> received.add(e.key() + "=" + e.value());
+        ((KVSSubscription) tree.acquireSubscription(rc)).registerSubscriber(rc, subscriber);
+        assertEquals("[1=BUY 100]", received.toString());
+
+        map.put("3", "SELL 10");
+        map.put("4", "BUY 5");
+        assertEquals("[1=BUY 100, 4=BUY 5]", received.toString());
+
+        ((KVSSubscription) tree.acquireSubscription(rc)).unregisterSubscriber(subscriber);
+        map.put("5", "BUY 1");
+        assertEquals(2, received.size());
+    }
+}
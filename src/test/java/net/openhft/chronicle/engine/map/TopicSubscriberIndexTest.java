@@ -0,0 +1,120 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.api.pubsub.TopicSubscriber;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TopicSubscriberIndexTest {
+    @Test
+    public void eventsOnlyGoToSubscribersForTheirKey() {
+        TopicSubscriberIndex<String, String> index = new TopicSubscriberIndex<>();
+        List<String> all = new ArrayList<>();
+        List<String> eur = new ArrayList<>();
+        List<String> gbp = new ArrayList<>();
+        TopicSubscriber<String, String> allSub = (k, v) -> all.add(k);
+        TopicSubscriber<String, String> eurSub = (k, v) -> eur.add(k);
+        TopicSubscriber<String, String> gbpSub = (k, v) -> gbp.add(k);
+        index.add(allSub, null);
+        index.add(eurSub, Collections.singleton("EURUSD"));
+        index.add(gbpSub, new LinkedHashSet<>(Arrays.asList("GBPUSD", "EURUSD")));
+        assertEquals(3, index.size());
+        assertEquals(2, index.subscribersFor("EURUSD").length);
+        assertEquals(0, index.subscribersFor("USDJPY").length);
+
+        index.notify("EURUSD", "1.1");
+        index.notify("GBPUSD", "1.5");
+        index.notify("USDJPY", "120");
+        assertEquals("[EURUSD, GBPUSD, USDJPY]", all.toString());
+        assertEquals("[EURUSD]", eur.toString());
+        assertEquals("[EURUSD, GBPUSD]", gbp.toString());
+
+        assertTrue(index.remove(gbpSub));
+        assertFalse(index.remove(gbpSub));
+        assertEquals(1, index.subscribersFor("EURUSD").length);
+        assertEquals(0, index.subscribersFor("GBPUSD").length);
+        assertTrue(index.remove(eurSub));
+        assertTrue(index.remove(allSub));
+        assertTrue(index.isEmpty());
+    }
+
+    @Test
+    public void invalidSubscribersAreRemovedAndEnded() {
+        TopicSubscriberIndex<String, String> index = new TopicSubscriberIndex<>();
+        int[] ended = {0};
+        index.add(new TopicSubscriber<String, String>() {
+            @Override
+            public void onMessage(String key, String value) throws InvalidSubscriberException {
+                throw new InvalidSubscriberException();
+            }
+
+            @Override
+            public void onEndOfSubscription() {
+                ended[0]++;
+            }
+        }, Collections.singleton("a"));
+        index.notify("a", "1");
+        assertTrue(index.isEmpty());
+        assertEquals(1, ended[0]);
+    }
+
+    @Test
+    public void manyKeyedSubscribersOnATree() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("prices", String.class, String.class);
+        Map<String, List<String>> received = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "key-" + i;
+            List<String> values = new ArrayList<>();
+            received.put(key, values);
+            tree.registerTopicSubscriber("prices?bootstrap=false&keys=" + key, String.class, String.class,
+                    (k, v) -> values.add(k + "=" + v));
+        }
+        map.put("key-7", "a");
+        map.put("key-999", "b");
+        map.put("other", "c");
+        assertEquals("[key-7=a]", received.get("key-7").toString());
+        assertEquals("[key-999=b]", received.get("key-999").toString());
+        assertEquals(2, received.values().stream().mapToInt(List::size).sum());
+    }
+
+    @Test
+    public void childSubscriptionsFollowAddedChildren() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("prices", String.class, String.class);
+        List<String> eur = new ArrayList<>();
+        tree.registerSubscriber("prices/EURUSD?bootstrap=false", String.class, eur::add);
+        map.put("EURUSD", "1.1");
+        map.put("GBPUSD", "1.5");
+        assertEquals("[1.1]", eur.toString());
+
+        // GBPUSD was looked up without a child, which has to be noticed when one is added.
+        List<String> gbp = new ArrayList<>();
+        tree.registerSubscriber("prices/GBPUSD?bootstrap=false", String.class, gbp::add);
+        map.put("GBPUSD", "1.6");
+        map.put("EURUSD", "1.2");
+        assertEquals("[1.6]", gbp.toString());
+        assertEquals("[1.1, 1.2]", eur.toString());
+    }
+}
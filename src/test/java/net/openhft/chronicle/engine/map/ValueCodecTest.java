@@ -0,0 +1,131 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.bytes.Bytes;
+import net.openhft.chronicle.bytes.BytesStore;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ValueCodecTest {
+    private static String repetitive(int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < length; i++)
+            sb.append("{ name: item").append(i % 5).append(", price: 1").append(i % 3).append(".25, side: BUY }\n");
+        return sb.substring(0, length);
+    }
+
+    private static String random(int length) {
+        Random random = new Random(1);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            sb.append((char) (' ' + random.nextInt(95)));
+        return sb.toString();
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(2).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertRoundTrip(ValueCodec codec, byte[] value) {
+        Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.write(value);
+        BytesStore decoded = codec.decode(codec.encode(bytes), Bytes.elasticByteBuffer());
+        assertEquals(value.length, decoded.readRemaining());
+        for (int i = 0; i < value.length; i++)
+            assertEquals(value[i], decoded.readByte(decoded.readPosition() + i));
+    }
+
+    private static void assertRoundTrip(ValueCodec codec, String value) {
+        Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.append8bit(value);
+        BytesStore encoded = codec.encode(bytes);
+        BytesStore decoded = codec.decode(encoded, Bytes.elasticByteBuffer());
+        assertEquals(value, decoded.toString());
+    }
+
+    @Test
+    public void lz4RoundTrips() {
+        ValueCodec codec = new ValueCodec(ValueCodec.LZ4, 64);
+        for (int length : new int[]{0, 1, 13, 63, 64, 100, 2048, 70_000})
+            assertRoundTrip(codec, repetitive(length));
+        assertRoundTrip(codec, random(2048));
+        assertTrue(codec.compressedValues() >= 4);
+    }
+
+    @Test
+    public void deflateRoundTrips() {
+        ValueCodec codec = new ValueCodec(ValueCodec.DEFLATE, 64);
+        for (int length : new int[]{0, 1, 63, 64, 2048, 70_000})
+            assertRoundTrip(codec, repetitive(length));
+        assertRoundTrip(codec, random(2048));
+    }
+
+    @Test
+    public void repetitiveValuesCompressWell() {
+        ValueCodec codec = new ValueCodec(ValueCodec.LZ4, 0);
+        for (int i = 0; i < 10; i++)
+            assertRoundTrip(codec, repetitive(4096));
+        assertEquals(10, codec.compressedValues());
+        assertTrue(codec.toString(), codec.compressionRatio() > 5);
+    }
+
+    @Test
+    public void rawValuesAreReadWithoutCopying() {
+        ValueCodec codec = new ValueCodec(ValueCodec.DEFLATE, 256);
+        Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.append8bit("small");
+        Bytes using = Bytes.elasticByteBuffer();
+        BytesStore decoded = codec.decode(codec.encode(bytes), using);
+        assertNotSame(using, decoded);
+        assertEquals(0, using.readRemaining());
+        assertEquals("small", decoded.toString());
+    }
+
+    @Test
+    public void valuesCanBeDecodedOnceClosed() {
+        ValueCodec codec = new ValueCodec(ValueCodec.DEFLATE, 64);
+        assertRoundTrip(codec, repetitive(2048));
+        codec.close();
+        assertRoundTrip(codec, repetitive(2048));
+        assertEquals(2, codec.compressedValues());
+    }
+
+    @Test
+    public void smallValuesAreStoredAsIs() {
+        ValueCodec codec = new ValueCodec(ValueCodec.DEFLATE, 256);
+        Bytes bytes = Bytes.elasticByteBuffer();
+        bytes.append8bit("small");
+        assertEquals(6, codec.encode(bytes).readRemaining());
+        assertEquals(0, codec.compressedValues());
+    }
+
+    @Test
+    public void randomBytesAreStoredAsIs() {
+        for (String compression : new String[]{ValueCodec.LZ4, ValueCodec.DEFLATE}) {
+            ValueCodec codec = new ValueCodec(compression, 64);
+            for (int length : new int[]{64, 100, 2048, 70_000})
+                assertRoundTrip(codec, randomBytes(length));
+            assertEquals(compression, 0, codec.compressedValues());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.pubsub.InvalidSubscriberException;
+import net.openhft.chronicle.engine.tree.VanillaAsset;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+public class VanillaKeyValueStoreTest {
+    @Test
+    public void segmentsPartitionTheKeys() throws InvalidSubscriberException {
+        VanillaKeyValueStore<String, String, String> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 6);
+        assertEquals(8, kvStore.segments());
+        for (int i = 0; i < 1000; i++)
+            kvStore.put("key-" + i, "value-" + i);
+        assertEquals(1000, kvStore.longSize());
+
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < kvStore.segments(); i++) {
+            int segment = i;
+            kvStore.keysFor(segment, k -> {
+                assertEquals(segment, kvStore.segmentFor(k));
+                assertTrue(keys.add(k));
+            });
+            kvStore.entriesFor(segment, e -> assertEquals(segment, kvStore.segmentFor(e.key())));
+        }
+        assertEquals(1000, keys.size());
+
+        int count = 0;
+        for (Iterator<String> iter = kvStore.keySetIterator(); iter.hasNext(); count++)
+            assertTrue(keys.contains(iter.next()));
+        assertEquals(1000, count);
+
+        kvStore.clear();
+        assertEquals(0, kvStore.longSize());
+        assertFalse(kvStore.keySetIterator().hasNext());
+    }
+
+    @Test
+    public void entriesForTransientReusesTheEvent() throws InvalidSubscriberException {
+        VanillaKeyValueStore<String, String, String> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 1);
+        for (int i = 0; i < 10; i++)
+            kvStore.put("key-" + i, "value-" + i);
+
+        Set<Object> events = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<String, String> entries = new HashMap<>();
+        kvStore.entriesForTransient(0, e -> {
+            events.add(e);
+            entries.put(e.key(), e.value());
+        });
+        assertEquals(1, events.size());
+        assertEquals(10, entries.size());
+        assertEquals("value-3", entries.get("key-3"));
+    }
+
+    @Test
+    public void parallelStream() {
+        VanillaKeyValueStore<String, String, String> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 16);
+        for (int i = 0; i < 1000; i++)
+            kvStore.put("key-" + i, "value-" + i);
+
+        assertEquals(1000, kvStore.parallelStream().count());
+        assertEquals(100, kvStore.parallelStream()
+                .filter(e -> e.getValue().endsWith("0"))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet())
+                .size());
+
+        Spliterator<Map.Entry<String, String>> spliterator = kvStore.entrySetSpliterator();
+        Spliterator<Map.Entry<String, String>> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        AtomicInteger count = new AtomicInteger();
+        prefix.forEachRemaining(e -> count.incrementAndGet());
+        spliterator.forEachRemaining(e -> count.incrementAndGet());
+        assertEquals(1000, count.get());
+    }
+
+    @Test
+    public void compareAndSet() throws InterruptedException {
+        VanillaKeyValueStore<String, Integer, Integer> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 4);
+        assertNull(kvStore.putIfAbsent("counter", 0));
+        assertEquals((Integer) 0, kvStore.putIfAbsent("counter", 1));
+        assertFalse(kvStore.replaceIfEqual("counter", 1, 2));
+        assertNull(kvStore.replace("missing", 1));
+        assertFalse(kvStore.containsKey("missing"));
+
+        int threads = 4, increments = 10000;
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            ts[t] = new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    Integer value;
+                    do {
+                        value = kvStore.get("counter");
+                    } while (!kvStore.replaceIfEqual("counter", value, value + 1));
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertEquals((Integer) (threads * increments), kvStore.get("counter"));
+
+        assertFalse(kvStore.removeIfEqual("counter", 0));
+        assertTrue(kvStore.removeIfEqual("counter", threads * increments));
+        assertEquals(0, kvStore.longSize());
+    }
+
+    @Test
+    public void computeAndMerge() throws InterruptedException {
+        VanillaKeyValueStore<String, Long, Long> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 4);
+        int threads = 4, increments = 10000;
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            ts[t] = new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    kvStore.compute("computed", v -> v == null ? 1L : v + 1);
+                    kvStore.merge("merged", 1L, Long::sum);
+                }
+            });
+            ts[t].start();
+        }
+        for (Thread t : ts)
+            t.join();
+        assertEquals((Long) (long) (threads * increments), kvStore.get("computed"));
+        assertEquals((Long) (long) (threads * increments), kvStore.get("merged"));
+
+        assertNull(kvStore.compute("computed", v -> null));
+        assertFalse(kvStore.containsKey("computed"));
+    }
+
+    @Test
+    public void iteratorRemove() {
+        VanillaKeyValueStore<String, String, String> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 4);
+        for (int i = 0; i < 100; i++)
+            kvStore.put("key-" + i, "value-" + i);
+        for (Iterator<String> iter = kvStore.keySetIterator(); iter.hasNext(); ) {
+            iter.next();
+            iter.remove();
+        }
+        assertEquals(0, kvStore.longSize());
+    }
+
+    @Test
+    public void segmentsDontFixTheLowBits() {
+        VanillaKeyValueStore<Integer, Integer, Integer> kvStore = new VanillaKeyValueStore<>(new VanillaAsset(null, ""), 16);
+        List<Set<Integer>> lowBits = new ArrayList<>();
+        for (int i = 0; i < kvStore.segments(); i++)
+            lowBits.add(new HashSet<>());
+        // small Integers hash to themselves, so only their low bits differ.
+        for (int i = 0; i < 1600; i++)
+            lowBits.get(kvStore.segmentFor(i)).add(i & 15);
+        for (Set<Integer> bits : lowBits)
+            assertTrue(bits.toString(), bits.size() > 8);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.map.SecondaryIndex;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
+import static org.junit.Assert.*;
+
+public class VanillaSecondaryIndexTest {
+    @Test
+    public void hashAndSortedIndexes() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("accounts", String.class, String.class);
+        map.put("a1", "GBP:100");
+        map.put("a2", "USD:250");
+
+        SecondaryIndex<String, String> index = map.asset().acquireView(SecondaryIndex.class, requestContext());
+        index.addHashIndex("currency", v -> v.substring(0, 3));
+        index.addSortedIndex("amount", v -> Integer.parseInt(v.substring(4)));
+
+        map.put("a3", "GBP:300");
+        assertEquals(new HashSet<>(Arrays.asList("a1", "a3")), index.keysFor("currency", "GBP"));
+        assertEquals(Collections.singleton("a2"), index.keysFor("currency", "USD"));
+        assertEquals(Arrays.asList("a2", "a3"), Arrays.asList(index.keysBetween("amount", 200, null).toArray()));
+
+        map.put("a1", "USD:50");
+        map.remove("a3");
+        assertEquals(new HashSet<>(Arrays.asList("a1", "a2")), index.keysFor("currency", "USD"));
+        assertTrue(index.keysFor("currency", "GBP").isEmpty());
+        assertEquals(Arrays.asList("a1", "a2"), Arrays.asList(index.keysBetween("amount", null, 300).toArray()));
+
+        assertTrue(map.containsValue("USD:50"));
+        assertFalse(map.containsValue("GBP:100"));
+    }
+
+    @Test
+    public void valueIndexIsBuiltOnDemand() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("prices", String.class, String.class);
+        map.put("p1", "100");
+
+        SecondaryIndex<String, String> index = map.asset().acquireView(SecondaryIndex.class, requestContext());
+        assertFalse(index.hasIndex("{value}"));
+        assertTrue(index.containsValue("100"));
+
+        map.put("p1", "101");
+        map.put("p2", "100");
+        map.remove("p2");
+        assertTrue(map.containsValue("101"));
+        assertFalse(map.containsValue("100"));
+    }
+}
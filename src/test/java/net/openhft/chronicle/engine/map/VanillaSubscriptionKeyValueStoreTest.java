@@ -0,0 +1,56 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VanillaSubscriptionKeyValueStoreTest {
+    @Test
+    public void eventsForAKeyAreInTheOrderOfTheWrites() throws InterruptedException {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        Map<String, String> map = tree.acquireMap("counts", String.class, String.class);
+        List<String> received = new CopyOnWriteArrayList<>();
+        tree.registerTopicSubscriber("counts?bootstrap=false", String.class, String.class, (k, v) -> received.add(v));
+
+        int threads = 4, count = 1000;
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++)
+            es.submit(() -> {
+                for (int i = 0; i < count; i++)
+                    map.compute("key", (k, v) -> v == null ? "1" : Integer.toString(Integer.parseInt(v) + 1));
+            });
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(threads * count, received.size());
+        for (int i = 0; i < received.size(); i++)
+            assertEquals(Integer.toString(i + 1), received.get(i));
+        assertEquals(Integer.toString(threads * count), map.get("key"));
+    }
+}
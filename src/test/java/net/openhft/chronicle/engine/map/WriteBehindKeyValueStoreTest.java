@@ -0,0 +1,70 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.map;
+
+import net.openhft.chronicle.engine.api.map.MapEvent;
+import net.openhft.chronicle.engine.api.map.MapView;
+import net.openhft.chronicle.engine.api.tree.AssetTree;
+import net.openhft.chronicle.engine.tree.VanillaAsset;
+import net.openhft.chronicle.engine.tree.VanillaAssetTree;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static net.openhft.chronicle.engine.api.tree.RequestContext.requestContext;
+import static org.junit.Assert.*;
+
+public class WriteBehindKeyValueStoreTest {
+    @Test
+    public void writesAreCoalescedUntilFlushed() {
+        VanillaAsset asset = new VanillaAsset(null, "");
+        VanillaKeyValueStore<String, String, String> underlying = new VanillaKeyValueStore<>(asset, 1);
+        WriteBehindKeyValueStore<String, String, String> kvStore = new WriteBehindKeyValueStore<>(
+                requestContext().writeBehindMillis(60_000).type(String.class).type2(String.class), asset, underlying);
+
+        for (int i = 0; i < 100; i++)
+            kvStore.put("key", "value-" + i);
+        kvStore.put("other", "x");
+        assertTrue(kvStore.remove("other"));
+
+        assertEquals("value-99", kvStore.get("key"));
+        assertNull(kvStore.get("other"));
+        assertEquals(0, underlying.longSize());
+        assertTrue(kvStore.replaceIfEqual("key", "value-99", "last"));
+
+        kvStore.flush();
+        assertEquals("last", underlying.get("key"));
+        assertNull(underlying.get("other"));
+        assertEquals(1, kvStore.longSize());
+        kvStore.close();
+    }
+
+    @Test
+    public void subscribersSeeChangesImmediately() {
+        AssetTree tree = new VanillaAssetTree().forTesting();
+        MapView<String, String, String> map = tree.acquireMap("prices?writeBehindMillis=50", String.class, String.class);
+        List<MapEvent<String, String>> events = new ArrayList<>();
+        map.registerSubscriber(events::add);
+
+        map.put("a", "1");
+        map.put("a", "2");
+        assertEquals(2, events.size());
+        assertEquals("2", map.get("a"));
+        assertEquals(1, map.size());
+    }
+}
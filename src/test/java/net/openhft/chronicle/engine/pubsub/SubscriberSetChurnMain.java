@@ -0,0 +1,62 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.pubsub;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Supplier;
+
+/**
+ * Compares SubscriberSet with CopyOnWriteArraySet as many subscribers come and go while events are
+ * delivered to them, as with short lived remote subscriptions.
+ */
+public class SubscriberSetChurnMain {
+    static final int SUBSCRIBERS = Integer.getInteger("subscribers", 10_000);
+    static final int CHURN = Integer.getInteger("churn", 200_000);
+    static final int EVENT_EVERY = Integer.getInteger("eventEvery", 1000);
+
+    public static void main(String[] args) {
+        for (int run = 0; run < 5; run++) {
+            test("CopyOnWriteArraySet", CopyOnWriteArraySet::new);
+            test("SubscriberSet", SubscriberSet::new);
+        }
+    }
+
+    static void test(String name, Supplier<Set<Runnable>> setSupplier) {
+        Set<Runnable> set = setSupplier.get();
+        long[] count = {0};
+        Runnable[] subscribers = new Runnable[SUBSCRIBERS];
+        for (int i = 0; i < SUBSCRIBERS; i++) {
+            subscribers[i] = () -> count[0]++;
+            set.add(subscribers[i]);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < CHURN; i++) {
+            // replace a subscriber, as a remote client reconnecting would.
+            int n = (int) ((i * 0x9E3779B97F4A7C15L >>> 33) % SUBSCRIBERS);
+            set.remove(subscribers[n]);
+            subscribers[n] = () -> count[0]++;
+            set.add(subscribers[n]);
+            if (i % EVENT_EVERY == 0)
+                set.forEach(Runnable::run);
+        }
+        long time = System.nanoTime() - start;
+        System.out.printf("%-20s subscribers: %,d churn: %,d took %,d ms, %,d ns per add/remove, delivered %,d%n",
+                name, SUBSCRIBERS, CHURN, time / 1_000_000, time / CHURN / 2, count[0]);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *     Copyright (C) 2015  higherfrequencytrading.com
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU Lesser General Public License for more details.
+ *
+ *     You should have received a copy of the GNU Lesser General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.chronicle.engine.pubsub;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SubscriberSetTest {
+    @Test
+    public void addAndRemoveAcrossChunks() {
+        SubscriberSet<Integer> set = new SubscriberSet<>();
+        Set<Integer> expected = new HashSet<>();
+        Random rand = new Random(1);
+        for (int i = 0; i < 10_000; i++) {
+            Integer n = rand.nextInt(200);
+            if (rand.nextBoolean())
+                assertEquals(expected.add(n), set.add(n));
+            else
+                assertEquals(expected.remove(n), set.remove(n));
+            assertEquals(expected.size(), set.size());
+        }
+        Set<Integer> seen = new HashSet<>();
+        set.forEach(n -> assertTrue(seen.add(n)));
+        assertEquals(expected, seen);
+        assertEquals(expected, new HashSet<>(set));
+        for (Integer n : expected)
+            assertTrue(set.contains(n));
+
+        set.clear();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(1));
+        assertEquals("[1]", set.toString());
+    }
+
+    @Test
+    public void iterationSeesASnapshot() {
+        SubscriberSet<String> set = new SubscriberSet<>();
+        for (int i = 0; i < SubscriberSet.CHUNK_SIZE * 2; i++)
+            set.add("s" + i);
+        List<String> seen = new ArrayList<>();
+        for (Iterator<String> it = set.iterator(); it.hasNext(); ) {
+            String s = it.next();
+            seen.add(s);
+            // changes while iterating don't affect this iteration.
+            set.remove("s0");
+            set.add("late-" + s);
+        }
+        assertEquals(SubscriberSet.CHUNK_SIZE * 2, seen.size());
+        assertTrue(seen.contains("s0"));
+        assertFalse(seen.contains("late-s0"));
+        assertEquals(SubscriberSet.CHUNK_SIZE * 4 - 1, set.size());
+    }
+
+    @Test
+    public void iteratorRemove() {
+        SubscriberSet<String> set = new SubscriberSet<>();
+        set.addAll(Arrays.asList("a", "b", "c"));
+        for (Iterator<String> it = set.iterator(); it.hasNext(); )
+            if (!it.next().equals("b"))
+                it.remove();
+        assertEquals("[b]", set.toString());
+    }
+}